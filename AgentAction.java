@@ -21,8 +21,16 @@ public class AgentAction {
 		this.facing = facing;
 	}	
 	public void doAction(AirCurrentGenerator acg) {
-		acg.setFacingDirection(facing);
-		acg.setPower(power);
+		// one call, so the engine tears down and rebuilds the tower's 
+		// air currents once rather than twice
+		acg.setPowerAndDirection(power, facing);
+	}
+	/**
+	 * Performs an action chosen in a state's frame, which may be a rotated
+	 * or mirrored view of the map (see StateVector.toWorld).
+	 */
+	public void doAction(AirCurrentGenerator acg, StateVector frame) {
+		acg.setPowerAndDirection(power, frame.toWorld(facing));
 	}
 	public Direction getDirection() {return facing; }
 
@@ -0,0 +1,59 @@
+/**
+ * Central place for the agents' tunable settings.
+ *
+ * Values are read from Java system properties, so they can be changed
+ * from the command line without recompiling, e.g.:
+ *
+ *   java -Drd.schedule.cap=8 -jar rd881.jar
+ *
+ * Every lookup supplies its own default, so an agent run without any
+ * properties behaves exactly as documented in its own class.
+ */
+public final class AgentConfig {
+
+	private AgentConfig() {}
+
+	public static String getString(String key, String def) {
+		String v = System.getProperty(key);
+		return (v == null || v.trim().length() == 0) ? def : v.trim();
+	}
+
+	public static int getInt(String key, int def) {
+		String v = getString(key, null);
+		if (v == null) return def;
+		try {
+			return Integer.parseInt(v);
+		} catch (NumberFormatException nfe) {
+			System.err.println("WARNING: bad integer for " + key + ": " + v + " (using " + def + ")");
+			return def;
+		}
+	}
+
+	public static long getLong(String key, long def) {
+		String v = getString(key, null);
+		if (v == null) return def;
+		try {
+			return Long.parseLong(v);
+		} catch (NumberFormatException nfe) {
+			System.err.println("WARNING: bad long for " + key + ": " + v + " (using " + def + ")");
+			return def;
+		}
+	}
+
+	public static double getDouble(String key, double def) {
+		String v = getString(key, null);
+		if (v == null) return def;
+		try {
+			return Double.parseDouble(v);
+		} catch (NumberFormatException nfe) {
+			System.err.println("WARNING: bad number for " + key + ": " + v + " (using " + def + ")");
+			return def;
+		}
+	}
+
+	public static boolean getBoolean(String key, boolean def) {
+		String v = getString(key, null);
+		if (v == null) return def;
+		return v.equalsIgnoreCase("true") || v.equals("1") || v.equalsIgnoreCase("yes");
+	}
+}
@@ -0,0 +1,90 @@
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+import jig.misc.rd.AirCurrentGenerator;
+
+/**
+ * Seeded random number streams for an agent and its towers.
+ *
+ * Everything derives from a single root seed, taken from rd.seed. If no
+ * seed is configured, one is made up and printed so the run can be
+ * repeated. Each agent gets its own stream, derived from the root seed
+ * and the agent's name, and each tower gets a stream derived from the
+ * agent's seed and the cell the tower stands on. (Not its unique id: the
+ * engine numbers every tower the JVM creates, so anything made before
+ * the game, such as munchersOne's warm-up towers, would shift them.)
+ *
+ * Tower streams depend only on the seed and the tower, not on the order
+ * towers are visited in or on what the other towers did. Given the same
+ * seed and the same sequence of sensor events, every tower makes the same
+ * choices.
+ *
+ * The streams are SplittableRandoms. They are cheap enough to call on
+ * every decision and are not shared between threads.
+ */
+public class AgentRandom {
+
+	private static long rootSeed;
+	private static boolean rootSeedChosen;
+
+	private final long agentSeed;
+	private final SplittableRandom agentStream;
+	private final HashMap<AirCurrentGenerator, SplittableRandom> towerStreams =
+		new HashMap<AirCurrentGenerator, SplittableRandom>();
+
+	/**
+	 * @param agentName distinguishes the streams of different agents that
+	 *   share a root seed
+	 */
+	public AgentRandom(String agentName) {
+		agentSeed = mix(getRootSeed() ^ mix(agentName.hashCode()));
+		agentStream = new SplittableRandom(agentSeed);
+	}
+
+	/**
+	 * @return the root seed for this run
+	 */
+	public static synchronized long getRootSeed() {
+		if (!rootSeedChosen) {
+			String configured = AgentConfig.getString("rd.seed", null);
+			if (configured != null) {
+				rootSeed = AgentConfig.getLong("rd.seed", 0);
+			} else {
+				rootSeed = mix(System.nanoTime() ^ System.currentTimeMillis());
+				System.out.println("Random seed: " + rootSeed + " (use -Drd.seed=" + rootSeed + " to repeat this run)");
+			}
+			rootSeedChosen = true;
+		}
+		return rootSeed;
+	}
+
+	/**
+	 * @return the stream for decisions that don't belong to a single tower
+	 */
+	public SplittableRandom forAgent() {
+		return agentStream;
+	}
+
+	/**
+	 * @return the stream for the given tower's decisions
+	 */
+	public SplittableRandom forTower(AirCurrentGenerator acg) {
+		SplittableRandom r = towerStreams.get(acg);
+		if (r == null) {
+			long cell = ((long) acg.getGridY() << 32) | (acg.getGridX() & 0xffffffffL);
+			r = new SplittableRandom(mix(agentSeed + 0x9E3779B97F4A7C15L * (mix(cell) + 1)));
+			towerStreams.put(acg, r);
+		}
+		return r;
+	}
+
+	/**
+	 * The SplitMix64 finalizer: spreads the bits of z so that nearby seeds
+	 * give unrelated streams.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,323 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Direction;
+import jig.misc.rd.Tile;
+
+/**
+ * Keeps track of the air currents that each generator applies to each cell,
+ * using flat primitive arrays instead of per-cell maps of boxed vectors.
+ *
+ * Every generator has a 'slab': an array with an (x, y) pair for every cell
+ * on the map. The field also maintains the per-cell total over all generators.
+ *
+ * When a generator changes its power or direction, the engine first zeroes
+ * each cell it was affecting (one updateAirCurrent call per cell), then
+ * reports the change (airCurrentGeneratorChanged), then sets each cell
+ * affected by the new setting. The cells a generator affects, and the
+ * vectors it applies, depend only on its (power, direction) setting, so
+ * the first time a setting is seen its cells are recorded as a 'footprint'.
+ * The next time the generator switches to a setting with a known footprint,
+ * its slab is rewritten in bulk when the change is reported, and the
+ * per-cell calls for that generator are ignored until its next change.
+ *
+ * Footprints only hold for the map they were recorded on, so placing any
+ * tile (tileChanged) drops them all: each slab follows the per-cell calls
+ * again until its generator's next change records its setting anew. A
+ * generator whose tile is built over is gone, and its currents with it.
+ *
+ * Each slab also remembers its generator's reach: every cell any of its
+ * footprints has covered. Unlike the footprints, the reach is kept when a
+ * tile is placed, so it only grows while the generator stands.
+ */
+public class AirCurrentField {
+
+	/**
+	 * A generator's setting, as an index into its footprint table.
+	 */
+	static int settingIndex(int power, Direction d) {
+		return power * Direction.values().length + d.ordinal();
+	}
+
+	private final int width, height;
+
+	/** the total current on each cell (x, y interleaved) */
+	private final float[] total;
+
+	private final HashMap<AirCurrentGenerator, Slab> slabs = new HashMap<AirCurrentGenerator, Slab>();
+
+	/** the generator standing on each cell (gx * height + gy), if any */
+	private final AirCurrentGenerator[] standing;
+
+	/** bumped whenever a generator's reach grows, or a generator is gone */
+	private int reachVersion;
+
+	public AirCurrentField(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.total = new float[2 * width * height];
+		this.standing = new AirCurrentGenerator[width * height];
+	}
+
+	/**
+	 * Called whenever a tile is placed, before the game and during it.
+	 *
+	 * @param listener told about every cell whose current changes (may be null)
+	 */
+	public void tileChanged(Tile t, int gx, int gy, CellChangeListener listener) {
+		int cell = gx * height + gy;
+		AirCurrentGenerator was = standing[cell];
+		standing[cell] = (t instanceof AirCurrentGenerator) ? (AirCurrentGenerator) t : null;
+		for (Slab s : slabs.values()) s.forgetFootprints();
+		if (was == null || was == t) return;
+		Slab s = slabs.remove(was);
+		if (s != null) {
+			clear(s, listener);
+			reachVersion++;
+		}
+	}
+
+	/**
+	 * Applies one updateAirCurrent call from the engine.
+	 *
+	 * @return true iff the call changed the field
+	 */
+	public boolean set(AirCurrentGenerator acg, int gx, int gy, double xmag, double ymag) {
+		Slab s = slab(acg);
+		int c = 2 * (gx * height + gy);
+
+		if (s.bulkApplied) return false;
+
+		float x = (float) xmag, y = (float) ymag;
+		if (s.recording >= 0 && x == 0f && y == 0f && (s.v[c] != 0f || s.v[c + 1] != 0f)) {
+			// the engine is tearing down the setting we've been recording
+			if (s.finishRecording()) reachVersion++;
+		}
+		if (s.v[c] == x && s.v[c + 1] == y) return false;
+
+		total[c] += x - s.v[c];
+		total[c + 1] += y - s.v[c + 1];
+		s.v[c] = x;
+		s.v[c + 1] = y;
+		return true;
+	}
+
+	/**
+	 * Called when the engine reports a generator's new setting.
+	 *
+	 * @param listener told about every cell whose current changes in bulk (may be null)
+	 */
+	public void generatorChanged(AirCurrentGenerator acg, int power, Direction d, CellChangeListener listener) {
+		Slab s = slab(acg);
+		if (s.recording >= 0 && s.finishRecording()) reachVersion++;
+
+		int setting = settingIndex(power, d);
+		int[] fpCells = s.footprintCells[setting];
+
+		// clear whatever the slab still holds
+		clear(s, listener);
+
+		if (fpCells == null) {
+			// first time we've seen this setting: record it from the per-cell calls
+			s.bulkApplied = false;
+			s.recording = setting;
+			return;
+		}
+
+		float[] fpVecs = s.footprintVectors[setting];
+		for (int k = 0; k < fpCells.length; k++) {
+			int c = fpCells[k];
+			s.v[c] = fpVecs[2 * k];
+			s.v[c + 1] = fpVecs[2 * k + 1];
+			total[c] += s.v[c];
+			total[c + 1] += s.v[c + 1];
+			if (listener != null) listener.cellChanged(c / 2 / height, (c / 2) % height);
+		}
+		s.nonZero = fpCells;
+		s.bulkApplied = true;
+		s.recording = -1;
+	}
+
+	private void clear(Slab s, CellChangeListener listener) {
+		if (s.nonZero != null) {
+			for (int c : s.nonZero) {
+				zero(s, c, listener);
+			}
+		} else {
+			for (int c = 0; c < s.v.length; c += 2) {
+				if (s.v[c] != 0f || s.v[c + 1] != 0f) zero(s, c, listener);
+			}
+		}
+		s.nonZero = null;
+	}
+
+	private void zero(Slab s, int c, CellChangeListener listener) {
+		if (s.v[c] == 0f && s.v[c + 1] == 0f) return;
+		total[c] -= s.v[c];
+		total[c + 1] -= s.v[c + 1];
+		s.v[c] = 0f;
+		s.v[c + 1] = 0f;
+		if (listener != null) listener.cellChanged(c / 2 / height, (c / 2) % height);
+	}
+
+	public float totalX(int gx, int gy) {
+		return total[2 * (gx * height + gy)];
+	}
+
+	public float totalY(int gx, int gy) {
+		return total[2 * (gx * height + gy) + 1];
+	}
+
+	/**
+	 * @return the current a generator applies at a cell, as {x, y}
+	 */
+	public float[] get(AirCurrentGenerator acg, int gx, int gy) {
+		Slab s = slabs.get(acg);
+		if (s == null) return new float[2];
+		int c = 2 * (gx * height + gy);
+		return new float[] { s.v[c], s.v[c + 1] };
+	}
+
+	/**
+	 * @return the x component of the current a generator applies at a cell
+	 */
+	public float getX(AirCurrentGenerator acg, int gx, int gy) {
+		Slab s = slabs.get(acg);
+		return s == null ? 0f : s.v[2 * (gx * height + gy)];
+	}
+
+	/**
+	 * @return the y component of the current a generator applies at a cell
+	 */
+	public float getY(AirCurrentGenerator acg, int gx, int gy) {
+		Slab s = slabs.get(acg);
+		return s == null ? 0f : s.v[2 * (gx * height + gy) + 1];
+	}
+
+	/**
+	 * @return the number of (power, direction) footprints recorded for a generator
+	 */
+	public int footprintsKnown(AirCurrentGenerator acg) {
+		Slab s = slabs.get(acg);
+		if (s == null) return 0;
+		int n = 0;
+		for (int[] f : s.footprintCells) if (f != null) n++;
+		return n;
+	}
+
+	/**
+	 * Copies the footprint for a setting, if it is known, into the given
+	 * arrays (cell indices as gx * height + gy, and interleaved vectors).
+	 *
+	 * @return the number of cells in the footprint, or -1 if it's unknown
+	 */
+	public int footprint(AirCurrentGenerator acg, int power, Direction d, int[] cells, float[] vecs) {
+		Slab s = slabs.get(acg);
+		if (s == null) return -1;
+		int setting = settingIndex(power, d);
+		int[] fpCells = s.footprintCells[setting];
+		if (fpCells == null) return -1;
+		int n = Math.min(fpCells.length, cells.length);
+		for (int k = 0; k < n; k++) cells[k] = fpCells[k] / 2;
+		System.arraycopy(s.footprintVectors[setting], 0, vecs, 0, Math.min(2 * n, vecs.length));
+		return n;
+	}
+
+	/**
+	 * @return the cells (gx * height + gy) any recorded footprint of a
+	 *   generator has covered, as a copy
+	 */
+	public BitSet reach(AirCurrentGenerator acg) {
+		Slab s = slabs.get(acg);
+		return s == null ? new BitSet() : (BitSet) s.reach.clone();
+	}
+
+	/**
+	 * @return a number that changes whenever some generator's reach does
+	 */
+	public int reachVersion() {
+		return reachVersion;
+	}
+
+	public int getWidth() { return width; }
+
+	public int getHeight() { return height; }
+
+	private Slab slab(AirCurrentGenerator acg) {
+		Slab s = slabs.get(acg);
+		if (s == null) {
+			s = new Slab(2 * width * height);
+			slabs.put(acg, s);
+		}
+		return s;
+	}
+
+	/**
+	 * One generator's contribution to the field.
+	 */
+	private static class Slab {
+		final float[] v;
+
+		/** footprint cells (slab offsets) and vectors, indexed by setting */
+		final int[][] footprintCells = new int[(AirCurrentGenerator.POWER_SETTINGS + 1) * Direction.values().length][];
+		final float[][] footprintVectors = new float[footprintCells.length][];
+
+		/** the slab offsets known to be non-zero, or null if unknown */
+		int[] nonZero;
+
+		/** the setting whose footprint the per-cell calls are building, or -1 */
+		int recording = -1;
+
+		/** true while the slab was written in bulk and per-cell calls are redundant */
+		boolean bulkApplied;
+
+		/** the cells (slab offset / 2) any footprint has covered */
+		final BitSet reach = new BitSet();
+
+		Slab(int size) {
+			v = new float[size];
+		}
+
+		/** goes back to following the per-cell calls, until the footprints are recorded again */
+		void forgetFootprints() {
+			Arrays.fill(footprintCells, null);
+			Arrays.fill(footprintVectors, null);
+			nonZero = null;
+			recording = -1;
+			bulkApplied = false;
+		}
+
+		/**
+		 * @return true if the footprint covered a cell no earlier one had
+		 */
+		boolean finishRecording() {
+			int n = 0;
+			for (int c = 0; c < v.length; c += 2) {
+				if (v[c] != 0f || v[c + 1] != 0f) n++;
+			}
+			int[] cells = new int[n];
+			float[] vecs = new float[2 * n];
+			int k = 0;
+			boolean grew = false;
+			for (int c = 0; c < v.length; c += 2) {
+				if (v[c] != 0f || v[c + 1] != 0f) {
+					if (!reach.get(c / 2)) {
+						reach.set(c / 2);
+						grew = true;
+					}
+					cells[k] = c;
+					vecs[2 * k] = v[c];
+					vecs[2 * k + 1] = v[c + 1];
+					k++;
+				}
+			}
+			footprintCells[recording] = cells;
+			footprintVectors[recording] = vecs;
+			nonZero = cells;
+			recording = -1;
+			return grew;
+		}
+	}
+}
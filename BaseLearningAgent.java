@@ -1,16 +1,15 @@
 
 
-import java.awt.Point;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.HashMap;
 
 import jig.engine.Timer;
 import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.PlayingField;
 import jig.misc.rd.RobotDefense;
-import jig.misc.rd.Tile;
 import jig.misc.rd.ai.AgentSensoryInterface;
-import jig.misc.rd.ai.InsectView;
 import jig.misc.rd.ai.RobotDefenseAgent;
 import jig.misc.rd.ai.WorldEffectorInterface;
 
@@ -23,6 +22,9 @@ import jig.misc.rd.ai.WorldEffectorInterface;
  */
 public abstract class BaseLearningAgent implements RobotDefenseAgent {
 
+	/** the interactive game steps its agent every 200 ms */
+	static final long AGENT_PERIOD_MS = 200;
+
 	/** 
 	 * A reference to the world. This is used to effect changes.
 	 */
@@ -49,12 +51,28 @@ public abstract class BaseLearningAgent implements RobotDefenseAgent {
 	private Timer intervalTimer;
 	
 	private Timer elapsedTimer;
+
+	/**
+	 * The playing field whose statistics are logged. When running inside the
+	 * normal game, this is left null and the game's own field is used; the
+	 * HeadlessGame sets it to the field it is simulating.
+	 */
+	private PlayingField field;
 	
 	/**
 	 * A Timer helps us decide when to 
 	 */
 
 	public BaseLearningAgent() {
+		this(false);
+	}
+
+	/**
+	 * @param throwaway true for an agent that only plays a SensorTrace
+	 *   (e.g., to warm up the JIT): it keeps no performance log and
+	 *   records no trace
+	 */
+	BaseLearningAgent(boolean throwaway) {
 		initialized = false;
 		thisState = new HashMap<AirCurrentGenerator, StateVector>();
 		lastState = new HashMap<AirCurrentGenerator, StateVector>();
@@ -63,6 +81,7 @@ public abstract class BaseLearningAgent implements RobotDefenseAgent {
 		// set the timer's alarm for once every five seconds
 		intervalTimer = Timer.createTimer(5 * Timer.NANOS_PER_SECOND, true);
 		elapsedTimer = Timer.createTimer();
+		if (throwaway) return;
 		try {
 			performanceLog = new FileWriter("performance.out");
 			performanceLog.write("Time (ms)\tResources\tCaptured\tEscaped\n");
@@ -72,6 +91,15 @@ public abstract class BaseLearningAgent implements RobotDefenseAgent {
 			System.exit(1);
 		}
 
+		String trace = AgentConfig.getString("rd.trace.record", null);
+		if (trace != null) {
+			try {
+				sensors.setTraceRecorder(new SensorTrace.Recorder(new File(trace),
+						AgentConfig.getLong("rd.trace.frameMS", AGENT_PERIOD_MS)));
+			} catch (IOException e) {
+				System.err.println("Couldn't record the sensor trace: " + e);
+			}
+		}
 	}
 	/**
 	 * This method is called by the world when the agent is 'enabled' or hooked up.
@@ -117,7 +145,9 @@ public abstract class BaseLearningAgent implements RobotDefenseAgent {
 			thisState.put(acg, state);
 			return true;
 		}
-		if (!wasState.equals(state)) {
+		// with the symmetry feature, the same state seen from a different
+		// orientation still calls for a different (turned) action
+		if (!wasState.equals(state) || wasState.getTransform() != state.getTransform()) {
 			lastState.put(acg, wasState);
 			thisState.put(acg, state);
 			return true;
@@ -125,21 +155,48 @@ public abstract class BaseLearningAgent implements RobotDefenseAgent {
 		return false;
 	}
 
+	/**
+	 * Used when a tower decides even though its state has not changed (e.g.,
+	 * because the DecisionScheduler says it has waited long enough). The 
+	 * previous action was taken in the current state, so the current state
+	 * becomes the last state as well.
+	 * 
+	 * @param acg the air current generator at the center of the neighborhood
+	 */
+	protected void stateRevisited(AirCurrentGenerator acg) {
+		lastState.put(acg, thisState.get(acg));
+	}
+
+	/**
+	 * Sets the playing field the agent is acting on (used by HeadlessGame).
+	 */
+	public void setPlayingField(PlayingField pf) {
+		field = pf;
+	}
+
+	/**
+	 * @return the playing field the agent is acting on
+	 */
+	protected PlayingField getPlayingField() {
+		if (field == null) return RobotDefense.getGame().pf;
+		return field;
+	}
+
 	/**
 	 * At regular intervals log the agent's performance.
 	 */
 	public void updatePerformanceLog() {
-		if (intervalTimer.alarmExpired()) {
-			RobotDefense rd = RobotDefense.getGame();
+		if (performanceLog != null && intervalTimer.alarmExpired()) {
+			PlayingField pf = getPlayingField();
 			
 			try {
 				performanceLog.write(Long.toString(elapsedTimer.getTimeSinceReset()/Timer.NANOS_PER_MS));
 				performanceLog.write("\t");
-				performanceLog.write(Integer.toString(rd.pf.countCrystals()));
+				performanceLog.write(Integer.toString(pf.countCrystals()));
 				performanceLog.write("\t");
-				performanceLog.write(Integer.toString(rd.pf.capturedInsects()));
+				performanceLog.write(Integer.toString(pf.capturedInsects()));
 				performanceLog.write("\t");
-				performanceLog.write(Integer.toString(rd.pf.escapedInsects()));
+				performanceLog.write(Integer.toString(pf.escapedInsects()));
 				performanceLog.write("\n");
 				performanceLog.flush();
 				
@@ -150,194 +207,3 @@ public abstract class BaseLearningAgent implements RobotDefenseAgent {
 		}
 	}
 }
-
-/**
- * This is the BaseLearningAgent's sensor system. This class can be viewed as a
- * container for all the information the agent <b>could</b> use in its decision
- * making. Users who want to subclass the BaseLearningAgent will typically not
- * need to interact this class directly. Rather, they will want to modify the
- * StateVector class and CellContents class to determine what information the
- * agent uses to make its decisions.
- * 
- * 
- * @author Scott Wallace
- * 
- */
-class LearningAgentSensorSystem implements AgentSensoryInterface {
-
-	/**
-	 * This map has a dual function:
-	 * 1) the key set can be used to track the set of air current generators on the map
-	 * 2) the values indicate how many insect each generator has captured
-	 */
-	HashMap<AirCurrentGenerator, Integer> generators;
-	
-	/**
-	 * This keeps track of the important properties of individual cells which will
-	 * later be used to create StateVector instances.
-	 */
-	private CellContents[][] map;
-	
-	/**
-	 * This keeps track of the insect's current location on the map (in grid coordiantes).
-	 */
-	private HashMap<InsectView, Point> insectLocationMap;
-
-	/**
-	 * This method wraps CellContents.getContentsCode to get the 
-	 * code associated with one cell on the overall map. Users of the
-	 * BaseLearningAgent probably want to modify CellContents
-	 * instead of this method.
-	 * 
-	 * 
-	 * @param gx the x grid coordinate of the desired cell
-	 * @param gy the y grid coordinate of the desired cell
-	 * @return an inteter code representing the 'state' of the desired cell
-	 * 
-	 * @see CellContents#getContentsCode()
-	 */
-	public int getMapContentsCode(int gx, int gy) {
-		try {
-			int r = map[gx][gy].getContentsCode();
-			return r;
-		} catch (ArrayIndexOutOfBoundsException aob) {
-			return CellContents.getOutOfBoundsContentsCode();
-		}
-	}
-
-	/**
-	 * This method is called by the environment to indcate an airCurrentGenerator changed its
-	 * state (power or direction).
-	 * 
-	 * It will be called in two situations: 
-	 *  1) when the agent itself successfully changes the ACG's state (here, it serves
-	 *  as proprioception)
-	 *  
-	 *  2) when a human user steps in a directly interacts with the game and changes
-	 *  the state of a tower.
-	 *  
-	 * The base learning agent doesn't care if a human steps in and changes the
-	 * tower settings. In addition, it assumes (as is currently the case) that
-	 * its actions always work as expected.  Thus, we don't need to do anything here.
-	 */
-	public void airCurrentGeneratorChanged(AirCurrentGenerator ac) {}
-
-	/**
-	 * This method is called by the environment when a tile is initialized
-	 * and before the game begins
-	 */
-	public void initializeTile(Tile t, int gx, int gy) {
-		if (t instanceof AirCurrentGenerator) {
-			// a acg that occupies more than one tile will 
-			// call this method more than one time -- the hashmap ensures
-			// a single entry is added
-			generators.put((AirCurrentGenerator) t, 0);
-
-		}
-		map[gx][gy].setTile(t);
-	}
-
-	/**
-	 * This method is called by the environment when the size of the world 
-	 * is determined (before the game begins)
-	 */
-	public void initializeWorld(int width, int height) {
-		generators = new HashMap<AirCurrentGenerator, Integer>(20);
-		map = new CellContents[width][height];
-		insectLocationMap = new HashMap<InsectView, Point>();
-
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				map[x][y] = new CellContents();
-			}
-		}
-	}
-
-	/**
-	 * This method is called by the environment when a new Insect is created.
-	 * 
-	 * @param i the agent's view (an InsectView instance) of a new insect
-	 *      the InsectView can be used to uniquely identify an insect over the
-	 *      course of time (i.e., there is a one to one mapping of Insect objects
-	 *      and InsectView objects, and this mapping is persistent over the lifetime
-	 *      of the Insect object).
-	 * 
-	 * @param x the x location of the new insect (in grid coordinates)
-	 * @param y the y location of the new insect (in grid coordinates)
-	 * 
-	 */
-	public void insectCreated(InsectView i, int x, int y) {
-		map[x][y].addInsect(i);
-		insectLocationMap.put(i, new Point(x, y));
-
-	}
-
-	/**
-	 * This method is called by the environment when an Insect is captured.
-	 * 
-	 * @param i the agent's view (an InsectView instance) of the insect
-	 * @param acg the AirCurrentGenerator that captured the insect
-	 */
-	public void insectCaptured(InsectView i, AirCurrentGenerator acg) {
-		Integer caught = generators.get(acg);
-		generators.put(acg, new Integer(caught.intValue() + 1));
-		Point oldLoc = insectLocationMap.get(i);
-		if (oldLoc == null) {
-			System.err.println("WARNING: couldn't look up insect!" + i);
-			return;
-		}
-		map[oldLoc.x][oldLoc.y].removeInsect(i);
-		insectLocationMap.remove(i);
-	}
-
-	
-	/**
-	 * This method is called by the environment when an Insect reaches its goal.
-	 * 
-	 * @param i the agent's view (an InsectView instance) of the insect
-	 */
-	public void insectObtainedGoal(InsectView i) {
-		Point oldLoc = insectLocationMap.get(i);
-		if (oldLoc == null) {
-			System.err.println("WARNING: couldn't look up insect!" + i);
-			return;
-		}
-		map[oldLoc.x][oldLoc.y].removeInsect(i);
-		insectLocationMap.remove(i);
-	}
-
-	/**
-	 * This method is called by the environment when an Insect changes grid cells.
-	 *
-	 * @param i the agent's view (an InsectView instance) of the insect
-	 * @param newGridX the insect's new x position in grid coordinates
-	 * @param newGridY the insect's new y position in grid coordinates
-	 */
-	public void insectGridLocationChanged(InsectView i, int newGridX,
-			int newGridY) {
-
-		Point oldLocation = insectLocationMap.get(i);
-		if (oldLocation == null) {
-			System.err.println("WARNING: couldn't look up insect!" + i);
-			return;
-		}
-		map[oldLocation.x][oldLocation.y].removeInsect(i);
-		map[newGridX][newGridY].addInsect(i);
-		// desctructively modify hash value
-		oldLocation.x = newGridX;
-		oldLocation.y = newGridY;
-
-	}
-
-	/**
-	 * This method is called by the environment when an air current changes
-	 * on a particular cell. We'll pass this off to the CellContent object.
-	 * 
-	 */
-	public void updateAirCurrent(AirCurrentGenerator a, int x, int y,
-			double xmag, double ymag) {
-		map[x][y].setAirCurrent(a, xmag, ymag);
-
-	}
-
-}
\ No newline at end of file
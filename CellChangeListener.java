@@ -0,0 +1,6 @@
+/**
+ * Notified by the sensor system whenever the contents of a cell change.
+ */
+interface CellChangeListener {
+	void cellChanged(int gx, int gy);
+}
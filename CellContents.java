@@ -0,0 +1,167 @@
+import java.util.LinkedList;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Direction;
+import jig.misc.rd.Tile;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ * State is typically computed based on the contents of cells 
+ * within a small region.  Each cell, thus has its own individual
+ * state which is encapsulated by CellContents objects and the
+ * values returned by their getContentsCode() method.
+ * 
+ * @author Scott Wallace
+ *
+ */
+class CellContents {
+	LinkedList<InsectView> insects;
+	
+	/**
+	 * When the air current feature is on, the air current code is scaled by
+	 * this much so it doesn't collide with the insect counts.
+	 */
+	static final int AIR_CURRENT_MULTIPLIER = 1000;
+
+	/**
+	 * The Direction whose unit vector has the given signs, indexed by 
+	 * [xhat + 1][yhat + 1] (null in the middle).
+	 */
+	private static final Direction[][] DIRECTION_BY_SIGN = new Direction[3][3];
+	static {
+		for (Direction d : Direction.values()) {
+			DIRECTION_BY_SIGN[d.xhat() + 1][d.yhat() + 1] = d;
+		}
+	}
+
+	public CellContents() {
+		insects = new LinkedList<InsectView>();
+	}
+
+	/**
+	 * @return the Direction whose unit vector has the signs of (dx, dy), or
+	 *   null if both are 0
+	 */
+	static Direction directionOf(int dx, int dy) {
+		return DIRECTION_BY_SIGN[Integer.signum(dx) + 1][Integer.signum(dy) + 1];
+	}
+	
+	/**
+	 * Called by the Agent's Sensory Interface when the tile corresponding
+	 * to this particular cell location is set.
+	 * 
+	 * @param t
+	 */
+	public void setTile(Tile t) {
+		// tile type is not important in my version of state, so I'll just ignore
+		// this value
+	}
+	
+	/**
+	 * Called by the Agent's Sensory Interface when an insect has entered
+	 * this cell.
+	 *  
+	 *  
+	 * @param i the agent's view of an insect in this cell
+	 */
+	public void addInsect(InsectView i) {
+		insects.add(i);
+	}
+
+	/**
+	 * Called by the Agent's Sensory Interface when an insect has leaves
+	 * this cell.
+	 *  
+	 * @param i the agent's view of an insect in this cell
+	 */
+	public void removeInsect(InsectView i) {
+		insects.remove(i);
+	}
+	
+	/*
+	 * Air currents are no longer stored per cell. The sensor system keeps
+	 * them for the whole map in an AirCurrentField, and only consults them
+	 * (through getAirCurrentCode) when the air current feature is on.
+	 * 
+	 * NOTE: while the probability of an insect is directly related to the
+	 * air currents in the cell it occupies, however for simple maps where
+	 * only one ACG can add an air current to any particular cell, it is 
+	 * unnecessary to use this information to calculate the state.
+	 */
+
+	/**
+	 * Quantizes the total air current on a cell into a small code:
+	 * 0 when there's (almost) no current; otherwise 1 + the ordinal of the
+	 * nearest of the eight Directions, plus 8 if the current is strong.
+	 * 
+	 * @param x the x component of the total current on the cell
+	 * @param y the y component of the total current on the cell
+	 */
+	public static int getAirCurrentCode(float x, float y) {
+		double mag = Math.sqrt(x * x + y * y);
+		double max = AirCurrentGenerator.MAX_INDIVIDUAL_CURRENT;
+		if (mag < 0.05 * max) return 0;
+
+		// a component counts if it is at least sin(22.5 degrees) of the whole
+		int sx = (Math.abs(x) >= 0.38 * mag) ? (x > 0 ? 1 : -1) : 0;
+		int sy = (Math.abs(y) >= 0.38 * mag) ? (y > 0 ? 1 : -1) : 0;
+		Direction d = directionOf(sx, sy);
+		if (d == null) return 0;
+		
+		int code = 1 + d.ordinal();
+		if (mag >= 0.5 * max) code += Direction.values().length;
+		return code;
+	}
+	
+	/** insect type indices (see getInsectType) */
+	static final int SCARABUG = 0, SCARLITE = 1, SQWORM = 2, OTHER_INSECT = 3;
+	static final int INSECT_TYPES = 4;
+
+	/**
+	 * @return a small index for the insect's type, for agents that keep
+	 *   per-type statistics in arrays
+	 */
+	public static int getInsectType(InsectView iv) {
+		String sn = iv.shortName();
+		if (sn.equals("scarabug")) return SCARABUG;
+		if (sn.equals("scarlite")) return SCARLITE;
+		if (sn.equals("sqworm")) return SQWORM;
+		return OTHER_INSECT;
+	}
+
+	/**
+	 * Get the 'state' of a cell that is outside of the playable area. This should
+	 * either be set to something special, or the same state as an empty cell.
+	 * 
+	 */
+	public static int getOutOfBoundsContentsCode() {
+		return 0;
+	}
+	/**
+	 *  NOTE TO STUDENTS:  This is probably the only method you'll want/need
+	 *  to modify in this class.
+	 * 
+	 *  returns a integer code representing the contents of this cell.
+	 *  For the purposes of the state vector, cell's with the SAME contents
+	 *  code are IDENTICAL. Thus, it is important to think though an appropriate
+	 *  representation for this code.
+	 *  
+	 *  This method simply returns a code based on the number and type of the
+	 *  insects in this cell.
+	 */
+	public int getContentsCode() {
+		int code = 0;
+		String sn;
+		for (InsectView iv : insects) {
+			sn = iv.shortName();
+			if (sn.equals("scarabug")) code += 1;
+			else if (sn.equals("scarlite")) code += 10;
+			else if (sn.equals("sqworm")) code += 100;
+			else {
+				System.err.println("Unknown insect type: " + sn);
+				code += 7;
+			}
+		}
+		return code;
+	}
+}
@@ -0,0 +1,496 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import jig.misc.rd.AirCurrentGenerator;
+
+/**
+ * Lets towers whose reach overlaps choose their actions together.
+ *
+ * The towers form a coordination graph: there is an edge between two
+ * towers when some cell is within the reach of both. A tower reaches the
+ * cells within StateVector.RADIUS of it, and every cell its air currents
+ * have covered (AirCurrentField.reach). Edges are found by registering
+ * each tower with the cells it reaches, so building the graph costs time
+ * proportional to the number of cells covered (and the pairs sharing a
+ * cell), never to the number of towers squared.
+ *
+ * A tower's air currents are only known for the settings it has used, so
+ * edges appear as the towers try their settings. The graph is rebuilt
+ * whenever the set of towers changes or a tower's reach grows, keeping
+ * what it has learned about the towers and edges that remain.
+ *
+ * The value of a joint action is factored into each tower's own action
+ * values (supplied by the agent, see Payoff) plus one learned table per
+ * edge, indexed by the pair of states and the pair of actions:
+ *
+ *   Q(s, a) = sum_i U_i(s_i, a_i) + sum_ij E_ij(s_i, s_j, a_i, a_j)
+ *
+ * Each frame, the towers the scheduler selected decide together using
+ * max-plus message passing over the edges among them. Neighbors that
+ * aren't deciding this frame keep their current action, so their edges
+ * simply add a fixed term to the deciding tower's own values. The result
+ * of message passing is a 'bonus' per action that the agent adds to its
+ * own values before applying its usual selection rule.
+ *
+ * Edge tables are learned with the edge-based update of sparse
+ * cooperative Q-learning: a tower's temporal difference error is split
+ * evenly among its edges. Since towers decide at different times, each
+ * tower applies its own half of an edge's update when it decides.
+ *
+ * Rewards are shared: a tower is credited with its own captures plus
+ * rd.coordinate.share times the captures of its neighbors, so towers
+ * aren't punished for letting a neighbor take the insect.
+ */
+public class CoordinationGraph {
+
+	/** the agent's own (per tower) action values */
+	interface Payoff {
+		/** @return the action values for a state (not modified) */
+		double[] values(StateVector s);
+	}
+
+	/** rounds of max-plus message passing per frame */
+	final int iterations = AgentConfig.getInt("rd.coordinate.iterations", 4);
+
+	final double alpha = AgentConfig.getDouble("rd.coordinate.alpha", 0.1);
+	final double gamma = AgentConfig.getDouble("rd.coordinate.gamma", 0.9);
+
+	/** how much a neighbor's capture is worth, relative to a tower's own */
+	final double share = AgentConfig.getDouble("rd.coordinate.share", 0.5);
+
+	private final LearningAgentSensorSystem sensors;
+	private final int numActions;
+
+	/** towers, in a stable (unique id) order */
+	private final ArrayList<AirCurrentGenerator> towers = new ArrayList<AirCurrentGenerator>();
+	private final HashMap<AirCurrentGenerator, Integer> index = new HashMap<AirCurrentGenerator, Integer>();
+
+	/** edge endpoints, with edgeA[e] < edgeB[e] */
+	private int[] edgeA = new int[0], edgeB = new int[0];
+
+	/** per edge: the joint action values, by pair of states */
+	private ArrayList<HashMap<JointState, float[]>> edgeTables = new ArrayList<HashMap<JointState, float[]>>();
+
+	/** per tower: the edges it belongs to */
+	private int[][] incident = new int[0][];
+
+	/** per edge: the messages to B (from A) and to A (from B), over the receiver's actions */
+	private float[][] msgToB = new float[0][], msgToA = new float[0][];
+
+	/** per tower: the current state and action, and those it was last rewarded for */
+	private StateVector[] state = new StateVector[0], prevState = new StateVector[0];
+	private int[] action = new int[0], prevAction = new int[0];
+	private double[] reward = new double[0];
+
+	/** per tower and incident edge: the joint state and action at the tower's last decision */
+	private JointState[][] prevJoint = new JointState[0][];
+	private int[][] prevJointAction = new int[0][];
+
+	/** per tower: the captures (own and neighbors') already credited */
+	private int[] seenOwn = new int[0], seenNeighbors = new int[0];
+
+	/** per tower: true if it is deciding on this frame */
+	private boolean[] deciding = new boolean[0];
+
+	/** per tower: the incoming message sum, and the bonus returned to the agent */
+	private double[][] incoming = new double[0][], bonus = new double[0][];
+
+	private final ArrayList<Integer> decidingNow = new ArrayList<Integer>();
+
+	/** the generator set and reach versions the graph was built for */
+	private int builtGenerators = -1, builtReach = -1;
+
+	private final float[] scratch;
+
+	public CoordinationGraph(LearningAgentSensorSystem sensors, int numActions) {
+		this.sensors = sensors;
+		this.numActions = numActions;
+		this.scratch = new float[numActions];
+	}
+
+	/**
+	 * @return the number of edges in the graph
+	 */
+	public int edges() {
+		return edgeA.length;
+	}
+
+	/**
+	 * Computes the capture credit for a tower since it last asked: its own
+	 * new captures plus a share of its neighbors'.
+	 */
+	public double sharedCaptures(AirCurrentGenerator acg) {
+		refresh();
+		int i = index.get(acg);
+		int own = sensors.generators.get(acg);
+		int nb = neighborCaptures(i);
+		double credit = (own - seenOwn[i]) + share * (nb - seenNeighbors[i]);
+		seenOwn[i] = own;
+		seenNeighbors[i] = nb;
+		return credit;
+	}
+
+	/**
+	 * Adds a tower to this frame's joint decision.
+	 *
+	 * @param s the state it is deciding in
+	 * @param r the reward for its previous action (since its last decision)
+	 */
+	public void prepare(AirCurrentGenerator acg, StateVector s, double r) {
+		refresh();
+		int i = index.get(acg);
+		state[i] = s;
+		reward[i] = r;
+		if (!deciding[i]) {
+			deciding[i] = true;
+			decidingNow.add(i);
+		}
+	}
+
+	/**
+	 * Runs max-plus over the towers prepared for this frame. Afterwards,
+	 * bonus(acg) gives the value each action adds through the tower's edges.
+	 */
+	public void coordinate(Payoff own) {
+		// local terms: edges to neighbors that keep their current action
+		for (int i : decidingNow) {
+			double[] b = bonus[i];
+			for (int a = 0; a < numActions; a++) {
+				b[a] = 0.0;
+				incoming[i][a] = 0.0;
+			}
+			for (int e : incident[i]) {
+				int j = other(e, i);
+				if (deciding[j] || action[j] < 0 || state[j] == null) continue;
+				float[] t = table(e, i, j);
+				if (t == null) continue;
+				for (int a = 0; a < numActions; a++) b[a] += edgeValue(t, e, i, a, action[j]);
+			}
+		}
+		for (int e = 0; e < edgeA.length; e++) {
+			if (deciding[edgeA[e]] && deciding[edgeB[e]]) {
+				Arrays.fill(msgToA[e], 0f);
+				Arrays.fill(msgToB[e], 0f);
+			}
+		}
+
+		// max-plus, updating messages in place
+		for (int it = 0; it < iterations; it++) {
+			for (int e = 0; e < edgeA.length; e++) {
+				int a = edgeA[e], b = edgeB[e];
+				if (!deciding[a] || !deciding[b]) continue;
+				float[] t = table(e, a, b);
+				sendMessage(e, a, b, t, msgToB[e], msgToA[e], own);
+				sendMessage(e, b, a, t, msgToA[e], msgToB[e], own);
+			}
+		}
+
+		for (int i : decidingNow) {
+			for (int a = 0; a < numActions; a++) bonus[i][a] += incoming[i][a];
+		}
+	}
+
+	/**
+	 * Sends the message from tower i to tower j along edge e:
+	 *
+	 *   m(a_j) = max over a_i of U_i(a_i) + local_i(a_i) + incoming_i(a_i)
+	 *            - m_{j->i}(a_i) + E(a_i, a_j)
+	 *
+	 * normalized to zero mean so messages stay bounded on cycles.
+	 */
+	private void sendMessage(int e, int i, int j, float[] t, float[] out, float[] in, Payoff own) {
+		double[] u = own.values(state[i]);
+		double sum = 0.0;
+		for (int aj = 0; aj < numActions; aj++) {
+			double best = Double.NEGATIVE_INFINITY;
+			for (int ai = 0; ai < numActions; ai++) {
+				double v = u[ai] + bonus[i][ai] + incoming[i][ai] - in[ai];
+				if (t != null) v += edgeValue(t, e, i, ai, aj);
+				if (v > best) best = v;
+			}
+			scratch[aj] = (float) best;
+			sum += best;
+		}
+		float mean = (float) (sum / numActions);
+		for (int aj = 0; aj < numActions; aj++) {
+			float m = scratch[aj] - mean;
+			incoming[j][aj] += m - out[aj];
+			out[aj] = m;
+		}
+	}
+
+	/**
+	 * @return the value each action gains through the tower's edges; only
+	 *   valid after coordinate() on the same frame
+	 */
+	public double[] bonus(AirCurrentGenerator acg) {
+		return bonus[index.get(acg)];
+	}
+
+	/**
+	 * Records the action a prepared tower actually took.
+	 */
+	public void chose(AirCurrentGenerator acg, int a) {
+		action[index.get(acg)] = a;
+	}
+
+	/**
+	 * Updates the edge tables for the towers that decided this frame and
+	 * ends the frame.
+	 */
+	public void learn(Payoff own) {
+		for (int i : decidingNow) {
+			int[] inc = incident[i];
+			if (inc.length > 0 && prevAction[i] >= 0 && state[i] != null) {
+				double before = own.values(prevState[i])[prevAction[i]];
+				for (int k = 0; k < inc.length; k++) {
+					if (prevJoint[i][k] == null) continue;
+					float[] t = edgeTables.get(inc[k]).get(prevJoint[i][k]);
+					if (t != null) before += 0.5 * t[prevJointAction[i][k]];
+				}
+				double after = own.values(state[i])[action[i]];
+				for (int k = 0; k < inc.length; k++) {
+					int j = other(inc[k], i);
+					if (action[j] < 0 || state[j] == null) continue;
+					float[] t = table(inc[k], i, j);
+					if (t != null) after += 0.5 * edgeValue(t, inc[k], i, action[i], action[j]);
+				}
+				double delta = (reward[i] + gamma * after - before) / inc.length;
+				for (int k = 0; k < inc.length; k++) {
+					if (prevJoint[i][k] == null) continue;
+					HashMap<JointState, float[]> m = edgeTables.get(inc[k]);
+					float[] t = m.get(prevJoint[i][k]);
+					if (t == null) m.put(prevJoint[i][k], t = new float[numActions * numActions]);
+					t[prevJointAction[i][k]] += (float) (alpha * delta);
+				}
+			}
+
+			// remember the context this decision was made in
+			for (int k = 0; k < inc.length; k++) {
+				int e = inc[k], j = other(e, i);
+				if (action[j] < 0 || state[j] == null) {
+					prevJoint[i][k] = null;
+					continue;
+				}
+				prevJoint[i][k] = (i == edgeA[e]) ? new JointState(state[i], state[j]) : new JointState(state[j], state[i]);
+				prevJointAction[i][k] = (i == edgeA[e]) ? action[i] * numActions + action[j] : action[j] * numActions + action[i];
+			}
+			prevState[i] = state[i];
+			prevAction[i] = action[i];
+			deciding[i] = false;
+		}
+		decidingNow.clear();
+	}
+
+	private int other(int e, int i) {
+		return edgeA[e] == i ? edgeB[e] : edgeA[e];
+	}
+
+	/**
+	 * @return the edge table for the current states of i and j, or null if
+	 *   that pair of states hasn't been rewarded yet
+	 */
+	private float[] table(int e, int i, int j) {
+		JointState k = (i == edgeA[e]) ? new JointState(state[i], state[j]) : new JointState(state[j], state[i]);
+		return edgeTables.get(e).get(k);
+	}
+
+	/** E(a_i, a_j), whichever end of the edge i is */
+	private float edgeValue(float[] t, int e, int i, int ai, int aj) {
+		return (i == edgeA[e]) ? t[ai * numActions + aj] : t[aj * numActions + ai];
+	}
+
+	private int neighborCaptures(int i) {
+		int n = 0;
+		for (int e : incident[i]) n += sensors.generators.get(towers.get(other(e, i)));
+		return n;
+	}
+
+	/**
+	 * Rebuilds the graph if the towers or their reach changed since it was
+	 * last built.
+	 */
+	private void refresh() {
+		if (builtGenerators != sensors.getGeneratorsVersion()
+				|| builtReach != sensors.getAirCurrents().reachVersion()) {
+			rebuild();
+		}
+	}
+
+	/** identifies an edge across rebuilds, by its towers' unique ids */
+	private long edgeKey(int a, int b) {
+		return ((long) towers.get(a).getUniqueID() << 32) | (towers.get(b).getUniqueID() & 0xffffffffL);
+	}
+
+	/**
+	 * Refreshes the tower list and finds the overlapping pairs. The state
+	 * of towers that remain, and the tables of edges that remain, are kept.
+	 */
+	private void rebuild() {
+		builtGenerators = sensors.getGeneratorsVersion();
+		AirCurrentField air = sensors.getAirCurrents();
+		builtReach = air.reachVersion();
+
+		// what the old graph knew, by tower and by edge
+		HashMap<AirCurrentGenerator, Integer> oldIndex = new HashMap<AirCurrentGenerator, Integer>(index);
+		HashMap<Long, Integer> oldEdges = new HashMap<Long, Integer>();
+		for (int e = 0; e < edgeA.length; e++) oldEdges.put(edgeKey(edgeA[e], edgeB[e]), e);
+		int[][] oldIncident = incident;
+		ArrayList<HashMap<JointState, float[]>> oldTables = edgeTables;
+		StateVector[] oldState = state, oldPrevState = prevState;
+		int[] oldAction = action, oldPrevAction = prevAction, oldSeenOwn = seenOwn;
+		double[] oldReward = reward;
+		JointState[][] oldPrevJoint = prevJoint;
+		int[][] oldPrevJointAction = prevJointAction;
+		boolean[] oldDeciding = deciding;
+		double[][] oldIncoming = incoming, oldBonus = bonus;
+		ArrayList<Integer> oldDecidingNow = new ArrayList<Integer>(decidingNow);
+		ArrayList<AirCurrentGenerator> oldTowers = new ArrayList<AirCurrentGenerator>(towers);
+
+		towers.clear();
+		towers.addAll(sensors.generators.keySet());
+		Collections.sort(towers, new Comparator<AirCurrentGenerator>() {
+			public int compare(AirCurrentGenerator a, AirCurrentGenerator b) {
+				return a.getUniqueID() - b.getUniqueID();
+			}
+		});
+		int n = towers.size();
+		index.clear();
+		for (int i = 0; i < n; i++) index.put(towers.get(i), i);
+
+		// register each tower with the cells it reaches; towers that share
+		// a cell share an edge
+		int w = sensors.getWorldWidth(), h = sensors.getWorldHeight();
+		int[][] cellTowers = new int[w * h][];
+		int r = StateVector.RADIUS;
+		HashSet<Long> pairs = new HashSet<Long>();
+		ArrayList<int[]> found = new ArrayList<int[]>();
+		for (int i = 0; i < n; i++) {
+			AirCurrentGenerator acg = towers.get(i);
+			BitSet reach = air.reach(acg);
+			for (int x = acg.getGridX() - r, xe = acg.getGridX() + acg.getGridWidth() + r; x < xe; x++) {
+				for (int y = acg.getGridY() - r, ye = acg.getGridY() + acg.getGridHeight() + r; y < ye; y++) {
+					if (x < 0 || y < 0 || x >= w || y >= h) continue;
+					reach.set(x * h + y);
+				}
+			}
+			for (int c = reach.nextSetBit(0); c >= 0 && c < w * h; c = reach.nextSetBit(c + 1)) {
+				int[] here = cellTowers[c];
+				if (here != null) {
+					for (int j : here) {
+						if (pairs.add(((long) j << 32) | i)) found.add(new int[] { j, i });
+					}
+				}
+				cellTowers[c] = append(here, i);
+			}
+		}
+
+		int m = found.size();
+		edgeA = new int[m];
+		edgeB = new int[m];
+		edgeTables = new ArrayList<HashMap<JointState, float[]>>(m);
+		msgToA = new float[m][numActions];
+		msgToB = new float[m][numActions];
+		int[] degree = new int[n];
+		for (int e = 0; e < m; e++) {
+			edgeA[e] = found.get(e)[0];
+			edgeB[e] = found.get(e)[1];
+			Integer old = oldEdges.get(edgeKey(edgeA[e], edgeB[e]));
+			edgeTables.add(old != null ? oldTables.get(old) : new HashMap<JointState, float[]>());
+			degree[edgeA[e]]++;
+			degree[edgeB[e]]++;
+		}
+		incident = new int[n][];
+		for (int i = 0; i < n; i++) incident[i] = new int[degree[i]];
+		int[] fill = new int[n];
+		for (int e = 0; e < m; e++) {
+			incident[edgeA[e]][fill[edgeA[e]]++] = e;
+			incident[edgeB[e]][fill[edgeB[e]]++] = e;
+		}
+
+		state = new StateVector[n];
+		prevState = new StateVector[n];
+		action = new int[n];
+		prevAction = new int[n];
+		Arrays.fill(action, -1);
+		Arrays.fill(prevAction, -1);
+		reward = new double[n];
+		prevJoint = new JointState[n][];
+		prevJointAction = new int[n][];
+		deciding = new boolean[n];
+		incoming = new double[n][numActions];
+		bonus = new double[n][numActions];
+		seenOwn = new int[n];
+		seenNeighbors = new int[n];
+		for (int i = 0; i < n; i++) {
+			prevJoint[i] = new JointState[degree[i]];
+			prevJointAction[i] = new int[degree[i]];
+			Integer o = oldIndex.get(towers.get(i));
+			if (o == null) {
+				seenOwn[i] = sensors.generators.get(towers.get(i));
+				continue;
+			}
+			state[i] = oldState[o];
+			prevState[i] = oldPrevState[o];
+			action[i] = oldAction[o];
+			prevAction[i] = oldPrevAction[o];
+			reward[i] = oldReward[o];
+			deciding[i] = oldDeciding[o];
+			incoming[i] = oldIncoming[o];
+			bonus[i] = oldBonus[o];
+			seenOwn[i] = oldSeenOwn[o];
+			// the context of its last decision, along the edges that remain
+			for (int k = 0; k < degree[i]; k++) {
+				int e = incident[i][k];
+				Integer old = oldEdges.get(edgeKey(edgeA[e], edgeB[e]));
+				if (old == null) continue;
+				for (int ok = 0; ok < oldIncident[o].length; ok++) {
+					if (oldIncident[o][ok] != old) continue;
+					prevJoint[i][k] = oldPrevJoint[o][ok];
+					prevJointAction[i][k] = oldPrevJointAction[o][ok];
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) seenNeighbors[i] = neighborCaptures(i);
+		decidingNow.clear();
+		for (int o : oldDecidingNow) {
+			Integer i = index.get(oldTowers.get(o));
+			if (i != null) decidingNow.add(i);
+		}
+	}
+
+	private static int[] append(int[] a, int v) {
+		if (a == null) return new int[] { v };
+		int[] b = new int[a.length + 1];
+		System.arraycopy(a, 0, b, 0, a.length);
+		b[a.length] = v;
+		return b;
+	}
+
+	/**
+	 * The states of an edge's two towers (lower index first).
+	 */
+	private static class JointState {
+		final StateVector a, b;
+		final int hash;
+
+		JointState(StateVector a, StateVector b) {
+			this.a = a;
+			this.b = b;
+			this.hash = 31 * a.hashCode() + b.hashCode();
+		}
+
+		public int hashCode() { return hash; }
+
+		public boolean equals(Object o) {
+			if (!(o instanceof JointState)) return false;
+			JointState j = (JointState) o;
+			return hash == j.hash && a.equals(j.a) && b.equals(j.b);
+		}
+	}
+}
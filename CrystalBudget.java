@@ -0,0 +1,124 @@
+import java.util.Collection;
+import java.util.HashMap;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.PlayingField;
+
+/**
+ * Decides how much a crystal of power costs a tower, in reward units.
+ *
+ * By default the price is fixed (rd.budget.penalty, 1/24 per crystal), as
+ * it always has been. With rd.budget=true the price adapts online to hold
+ * the whole map to a target burn rate: the price acts as a Lagrange
+ * multiplier on the constraint 'burn rate <= target', and is raised when
+ * the towers burn crystals faster than the target and lowered (never below
+ * zero) when they burn slower.
+ *
+ * The target is rd.budget.rate crystals per second if that is set.
+ * Otherwise it is whatever rate would make the crystals now on the field
+ * last another rd.budget.horizon seconds, so the same settings work on
+ * maps with very different supplies.
+ *
+ * Burn rates are exponentially weighted moving averages (time constant
+ * rd.budget.tau seconds) of each tower's getConsumption() deltas, measured
+ * in simulated time.
+ */
+public class CrystalBudget {
+
+	/** adapt the price (otherwise it stays at its initial value) */
+	final boolean adaptive = AgentConfig.getBoolean("rd.budget", false);
+
+	/** a fixed target, in crystals per second (0 means derive it from the horizon) */
+	final double targetRate = AgentConfig.getDouble("rd.budget.rate", 0.0);
+
+	/** how long the crystals on the field should last, in seconds */
+	final double horizon = AgentConfig.getDouble("rd.budget.horizon", 600.0);
+
+	/** time constant of the burn rate averages, in seconds */
+	final double tau = AgentConfig.getDouble("rd.budget.tau", 10.0);
+
+	/** how fast the price moves, per second, per unit of relative overspend */
+	final double eta = AgentConfig.getDouble("rd.budget.eta", 0.05);
+
+	final double maxPrice = AgentConfig.getDouble("rd.budget.maxPenalty", 10.0);
+
+	/** the current price of a crystal */
+	private double price = AgentConfig.getDouble("rd.budget.penalty", 1.0 / 24.0);
+
+	private final HashMap<AirCurrentGenerator, Tower> towers = new HashMap<AirCurrentGenerator, Tower>();
+	private double burnRate;
+	private double target;
+
+	/**
+	 * Measures consumption since the last update and adjusts the price.
+	 * Call once per step.
+	 *
+	 * @param deltaMS simulated time since the last update
+	 */
+	public void update(long deltaMS, PlayingField pf, Collection<AirCurrentGenerator> generators) {
+		if (deltaMS <= 0) return;
+		double dt = deltaMS / 1000.0;
+		double w = 1.0 - Math.exp(-dt / tau);
+
+		burnRate = 0.0;
+		for (AirCurrentGenerator acg : generators) {
+			Tower t = towers.get(acg);
+			if (t == null) {
+				t = new Tower(acg.getConsumption());
+				towers.put(acg, t);
+			}
+			int used = acg.getConsumption();
+			t.rate += w * ((used - t.consumed) / dt - t.rate);
+			t.consumed = used;
+			burnRate += t.rate;
+		}
+
+		target = (targetRate > 0) ? targetRate : pf.countCrystals() / horizon;
+		if (adaptive) {
+			double overspend = (burnRate - target) / Math.max(target, 1e-3);
+			price = Math.max(0.0, Math.min(maxPrice, price + eta * dt * overspend));
+		}
+	}
+
+	/**
+	 * @return the (negative) reward for using the given number of crystals
+	 */
+	public double penalty(int crystalsUsed) {
+		return -price * crystalsUsed;
+	}
+
+	public double getPrice() {
+		return price;
+	}
+
+	/**
+	 * @return the map's burn rate, in crystals per second
+	 */
+	public double getBurnRate() {
+		return burnRate;
+	}
+
+	/**
+	 * @return the target burn rate, in crystals per second
+	 */
+	public double getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return a tower's burn rate, in crystals per second
+	 */
+	public double getBurnRate(AirCurrentGenerator acg) {
+		Tower t = towers.get(acg);
+		return t == null ? 0.0 : t.rate;
+	}
+
+	private static class Tower {
+		int consumed;
+		double rate;
+
+		Tower(int consumed) {
+			this.consumed = consumed;
+		}
+	}
+}
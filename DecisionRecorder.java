@@ -0,0 +1,191 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import jig.misc.rd.AirCurrentGenerator;
+
+/**
+ * A flight recorder for an agent's decisions.
+ *
+ * Every decision is copied into a ring buffer of primitive arrays: when it
+ * happened (simulated ms since the agent started), which tower made it,
+ * the state's key (StateVector.longKey), a snapshot of the state's action
+ * values, the action chosen and the reward the tower's previous action
+ * earned. Recording is a handful of array stores, so it can always be on
+ * (rd.recorder, true by default); the buffer holds the last
+ * rd.recorder.records decisions (65536 by default, roughly the last half
+ * hour of a busy map) and overwrites the oldest.
+ *
+ * Nothing is formatted while the game runs. dump() writes the buffer to a
+ * file in a compact binary form, and main() (the offline dump tool) turns
+ * a dump into text:
+ *
+ *   java -cp rd881.jar:. DecisionRecorder decisions.rec [gx,gy] [seconds]
+ *
+ * prints every decision in the file, or only those of the tower at gx,gy,
+ * or only the last so many (simulated) seconds of them.
+ */
+public class DecisionRecorder {
+
+	static final int MAGIC = 0x52444452; // "RDDR"
+	static final int VERSION = 1;
+
+	final boolean enabled = AgentConfig.getBoolean("rd.recorder", true);
+
+	private final int capacity;
+	private final int actions;
+
+	private final long[] time;
+	private final int[] tower;
+	private final long[] key;
+	private final byte[] action;
+	private final float[] reward;
+	private final float[] values;
+
+	/** the number of decisions ever recorded (the next one goes at next % capacity) */
+	private long next;
+	private long clockMS;
+
+	/**
+	 * @param actions the number of action values per state
+	 */
+	public DecisionRecorder(int actions) {
+		this.actions = actions;
+		this.capacity = enabled ? Math.max(1, AgentConfig.getInt("rd.recorder.records", 65536)) : 0;
+		time = new long[capacity];
+		tower = new int[capacity];
+		key = new long[capacity];
+		action = new byte[capacity];
+		reward = new float[capacity];
+		values = new float[capacity * actions];
+	}
+
+	/**
+	 * Advances the recorder's clock; call once per agent step.
+	 */
+	public void advance(long deltaMS) {
+		clockMS += deltaMS;
+	}
+
+	/**
+	 * @return a tower's id in the recording (its grid location)
+	 */
+	static int towerId(AirCurrentGenerator acg) {
+		return (acg.getGridX() << 16) | (acg.getGridY() & 0xffff);
+	}
+
+	/**
+	 * Records one decision.
+	 *
+	 * @param q the state's action values when the action was chosen
+	 * @param chosen the index of the action chosen
+	 * @param r the reward for the tower's previous action
+	 */
+	public void record(AirCurrentGenerator acg, StateVector state, double[] q, int chosen, double r) {
+		if (capacity == 0) return;
+		int i = (int) (next % capacity);
+		time[i] = clockMS;
+		tower[i] = towerId(acg);
+		key[i] = state.longKey();
+		action[i] = (byte) chosen;
+		reward[i] = (float) r;
+		int base = i * actions;
+		for (int a = 0; a < actions; a++) values[base + a] = (float) q[a];
+		next++;
+	}
+
+	/** @return the number of decisions in the buffer */
+	public int size() {
+		return (int) Math.min(next, capacity);
+	}
+
+	/**
+	 * Writes the buffered decisions, oldest first.
+	 */
+	public void dump(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			int n = size();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(actions);
+			out.writeInt(n);
+			for (long k = next - n; k < next; k++) {
+				int i = (int) (k % capacity);
+				out.writeLong(time[i]);
+				out.writeInt(tower[i]);
+				out.writeLong(key[i]);
+				out.writeByte(action[i]);
+				out.writeFloat(reward[i]);
+				for (int a = 0; a < actions; a++) out.writeFloat(values[i * actions + a]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Prints a dump as text (see the class comment).
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: DecisionRecorder dump-file [gx,gy] [seconds]");
+			System.exit(2);
+		}
+		int only = -1;
+		if (args.length > 1 && !args[1].equals("all")) {
+			String[] xy = args[1].split(",");
+			only = (Integer.parseInt(xy[0]) << 16) | Integer.parseInt(xy[1]);
+		}
+		long window = args.length > 2 ? Long.parseLong(args[2]) * 1000 : Long.MAX_VALUE;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a decision recording");
+			int actions = in.readInt();
+			int n = in.readInt();
+			long[] t = new long[n];
+			int[] tw = new int[n];
+			long[] k = new long[n];
+			int[] a = new int[n];
+			float[] r = new float[n];
+			float[] q = new float[n * actions];
+			try {
+				for (int i = 0; i < n; i++) {
+					t[i] = in.readLong();
+					tw[i] = in.readInt();
+					k[i] = in.readLong();
+					a[i] = in.readByte() & 0xff;
+					r[i] = in.readFloat();
+					for (int j = 0; j < actions; j++) q[i * actions + j] = in.readFloat();
+				}
+			} catch (EOFException e) {
+				System.err.println("Recording is truncated");
+			}
+
+			long end = n == 0 ? 0 : t[n - 1];
+			for (int i = 0; i < n; i++) {
+				if (only >= 0 && tw[i] != only) continue;
+				if (end - t[i] > window) continue;
+				StringBuilder sb = new StringBuilder();
+				sb.append(String.format("%9.1fs tower %d,%d state %016x reward %7.3f action %2d",
+						t[i] / 1000.0, tw[i] >>> 16, tw[i] & 0xffff, k[i], r[i], a[i]));
+				if (actions == munchersOne.potentials.length) {
+					AgentAction act = munchersOne.potentials[a[i]];
+					sb.append(String.format(" (power %d %s)", act.getPower(), act.getDirection()));
+				}
+				sb.append("\n   Q:");
+				for (int j = 0; j < actions; j++) sb.append(String.format(" %.2f", q[i * actions + j]));
+				System.out.println(sb);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import jig.misc.rd.AirCurrentGenerator;
+
+/**
+ * Decides which towers get to make a decision on a given frame.
+ *
+ * A tower becomes due for a decision for one of three reasons:
+ *
+ *   - event triggered: an insect entered, left or moved within the
+ *     tower's neighborhood (the sensors tell us which cells changed, so
+ *     we don't need to rebuild every tower's StateVector to find out)
+ *   - fixed rate: the tower hasn't decided for rd.schedule.tickMS
+ *   - staleness: the tower hasn't decided for rd.schedule.staleMS; these
+ *     towers are served before any others so no tower is ever idle
+ *     for long
+ *
+ * At most rd.schedule.cap towers are selected per frame (0 means no cap).
+ * Selection is round-robin, picking up where the previous frame left off,
+ * so a large map spreads its decisions across frames instead of stalling
+ * a single one.
+ *
+ * Times are measured in simulated milliseconds (the sum of the deltaMS
+ * values passed to step) rather than wall clock time.
+ *
+ * An agent with a FrameBudget calls setPrioritized(): the selected towers
+ * are then ordered stale ones first, then by the number of insects near
+ * them (from the sensors' InsectDensityIndex), so if the frame's time
+ * runs out it's the quietest towers that wait. The agent hands the towers
+ * it didn't get to back with defer(), and they stay due.
+ */
+public class DecisionScheduler implements CellChangeListener {
+
+	/** decide at least this often, even if nothing changes (0 disables) */
+	final long tickMS = AgentConfig.getLong("rd.schedule.tickMS", 0);
+
+	/** never let a tower go longer than this without deciding (0 disables) */
+	final long staleMS = AgentConfig.getLong("rd.schedule.staleMS", 1000);
+
+	/** maximum number of decisions per frame (0 means unlimited) */
+	final int cap = AgentConfig.getInt("rd.schedule.cap", 16);
+
+	/** reconsider as soon as the neighborhood changes */
+	final boolean eventTriggered = AgentConfig.getBoolean("rd.schedule.events", true);
+
+	private final LearningAgentSensorSystem sensors;
+
+	/** towers, in a stable (unique id) order so round-robin is reproducible */
+	private final ArrayList<AirCurrentGenerator> towers = new ArrayList<AirCurrentGenerator>();
+	private final HashMap<AirCurrentGenerator, Integer> index = new HashMap<AirCurrentGenerator, Integer>();
+
+	private boolean[] dirty = new boolean[0];
+	private boolean[] timed = new boolean[0];
+	private long[] lastDecision = new long[0];
+	private int[] takenOnFrame = new int[0];
+	private long[] previousDecision = new long[0];
+	private boolean[] stale = new boolean[0];
+	private int[] priority = new int[0];
+
+	/** for each cell, the indices of towers whose neighborhood contains it */
+	private int[][][] watchers;
+
+	/** the tower index where the next round-robin pass starts */
+	private int cursor;
+
+	/** the generator set version the tower list was built for */
+	private int builtGenerators = -1;
+
+	/** simulated time, in ms */
+	private long now;
+
+	private int frame;
+
+	private boolean prioritized;
+
+	private final ArrayList<AirCurrentGenerator> selected = new ArrayList<AirCurrentGenerator>();
+
+	public DecisionScheduler(LearningAgentSensorSystem sensors) {
+		this.sensors = sensors;
+		sensors.setCellChangeListener(this);
+	}
+
+	/**
+	 * Picks the towers that should decide during this frame.
+	 *
+	 * @param deltaMS the number of milliseconds since the last frame
+	 * @return the selected towers; the list is reused on the next call
+	 */
+	public List<AirCurrentGenerator> select(long deltaMS) {
+		now += deltaMS;
+		frame++;
+		if (sensors.generators == null) {
+			selected.clear();
+			return selected;
+		}
+		if (builtGenerators != sensors.getGeneratorsVersion()) rebuild();
+
+		selected.clear();
+		int n = towers.size();
+		int limit = (cap <= 0) ? n : Math.min(cap, n);
+		int last = -1;
+
+		// stale towers first, so nobody starves when the cap is tight
+		if (staleMS > 0) {
+			for (int k = 0; k < n && selected.size() < limit; k++) {
+				int i = (cursor + k) % n;
+				if (now - lastDecision[i] >= staleMS) {
+					take(i, true);
+					stale[i] = true;
+					last = i;
+				}
+			}
+		}
+		for (int k = 0; k < n && selected.size() < limit; k++) {
+			int i = (cursor + k) % n;
+			if (takenOnFrame[i] == frame) continue;
+			boolean tick = tickMS > 0 && now - lastDecision[i] >= tickMS;
+			if (tick || (eventTriggered && dirty[i])) {
+				take(i, tick);
+				last = i;
+			}
+		}
+		if (last >= 0) cursor = (last + 1) % n;
+		if (prioritized && selected.size() > 1) prioritize();
+		return selected;
+	}
+
+	/**
+	 * Orders the selected towers stale first, then busiest first.
+	 */
+	private void prioritize() {
+		InsectDensityIndex density = sensors.getInsectDensity();
+		int r = StateVector.WATCH_RADIUS;
+		for (AirCurrentGenerator acg : selected) {
+			int i = index.get(acg);
+			int x = acg.getGridX(), y = acg.getGridY();
+			priority[i] = density == null ? 0 : density.count(InsectDensityIndex.ALL, x - r, y - r,
+					x + acg.getGridWidth() + r, y + acg.getGridHeight() + r);
+		}
+		Collections.sort(selected, new Comparator<AirCurrentGenerator>() {
+			public int compare(AirCurrentGenerator a, AirCurrentGenerator b) {
+				int i = index.get(a), j = index.get(b);
+				if (stale[i] != stale[j]) return stale[i] ? -1 : 1;
+				return priority[j] - priority[i];
+			}
+		});
+	}
+
+	/**
+	 * Orders each frame's towers by urgency (see the class comment).
+	 */
+	public void setPrioritized(boolean prioritized) {
+		this.prioritized = prioritized;
+	}
+
+	/**
+	 * Hands back a tower that was selected but didn't get to decide, so it
+	 * is still due (and no less stale) on the next frame.
+	 */
+	public void defer(AirCurrentGenerator acg) {
+		Integer i = index.get(acg);
+		if (i == null) return;
+		dirty[i] = true;
+		lastDecision[i] = previousDecision[i];
+		takenOnFrame[i] = 0;
+	}
+
+	/**
+	 * @return <code>true</code> iff the tower was selected this frame because
+	 *   of a tick or the staleness bound, in which case it should decide even
+	 *   if its StateVector hasn't changed
+	 */
+	public boolean isTimedDecision(AirCurrentGenerator acg) {
+		Integer i = index.get(acg);
+		return i != null && timed[i];
+	}
+
+	private void take(int i, boolean isTimed) {
+		selected.add(towers.get(i));
+		dirty[i] = false;
+		timed[i] = isTimed;
+		stale[i] = false;
+		previousDecision[i] = lastDecision[i];
+		lastDecision[i] = now;
+		takenOnFrame[i] = frame;
+	}
+
+	/**
+	 * Called by the sensors (while draining events) when a cell's contents
+	 * change.
+	 */
+	public void cellChanged(int gx, int gy) {
+		if (watchers == null || gx < 0 || gy < 0 || gx >= watchers.length || gy >= watchers[gx].length) return;
+		int[] w = watchers[gx][gy];
+		if (w == null) return;
+		for (int i : w) dirty[i] = true;
+	}
+
+	/**
+	 * Refreshes the tower list and the per-cell watcher lists.
+	 */
+	private void rebuild() {
+		builtGenerators = sensors.getGeneratorsVersion();
+		towers.clear();
+		towers.addAll(sensors.generators.keySet());
+		Collections.sort(towers, new Comparator<AirCurrentGenerator>() {
+			public int compare(AirCurrentGenerator a, AirCurrentGenerator b) {
+				return a.getUniqueID() - b.getUniqueID();
+			}
+		});
+		int n = towers.size();
+		index.clear();
+		for (int i = 0; i < n; i++) index.put(towers.get(i), i);
+
+		dirty = new boolean[n];
+		timed = new boolean[n];
+		lastDecision = new long[n];
+		takenOnFrame = new int[n];
+		previousDecision = new long[n];
+		stale = new boolean[n];
+		priority = new int[n];
+		for (int i = 0; i < n; i++) lastDecision[i] = Long.MIN_VALUE / 2;
+		cursor = 0;
+
+		int w = sensors.getWorldWidth(), h = sensors.getWorldHeight();
+		watchers = new int[w][h][];
+		int r = StateVector.WATCH_RADIUS;
+		for (int i = 0; i < n; i++) {
+			AirCurrentGenerator acg = towers.get(i);
+			for (int x = acg.getGridX() - r, xe = acg.getGridX() + acg.getGridWidth() + r; x < xe; x++) {
+				for (int y = acg.getGridY() - r, ye = acg.getGridY() + acg.getGridHeight() + r; y < ye; y++) {
+					if (x < 0 || y < 0 || x >= w || y >= h) continue;
+					watchers[x][y] = append(watchers[x][y], i);
+				}
+			}
+		}
+	}
+
+	private static int[] append(int[] a, int v) {
+		if (a == null) return new int[] { v };
+		int[] b = new int[a.length + 1];
+		System.arraycopy(a, 0, b, 0, a.length);
+		b[a.length] = v;
+		return b;
+	}
+}
@@ -0,0 +1,89 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains munchersOne with several worker processes sharing one table.
+ *
+ * Starts a ParameterServer on a free localhost port, then plays a headless
+ * game per worker (each its own JVM, see GameRunner) with rd.ps pointing
+ * at the server, so every worker learns from all the others' experience.
+ * When the workers are done it prints their results and the server's
+ * traffic; with rd.ps.table set the trained table stays in that file, and
+ * with rd.policy.export it's also frozen into a policy for policyAgent,
+ * unless a worker failed (then it exits with status 1).
+ *
+ * Everything runs on this machine, so this is also how to try the
+ * parameter server out; the workers' own counts of what they sent and
+ * received are at the end of each one's game.out.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. DistributedTraining level.dat [workers] [seconds]
+ */
+public class DistributedTraining {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: DistributedTraining level.dat [workers] [seconds]");
+			System.exit(2);
+		}
+		final String level = args[0];
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final long seconds = args.length > 2 ? Long.parseLong(args[2]) : 600;
+
+		ParameterServer ps = new ParameterServer(0, munchersOne.potentials.length);
+		ps.start();
+		System.out.println("Parameter server listening on localhost:" + ps.getPort());
+
+		final GameRunner runner = new GameRunner(new File("distributed"));
+		// rd.policy.export is ours: a worker would export its own local table
+		// to the same file when it exits (an empty setting counts as unset)
+		final List<String> jvmArgs = Arrays.asList("-Drd.ps=localhost:" + ps.getPort(), "-Drd.policy.export=");
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<Future<GameResult>> games = new ArrayList<Future<GameResult>>();
+		for (int w = 1; w <= workers; w++) {
+			final long seed = w;
+			games.add(pool.submit(new Callable<GameResult>() {
+				public GameResult call() throws Exception {
+					return runner.play(level, "munchersFactory", seed, seconds, jvmArgs);
+				}
+			}));
+		}
+
+		int w = 1, failed = 0;
+		for (Future<GameResult> f : games) {
+			try {
+				GameResult r = f.get();
+				System.out.println(String.format("worker %d: captured %d escaped %d consumed %d ratio %.3f",
+						w, r.captured(), r.escaped(), r.consumed(), r.captureRatio()));
+			} catch (Exception e) {
+				System.err.println("Worker " + w + " failed: " + e.getCause());
+				failed++;
+			}
+			w++;
+		}
+		pool.shutdown();
+		System.out.println("Server: " + ps.stats());
+		ps.close();
+		if (failed > 0) {
+			// the table didn't learn from the games it was meant to (GameRunner
+			// also fails a game in which no insect finished), so don't pass it on
+			System.err.println(failed + " of " + workers + " workers failed; not exporting a policy");
+			System.exit(1);
+		}
+
+		String export = AgentConfig.getString("rd.policy.export", null);
+		if (export != null) {
+			FrozenPolicy.Builder b = new FrozenPolicy.Builder(munchersOne.potentials.length);
+			FrozenPolicy.addAll(b, ps.getTable(), Collections.<Long>emptySet());
+			b.write(new File(export));
+			System.out.println("Policy written to " + export);
+		}
+	}
+}
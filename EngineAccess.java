@@ -0,0 +1,216 @@
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jig.engine.ViewableLayer;
+import jig.misc.GridCoordinate;
+import jig.misc.rd.AeroDynamics;
+import jig.misc.rd.Level;
+import jig.misc.rd.PlayingField;
+import jig.misc.rd.RobotDefense;
+
+/**
+ * Every place HeadlessGame reaches past the engine's (rd881.jar's) API.
+ *
+ * The engine only sets a game up inside RobotDefense's constructor, which
+ * asks AWT for a screen device (jig.engine.JigGC.attemptConfiguration)
+ * before it does anything else, so its own setup path can't run without
+ * a display. HeadlessGame instead builds the pieces that constructor and
+ * RobotDefense.init() would, and these are the workarounds that takes.
+ *
+ * Each one says why it is needed and which JVMs it works on, and checks
+ * that before doing anything, so an unsupported JVM fails with a clear
+ * message instead of playing a subtly different game.
+ */
+final class EngineAccess {
+
+	private EngineAccess() {}
+
+	/** the running JVM's major version (8 for "1.8", 17 for "17") */
+	static final int JAVA_VERSION = javaVersion(System.getProperty("java.specification.version"));
+
+	static int javaVersion(String spec) {
+		if (spec.startsWith("1.")) spec = spec.substring(2);
+		int dot = spec.indexOf('.');
+		return Integer.parseInt(dot < 0 ? spec : spec.substring(0, dot));
+	}
+
+	/**
+	 * Not a workaround, but the engine's own limit: PlayingField finds its
+	 * route maps and search factories through
+	 * javax.imageio.spi.ServiceRegistry, which only accepts ImageIO classes
+	 * on Java 9 and later. No game can be built on anything but Java 8.
+	 *
+	 * @throws IllegalStateException on any other JVM
+	 */
+	static void checkEngineSupported() {
+		if (JAVA_VERSION != 8) {
+			throw new IllegalStateException("The engine needs a Java 8 JRE, not Java " + JAVA_VERSION
+					+ ": it looks up its route maps through ImageIO's ServiceRegistry,"
+					+ " which only accepts ImageIO classes on Java 9 and later"
+					+ " (point rd.runner.java at a Java 8 java)");
+		}
+	}
+
+	/**
+	 * Makes RobotDefense.getGame() return a game without a window.
+	 *
+	 * The playing field and the insects consult the singleton, and its
+	 * private constructor opens the window, so it is allocated without
+	 * running the constructor (sun.misc.Unsafe.allocateInstance, in every
+	 * JDK from 8 on) and only the state the field reads is filled in: the
+	 * route map and search the game's buttons start with. Its pf is set
+	 * once the field is loaded.
+	 *
+	 * @throws IllegalStateException if this JVM has no sun.misc.Unsafe
+	 */
+	static RobotDefense installWindowlessGame(List<String> buttonSelections) {
+		Class<?> unsafeClass;
+		try {
+			unsafeClass = Class.forName("sun.misc.Unsafe");
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Java " + JAVA_VERSION
+					+ " has no sun.misc.Unsafe, so a game can't be created without a window", e);
+		}
+		try {
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Method allocate = unsafeClass.getMethod("allocateInstance", Class.class);
+			RobotDefense game = (RobotDefense) allocate.invoke(theUnsafe.get(null), RobotDefense.class);
+
+			Field selections = RobotDefense.class.getDeclaredField("preferredButtonSelections");
+			selections.setAccessible(true);
+			selections.set(game, buttonSelections);
+
+			Field theGame = RobotDefense.class.getDeclaredField("theGame");
+			theGame.setAccessible(true);
+			theGame.set(null, game);
+			return game;
+		} catch (Exception e) {
+			throw new IllegalStateException("Couldn't create a game without a window", e);
+		}
+	}
+
+	/**
+	 * Seeds Math.random(), which the engine's insects, forces and tile map
+	 * use instead of a generator of their own.
+	 *
+	 * Math keeps its generator in a private holder class. Java 8 lets us
+	 * reflect into it; from Java 9 on java.lang is closed to reflection
+	 * (and from 16 on, without --add-opens, it always fails).
+	 *
+	 * @throws IllegalStateException on anything but Java 8
+	 */
+	static void seedMathRandom(long seed) {
+		if (JAVA_VERSION != 8) {
+			throw new IllegalStateException("Math.random() can only be seeded on Java 8, not Java " + JAVA_VERSION);
+		}
+		try {
+			Field math = Class.forName("java.lang.Math$RandomNumberGeneratorHolder")
+					.getDeclaredField("randomNumberGenerator");
+			math.setAccessible(true);
+			((Random) math.get(null)).setSeed(seed);
+		} catch (Exception e) {
+			throw new IllegalStateException("Couldn't seed Math.random()", e);
+		}
+	}
+
+	/*
+	 * The rest only reach into the engine's own package (the jar isn't a
+	 * module, so this works the same on every JVM): state the game's UI
+	 * classes use, but that the engine doesn't make public.
+	 */
+
+	/** the field Level.moreComplexLoader built */
+	static PlayingField playingField(Level level) {
+		return (PlayingField) get(Level.class, "playfield", level);
+	}
+
+	/**
+	 * Registers a StatsObserver that ignores what it's told. The field
+	 * reports every insect it spawns to one, and only the game's UI
+	 * (registered by RobotDefense.setUI) implements the package private
+	 * interface, to draw its insect counts.
+	 */
+	static void ignoreStats(PlayingField pf) {
+		try {
+			Class<?> stats = Class.forName("jig.misc.rd.StatsObserver");
+			Object ignore = Proxy.newProxyInstance(stats.getClassLoader(), new Class<?>[] { stats },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method m, Object[] args) {
+							// insectEvent(int) is the only method
+							return null;
+						}
+					});
+			PlayingField.class.getMethod("registerStatsObserver", stats).invoke(pf, ignore);
+		} catch (Exception e) {
+			throw new IllegalStateException("Couldn't register a stats observer", e);
+		}
+	}
+
+	/** where the field's insect generators are, in the order they were placed */
+	@SuppressWarnings("unchecked")
+	static List<GridCoordinate> sources(PlayingField pf) {
+		return (List<GridCoordinate>) get(PlayingField.class, "sources", pf);
+	}
+
+	/**
+	 * The aerodynamics RobotDefense.init() starts a game with (it builds
+	 * four and rotates to the second, InsectsMappedToFunctions).
+	 */
+	static AeroDynamics defaultAeroDynamics(int width, int height) {
+		try {
+			Constructor<?> c = Class.forName("jig.misc.rd.InsectsMappedToFunctions")
+					.getDeclaredConstructor(int.class, int.class);
+			c.setAccessible(true);
+			return (AeroDynamics) c.newInstance(width, height);
+		} catch (Exception e) {
+			throw new IllegalStateException("Couldn't create the default aerodynamics", e);
+		}
+	}
+
+	/** seeds the generator the default aerodynamics pick their functions with */
+	static void seedAeroDynamics(long seed) {
+		try {
+			Class<?> c = Class.forName("jig.misc.rd.InsectsMappedToFunctions");
+			((Random) get(c, "rN", null)).setSeed(seed);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Couldn't seed the aerodynamics", e);
+		}
+	}
+
+	/**
+	 * The field's layers that RobotDefense.init() adds to the game, in the
+	 * order it adds them, without the background image.
+	 */
+	static List<ViewableLayer> layers(PlayingField pf) {
+		List<ViewableLayer> layers = new ArrayList<ViewableLayer>();
+		try {
+			for (String name : new String[] { "getTileLayer", "getDecorationLayer", "getCritterLayer",
+					"getRobotLayer", "getFMLayer" }) {
+				Method m = PlayingField.class.getDeclaredMethod(name);
+				m.setAccessible(true);
+				layers.add((ViewableLayer) m.invoke(pf));
+			}
+		} catch (Exception e) {
+			throw new IllegalStateException("Couldn't get the playing field's layers", e);
+		}
+		layers.addAll(pf.routeLayers());
+		return layers;
+	}
+
+	private static Object get(Class<?> c, String field, Object o) {
+		try {
+			Field f = c.getDeclaredField(field);
+			f.setAccessible(true);
+			return f.get(o);
+		} catch (Exception e) {
+			throw new IllegalStateException("Couldn't read " + c.getName() + "." + field, e);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+import java.util.Arrays;
+
+/**
+ * A wall clock time slice for each agent step (rd.frame.budgetUS
+ * microseconds; 0, the default, means no limit).
+ *
+ * The agent runs inline with the game loop, so a step that takes too long
+ * stalls the game. With a budget, the agent asks exhausted() before each
+ * tower's decision, and defers the rest of the frame's towers once the
+ * slice is used up (they stay due, and go first next frame if they become
+ * stale). One decision is always made, so the agent keeps making
+ * progress whatever the budget.
+ *
+ * It also keeps the numbers that say whether the budget is right: how
+ * many steps overran it, how many decisions were deferred or replaced by
+ * a fallback, and the step latency percentiles.
+ */
+public class FrameBudget {
+
+	final long budgetNanos = AgentConfig.getLong("rd.frame.budgetUS", 0) * 1000;
+
+	private final Latencies latencies = new Latencies(AgentConfig.getInt("rd.frame.samples", 8192));
+	private long started;
+	private long steps, overruns, deferred, fallbacks;
+
+	public boolean isEnabled() {
+		return budgetNanos > 0;
+	}
+
+	/** Starts timing a step. */
+	public void start() {
+		started = System.nanoTime();
+	}
+
+	/**
+	 * @return true if the step has used up its slice (never, without a budget)
+	 */
+	public boolean exhausted() {
+		return budgetNanos > 0 && System.nanoTime() - started > budgetNanos;
+	}
+
+	/** Counts a decision put off to a later frame. */
+	public void deferred() {
+		deferred++;
+	}
+
+	/** Counts a deferred tower that was given its fallback action. */
+	public void fellBack() {
+		fallbacks++;
+	}
+
+	/** Finishes timing a step. */
+	public void end() {
+		long ns = System.nanoTime() - started;
+		latencies.add(ns);
+		steps++;
+		if (budgetNanos > 0 && ns > budgetNanos) overruns++;
+	}
+
+	public String stats() {
+		return String.format("steps=%d overruns=%d deferred=%d fallbacks=%d p50=%dus p99=%dus max=%dus budget=%dus",
+				steps, overruns, deferred, fallbacks, latencies.percentile(0.5) / 1000,
+				latencies.percentile(0.99) / 1000, latencies.max() / 1000, budgetNanos / 1000);
+	}
+
+	/**
+	 * The last so many latencies (in a ring of primitives, so recording one
+	 * costs nothing), and their percentiles.
+	 */
+	static class Latencies {
+		private final long[] ring;
+		private long count, max;
+
+		Latencies(int size) {
+			ring = new long[Math.max(1, size)];
+		}
+
+		void add(long ns) {
+			ring[(int) (count++ % ring.length)] = ns;
+			if (ns > max) max = ns;
+		}
+
+		/** @return the p-th quantile (0 to 1) of the recent latencies */
+		long percentile(double p) {
+			int n = (int) Math.min(count, ring.length);
+			if (n == 0) return 0;
+			long[] sorted = Arrays.copyOf(ring, n);
+			Arrays.sort(sorted);
+			int k = Math.max(0, (int) Math.ceil(p * n) - 1);
+			return sorted[Math.min(n - 1, k)];
+		}
+
+		/** @return the largest latency ever recorded */
+		long max() {
+			return max;
+		}
+
+		/**
+		 * How long the latencies took to settle (e.g., while the JIT compiles
+		 * the hot paths): compares blocks of 'block' latencies in the first
+		 * half of the recording with the slowest block of the second half.
+		 * A block's median follows the load (a step costs more with more
+		 * insects about), so the settled latency is the slowest one, not the
+		 * typical one; otherwise every busy block would count as unsettled.
+		 *
+		 * @return the number of latencies before the last block whose median
+		 *   is over 'factor' times the settled latency, and that block (0 if
+		 *   none is); -1 if the ring has wrapped, so the first are gone
+		 */
+		int settledAfter(int block, double factor) {
+			if (count > ring.length) return -1;
+			int n = (int) count;
+			if (n < 2 * block) return n;
+			long[] b = new long[block];
+			long settled = 0;
+			for (int from = n / 2; from + block <= n; from += block) {
+				settled = Math.max(settled, median(from, b));
+			}
+			int after = 0;
+			for (int from = 0; from + block <= n / 2; from += block) {
+				if (median(from, b) > factor * settled) after = from + block;
+			}
+			return after;
+		}
+
+		/** @return the median of the b.length latencies from 'from' on */
+		private long median(int from, long[] b) {
+			System.arraycopy(ring, from, b, 0, b.length);
+			Arrays.sort(b);
+			return b[b.length / 2];
+		}
+
+		/** @return the sum of the first n latencies (while the ring hasn't wrapped) */
+		long sumOfFirst(int n) {
+			long sum = 0;
+			for (int i = 0; i < Math.min(n, (int) Math.min(count, ring.length)); i++) sum += ring[i];
+			return sum;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+
+/**
+ * A learned policy, frozen: for each state key (StateVector.longKey) the
+ * index of the action to take, with ties already broken.
+ *
+ * The file is a HEADER_BYTES header (magic, version, actions, the state
+ * features it was learned with, and the number of states), then the keys
+ * in ascending order, then one action byte per key. Opening a policy maps
+ * the file read-only, so any number of processes on a host can share one
+ * copy of it in the page cache; a lookup is a binary search over the
+ * mapped keys, with no allocation.
+ *
+ * Policies are written to a temporary file that is then renamed into
+ * place, so a process never maps a half-written policy.
+ */
+public class FrozenPolicy {
+
+	static final int MAGIC = 0x5244504f; // "RDPO"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 32;
+
+	private final LongBuffer keys;
+	private final ByteBuffer choices;
+	private final int actions;
+	private final int features;
+	private final int size;
+
+	private FrozenPolicy(MappedByteBuffer b) throws IOException {
+		b.order(ByteOrder.nativeOrder());
+		if (b.getInt(0) != MAGIC || b.getInt(4) != VERSION) throw new IOException("Not a policy file");
+		actions = b.getInt(8);
+		features = b.getInt(12);
+		size = (int) b.getLong(16);
+		b.position(HEADER_BYTES);
+		keys = b.slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+		b.position(HEADER_BYTES + 8 * size);
+		choices = b.slice();
+	}
+
+	/**
+	 * Maps a policy file (read-only).
+	 */
+	public static FrozenPolicy open(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FrozenPolicy p = new FrozenPolicy(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+			if (p.features != StateVector.featureBits()) {
+				System.err.println("Warning: " + f + " was learned with different state features ("
+						+ p.features + ", now " + StateVector.featureBits() + ")");
+			}
+			return p;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the index of the action for a state, or -1 if the policy
+	 *   doesn't know the state
+	 */
+	public int action(long key) {
+		int lo = 0, hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = keys.get(mid);
+			if (k < key) lo = mid + 1;
+			else if (k > key) hi = mid - 1;
+			else return choices.get(mid) & 0xff;
+		}
+		return -1;
+	}
+
+	public int size() { return size; }
+
+	public int getActions() { return actions; }
+
+	/**
+	 * @return the index of the largest value (the lowest such index, if
+	 *   several are equal)
+	 */
+	static int greedy(double[] values) {
+		int best = 0;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] > values[best]) best = i;
+		}
+		return best;
+	}
+
+	/**
+	 * Adds every row of an off-heap table to a policy.
+	 *
+	 * @param skip keys to leave out (may be null)
+	 */
+	static void addAll(Builder b, OffHeapQTable t, Set<Long> skip) {
+		double[] values = new double[t.getActions()];
+		for (long s = 0; s < t.capacity(); s++) {
+			long key = t.keyAt(s);
+			if (key == 0 || (skip != null && skip.contains(key))) continue;
+			for (int i = 0; i < values.length; i++) values[i] = t.value(s, i);
+			b.add(key, greedy(values));
+		}
+	}
+
+	/**
+	 * Collects (key, action) pairs and writes them out as a policy.
+	 */
+	static class Builder {
+		private final int actions;
+		private long[] keys = new long[1024];
+		private byte[] choices = new byte[1024];
+		private int n;
+
+		Builder(int actions) {
+			if (actions > 256) throw new IllegalArgumentException("At most 256 actions: " + actions);
+			this.actions = actions;
+		}
+
+		void add(long key, int action) {
+			if (n == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * n);
+				choices = Arrays.copyOf(choices, 2 * n);
+			}
+			keys[n] = key;
+			choices[n] = (byte) action;
+			n++;
+		}
+
+		int size() { return n; }
+
+		/**
+		 * Sorts the pairs by key and writes the policy (if a key was added
+		 * more than once, the first one added wins).
+		 */
+		void write(File f) throws IOException {
+			// sort indices by key (then by insertion order, for ties)
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++) order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int c = Long.compare(keys[a], keys[b]);
+					return c != 0 ? c : Integer.compare(a, b);
+				}
+			});
+			int m = 0;
+			long[] k = new long[n];
+			byte[] c = new byte[n];
+			for (int i = 0; i < n; i++) {
+				int j = order[i];
+				if (m > 0 && k[m - 1] == keys[j]) continue;
+				k[m] = keys[j];
+				c[m] = choices[j];
+				m++;
+			}
+
+			File tmp = new File(f.getPath() + ".tmp");
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				long bytes = HEADER_BYTES + 9L * m;
+				raf.setLength(bytes);
+				MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+				b.order(ByteOrder.nativeOrder());
+				b.putInt(0, MAGIC);
+				b.putInt(4, VERSION);
+				b.putInt(8, actions);
+				b.putInt(12, StateVector.featureBits());
+				b.putLong(16, m);
+				b.position(HEADER_BYTES);
+				for (int i = 0; i < m; i++) b.putLong(k[i]);
+				b.put(c, 0, m);
+				b.force();
+			} finally {
+				raf.close();
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Freezes a munchersOne table file (see rd.qtable.store) into a policy.
+	 *
+	 * Usage:
+	 *   java -cp rd881.jar:. FrozenPolicy table-file policy-file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: FrozenPolicy table-file policy-file");
+			System.exit(2);
+		}
+		OffHeapQTable t = OffHeapQTable.map(new File(args[0]), munchersOne.potentials.length, true);
+		Builder b = new Builder(t.getActions());
+		addAll(b, t, null);
+		b.write(new File(args[1]));
+		System.out.println("Wrote " + b.size() + " states to " + args[1]);
+	}
+}
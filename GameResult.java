@@ -0,0 +1,53 @@
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The outcome of one HeadlessGame, as reported on its RESULT line.
+ */
+class GameResult {
+	final String level;
+	final String agent;
+	final long seed;
+	final File workDir;
+	final Map<String, String> values = new HashMap<String, String>();
+
+	GameResult(String level, String agent, long seed, File workDir) {
+		this.level = level;
+		this.agent = agent;
+		this.seed = seed;
+		this.workDir = workDir;
+	}
+
+	static GameResult parse(String line, String level, String agent, long seed, File workDir) {
+		GameResult r = new GameResult(level, agent, seed, workDir);
+		for (String kv : line.substring("RESULT ".length()).split(" ")) {
+			int eq = kv.indexOf('=');
+			if (eq > 0) r.values.put(kv.substring(0, eq), kv.substring(eq + 1));
+		}
+		return r;
+	}
+
+	double get(String key) {
+		String v = values.get(key);
+		return v == null ? 0.0 : Double.parseDouble(v);
+	}
+
+	int captured() { return (int) get("captured"); }
+	int escaped() { return (int) get("escaped"); }
+	int consumed() { return (int) get("consumed"); }
+
+	/** insects that were captured or escaped */
+	int finished() { return captured() + escaped(); }
+
+	/** fraction of finished insects that were captured */
+	double captureRatio() {
+		int done = finished();
+		return done == 0 ? 0.0 : captured() / (double) done;
+	}
+
+	/** insects captured per crystal consumed */
+	double crystalEfficiency() {
+		return captured() / (double) Math.max(1, consumed());
+	}
+}
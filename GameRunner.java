@@ -0,0 +1,141 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs HeadlessGames in child JVMs.
+ *
+ * The engine keeps its clock and game singleton in static state, so each
+ * game needs a JVM of its own. Each child also gets a fresh working
+ * directory, so the performance.out and robotdefense.log files written by
+ * concurrent games don't clobber one another. The caller decides how many
+ * children run at once (e.g., by submitting runs to a bounded executor).
+ *
+ * Children run on the JVM named by rd.runner.java (by default, the one
+ * running us). It must be a Java 8 JRE; HeadlessGame explains why.
+ */
+public class GameRunner {
+
+	private final String javaCmd;
+	private final String classPath;
+	private final File workRoot;
+	private final List<String> jvmArgs = new ArrayList<String>();
+
+	/** give up on a child after this long */
+	long timeoutSeconds = AgentConfig.getLong("rd.runner.timeoutSeconds", 3600);
+
+	/**
+	 * @param workRoot the directory under which each game's working
+	 *   directory is created
+	 */
+	public GameRunner(File workRoot) {
+		// the engine needs a Java 8 JRE (see HeadlessGame), which may not be ours
+		this.javaCmd = AgentConfig.getString("rd.runner.java",
+				System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		this.classPath = absoluteClassPath(System.getProperty("java.class.path"));
+		this.workRoot = workRoot;
+		workRoot.mkdirs();
+
+		// pass our own agent settings along to the children
+		for (String key : System.getProperties().stringPropertyNames()) {
+			if (key.startsWith("rd.") && !key.equals("rd.seed")) {
+				jvmArgs.add("-D" + key + "=" + System.getProperty(key));
+			}
+		}
+	}
+
+	/**
+	 * Adds a JVM argument (e.g., -Drd.schedule.cap=4) for every child.
+	 */
+	public void addJvmArg(String arg) {
+		jvmArgs.add(arg);
+	}
+
+	/**
+	 * Plays one game and waits for it to finish.
+	 *
+	 * @param extraJvmArgs additional arguments for this child only (may be null)
+	 * @throws IOException if the child could not be started, didn't report a
+	 *         result, or reported a game in which no insect finished
+	 */
+	public GameResult play(String levelFile, String factoryClass, long seed, long seconds,
+			List<String> extraJvmArgs) throws IOException, InterruptedException {
+		File dir = new File(workRoot, simpleName(factoryClass) + "-" + baseName(levelFile) + "-" + seed);
+		dir.mkdirs();
+
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(javaCmd);
+		cmd.addAll(jvmArgs);
+		if (extraJvmArgs != null) cmd.addAll(extraJvmArgs);
+		cmd.add("-cp");
+		cmd.add(classPath);
+		cmd.add("HeadlessGame");
+		cmd.add(new File(levelFile).getAbsolutePath());
+		cmd.add(factoryClass);
+		cmd.add(Long.toString(seed));
+		cmd.add(Long.toString(seconds));
+
+		// keep the child's output next to its logs, for post mortems; the
+		// child writes it straight to the file, so a hung child can't
+		// block us past the timeout
+		File gameOut = new File(dir, "game.out");
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.directory(dir);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(gameOut);
+		Process p = pb.start();
+
+		if (!p.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+			p.destroyForcibly().waitFor();
+			throw new IOException("Game timed out after " + timeoutSeconds + "s, see " + gameOut);
+		}
+
+		String resultLine = null;
+		BufferedReader in = new BufferedReader(new FileReader(gameOut));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("RESULT ")) resultLine = line;
+			}
+		} finally {
+			in.close();
+		}
+		if (resultLine == null) {
+			throw new IOException("Game exited (" + p.exitValue() + ") without a result, see " + gameOut);
+		}
+		GameResult r = GameResult.parse(resultLine, levelFile, factoryClass, seed, dir);
+		if (r.finished() == 0) {
+			// nothing to compare agents on: the insects never came
+			throw new IOException("Game finished no insects (captured=0 escaped=0), see " + gameOut);
+		}
+		return r;
+	}
+
+	static String baseName(String path) {
+		String n = new File(path).getName();
+		int dot = n.lastIndexOf('.');
+		return dot > 0 ? n.substring(0, dot) : n;
+	}
+
+	static String simpleName(String cls) {
+		return cls.substring(cls.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * Children run in other directories, so relative class path entries
+	 * (like the README's 'rd881.jar:.') must be made absolute.
+	 */
+	private static String absoluteClassPath(String cp) {
+		StringBuilder sb = new StringBuilder();
+		for (String entry : cp.split(File.pathSeparator)) {
+			if (entry.length() == 0) entry = ".";
+			if (sb.length() > 0) sb.append(File.pathSeparator);
+			sb.append(new File(entry).getAbsolutePath());
+		}
+		return sb.toString();
+	}
+}
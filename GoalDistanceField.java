@@ -0,0 +1,301 @@
+import java.util.Arrays;
+
+import jig.misc.rd.Direction;
+import jig.misc.rd.Tile;
+
+/**
+ * The travel distance from every cell to the nearest insect destination.
+ *
+ * Distances are computed with one multi-source Dijkstra search, starting
+ * from every destination tile at once. Moving onto a cell costs that
+ * tile's travel cost (times the square root of two for a diagonal move),
+ * and cells that can't be entered can't be moved onto. Besides the
+ * distance, each cell remembers its next cell on a shortest route, so
+ * following nextCell() from an insect's location traces where it is most
+ * likely heading.
+ *
+ * The field is computed the first time it's needed and then cached. When
+ * a tile changes afterwards (the engine reports each tower built and each
+ * terrain edit during the game through the sensors' initializeTile, which
+ * queues it for the agent's next step), only the affected cells are
+ * repaired: the cells whose shortest route ran through the changed cell
+ * are reset and re-seeded from their neighbors, then the usual Dijkstra
+ * relaxation spreads the new distances (including any improvements
+ * through the changed cell) for as far as they reach.
+ *
+ * The map (in grid coordinates) is flattened with cell index gx * height + gy.
+ */
+public class GoalDistanceField {
+
+	private static final double SQRT2 = Math.sqrt(2.0);
+	private static final int[] DX = new int[Direction.values().length];
+	private static final int[] DY = new int[Direction.values().length];
+	static {
+		for (Direction d : Direction.values()) {
+			DX[d.ordinal()] = d.xhat();
+			DY[d.ordinal()] = d.yhat();
+		}
+	}
+
+	/**
+	 * The destination tile's class. The engine doesn't make it public, so
+	 * it can't be named in an instanceof; it's looked up once instead, so a
+	 * renamed class fails here rather than leaving the map with no goals.
+	 */
+	private static final Class<?> DESTINATION;
+	static {
+		try {
+			DESTINATION = Class.forName("jig.misc.rd.InsectDestination");
+		} catch (ClassNotFoundException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final int width, height;
+
+	/** the cost of moving onto each cell (infinite if it can't be entered) */
+	private final double[] cost;
+	private final boolean[] goal;
+	private final double[] dist;
+
+	/** the next cell on a shortest route (-1 for goals and unreachable cells) */
+	private final int[] next;
+
+	private boolean computed;
+
+	/** cells whose tiles changed since the last update */
+	private int[] pending = new int[16];
+	private int pendingCount;
+	private final boolean[] isPending;
+
+	// scratch space for repairs
+	private final boolean[] affected;
+	private int[] stack = new int[16];
+	private final CellHeap heap = new CellHeap();
+
+	public GoalDistanceField(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int n = width * height;
+		cost = new double[n];
+		goal = new boolean[n];
+		dist = new double[n];
+		next = new int[n];
+		isPending = new boolean[n];
+		affected = new boolean[n];
+		Arrays.fill(cost, 1.0);
+	}
+
+	/**
+	 * Records the tile at a cell. The distances are brought up to date the
+	 * next time they're read.
+	 */
+	public void setTile(Tile t, int gx, int gy) {
+		int c = gx * height + gy;
+		double newCost = t.canBeEntered(gx, gy, Direction.north) ? t.getTravelCost() : Double.POSITIVE_INFINITY;
+		boolean newGoal = DESTINATION.isInstance(t);
+		if (newCost == cost[c] && newGoal == goal[c]) return;
+		cost[c] = newCost;
+		goal[c] = newGoal;
+		if (computed && !isPending[c]) {
+			if (pendingCount == pending.length) pending = Arrays.copyOf(pending, 2 * pendingCount);
+			pending[pendingCount++] = c;
+			isPending[c] = true;
+		}
+	}
+
+	/**
+	 * @return the travel distance from a cell to the nearest destination
+	 *   (infinite if there is no route, or the cell is off the map)
+	 */
+	public double distance(int gx, int gy) {
+		if (gx < 0 || gy < 0 || gx >= width || gy >= height) return Double.POSITIVE_INFINITY;
+		update();
+		return dist[gx * height + gy];
+	}
+
+	/**
+	 * @return the index (gx * height + gy) of the next cell on a shortest
+	 *   route from the given cell, or -1 if there is none
+	 */
+	public int nextCell(int gx, int gy) {
+		if (gx < 0 || gy < 0 || gx >= width || gy >= height) return -1;
+		update();
+		return next[gx * height + gy];
+	}
+
+	public int getWidth() { return width; }
+
+	public int getHeight() { return height; }
+
+	/**
+	 * Brings the distances up to date.
+	 */
+	public void update() {
+		if (!computed) {
+			computeAll();
+			computed = true;
+			return;
+		}
+		if (pendingCount == 0) return;
+		for (int k = 0; k < pendingCount; k++) {
+			repair(pending[k]);
+			isPending[pending[k]] = false;
+		}
+		pendingCount = 0;
+		relax();
+	}
+
+	private void computeAll() {
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		Arrays.fill(next, -1);
+		heap.clear();
+		for (int c = 0; c < dist.length; c++) {
+			if (goal[c]) {
+				dist[c] = 0.0;
+				heap.push(0.0, c);
+			}
+		}
+		relax();
+	}
+
+	/**
+	 * Resets the cells whose routes ran through c and re-seeds them (and c)
+	 * from their neighbors. relax() finishes the job.
+	 */
+	private void repair(int c) {
+		// collect c and every cell whose route passes through it
+		int top = 0, found = 0;
+		stack = push(stack, top++, c);
+		affected[c] = true;
+		while (top > found) {
+			int v = stack[found++];
+			int vx = v / height, vy = v % height;
+			for (int d = 0; d < DX.length; d++) {
+				int ux = vx + DX[d], uy = vy + DY[d];
+				if (ux < 0 || uy < 0 || ux >= width || uy >= height) continue;
+				int u = ux * height + uy;
+				if (next[u] == v && !affected[u]) {
+					affected[u] = true;
+					stack = push(stack, top++, u);
+				}
+			}
+		}
+
+		for (int k = 0; k < top; k++) {
+			int v = stack[k];
+			dist[v] = goal[v] ? 0.0 : Double.POSITIVE_INFINITY;
+			next[v] = -1;
+		}
+		for (int k = 0; k < top; k++) {
+			int v = stack[k];
+			affected[v] = false;
+			if (!goal[v]) seedFromNeighbors(v);
+			if (dist[v] < Double.POSITIVE_INFINITY) heap.push(dist[v], v);
+		}
+		// c's own cost changed, so routes onto it must be reconsidered too
+		if (dist[c] < Double.POSITIVE_INFINITY) heap.push(dist[c], c);
+	}
+
+	private void seedFromNeighbors(int v) {
+		int vx = v / height, vy = v % height;
+		for (int d = 0; d < DX.length; d++) {
+			int nx = vx + DX[d], ny = vy + DY[d];
+			if (nx < 0 || ny < 0 || nx >= width || ny >= height) continue;
+			int n = nx * height + ny;
+			double nd = dist[n] + moveCost(n, d);
+			if (nd < dist[v]) {
+				dist[v] = nd;
+				next[v] = n;
+			}
+		}
+	}
+
+	/**
+	 * Dijkstra's relaxation, from whatever is on the heap.
+	 */
+	private void relax() {
+		while (!heap.isEmpty()) {
+			double dv = heap.peekKey();
+			int v = heap.pop();
+			if (dv != dist[v]) continue; // stale: v was reset or improved since
+			int vx = v / height, vy = v % height;
+			for (int d = 0; d < DX.length; d++) {
+				int ux = vx + DX[d], uy = vy + DY[d];
+				if (ux < 0 || uy < 0 || ux >= width || uy >= height) continue;
+				int u = ux * height + uy;
+				if (goal[u]) continue;
+				double nd = dv + moveCost(v, d);
+				if (nd < dist[u]) {
+					dist[u] = nd;
+					next[u] = v;
+					heap.push(nd, u);
+				}
+			}
+		}
+	}
+
+	/** the cost of moving onto cell v, along direction d (or its reverse) */
+	private double moveCost(int v, int d) {
+		return (DX[d] != 0 && DY[d] != 0) ? cost[v] * SQRT2 : cost[v];
+	}
+
+	private static int[] push(int[] a, int i, int v) {
+		if (i == a.length) a = Arrays.copyOf(a, 2 * a.length);
+		a[i] = v;
+		return a;
+	}
+
+	/**
+	 * A binary min-heap of (distance, cell) pairs in primitive arrays.
+	 * Stale entries are left in place and skipped when popped.
+	 */
+	private static class CellHeap {
+		private double[] keys = new double[64];
+		private int[] cells = new int[64];
+		private int size;
+
+		void clear() { size = 0; }
+
+		boolean isEmpty() { return size == 0; }
+
+		double peekKey() { return keys[0]; }
+
+		void push(double key, int cell) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * size);
+				cells = Arrays.copyOf(cells, 2 * size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int p = (i - 1) >> 1;
+				if (keys[p] <= key) break;
+				keys[i] = keys[p];
+				cells[i] = cells[p];
+				i = p;
+			}
+			keys[i] = key;
+			cells[i] = cell;
+		}
+
+		int pop() {
+			int top = cells[0];
+			double key = keys[--size];
+			int cell = cells[size];
+			int i = 0;
+			while (true) {
+				int l = 2 * i + 1;
+				if (l >= size) break;
+				int r = l + 1;
+				int m = (r < size && keys[r] < keys[l]) ? r : l;
+				if (keys[m] >= key) break;
+				keys[i] = keys[m];
+				cells[i] = cells[m];
+				i = m;
+			}
+			keys[i] = key;
+			cells[i] = cell;
+			return top;
+		}
+	}
+}
@@ -0,0 +1,463 @@
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.HeadlessException;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import jig.engine.CursorResource;
+import jig.engine.FontResource;
+import jig.engine.GameFrame;
+import jig.engine.ImageResource;
+import jig.engine.JigGC;
+import jig.engine.RenderingContext;
+import jig.engine.ResourceFactory;
+import jig.engine.Timer;
+import jig.engine.ViewableLayer;
+import jig.engine.util.Vector2D;
+import jig.misc.GridCoordinate;
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Insect;
+import jig.misc.rd.InsectObserver;
+import jig.misc.rd.Level;
+import jig.misc.rd.PlayingField;
+import jig.misc.rd.RobotDefense;
+import jig.misc.rd.Tile;
+import jig.misc.rd.insects.Scarabug;
+import jig.misc.rd.insects.Scarlite;
+import jig.misc.rd.insects.Sqworm;
+import jig.misc.rd.ai.AgentFactory;
+import jig.misc.rd.ai.InsectView;
+import jig.misc.rd.ai.RobotDefenseAgent;
+
+/**
+ * Runs a single game without the normal render/input loop, as fast as the
+ * machine allows.
+ *
+ * The engine keeps its clock in static state (jig.engine.Timer), so a
+ * HeadlessGame installs a simulated clock that only moves when the game
+ * is stepped. Each frame advances the clock by a fixed number of
+ * milliseconds, updates the playing field and, every
+ * BaseLearningAgent.AGENT_PERIOD_MS (the same 200 ms period the
+ * interactive game uses), steps the agent.
+ *
+ * No window is ever opened, so games run on machines without a display
+ * (no Xvfb needed). The engine's images are kept in plain BufferedImages,
+ * and the game and its field are set up the way RobotDefense's
+ * constructor and init() would; the workarounds that takes, and the JVMs
+ * they work on, are all in EngineAccess. Games must run on a Java 8 JRE
+ * (see GameRunner's rd.runner.java); installEngine() refuses to start on
+ * anything else.
+ *
+ * Levels only place insect sources; the game releases insects from them
+ * when the player picks a release pattern (see InsectRelease). A
+ * HeadlessGame starts the game's wave release right away, with the
+ * crystals and release delay the game (jig.misc.rd.Project3, rd881.jar's
+ * main class) starts with by default.
+ *
+ * The seed seeds the agents (through rd.seed) and the engine's own random
+ * numbers (Math.random() and the aerodynamics' generator), so a level,
+ * agent and seed always play the same game.
+ *
+ * Because the engine's clock and the RobotDefense singleton are static,
+ * only one HeadlessGame can run per JVM. GameRunner runs each one in its
+ * own child process.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. HeadlessGame level.dat FactoryClass seed seconds
+ *
+ * When the game finishes, a single line starting with RESULT is printed,
+ * followed by space separated key=value pairs (see GameResult).
+ */
+public class HeadlessGame {
+
+	/** simulated length of a frame */
+	static final long FRAME_MS = 16;
+
+	/** crystals a game starts with (Project3's -c) */
+	static final int STARTING_CRYSTALS = AgentConfig.getInt("rd.crystals", 10000);
+
+	/** longest wait between waves of insects, in seconds (Project3's -t) */
+	static final int RELEASE_DELAY_S = AgentConfig.getInt("rd.releaseDelay", 10);
+
+	/**
+	 * A Timer whose notion of 'now' only advances when the game is stepped.
+	 * The engine instantiates timers reflectively, so this must be public.
+	 */
+	public static class SimulatedTimer extends Timer {
+		static volatile long nanos = 1;
+
+		public SimulatedTimer() {}
+
+		protected long getAbsoluteNanoTime() {
+			return nanos;
+		}
+
+		static void advance(long ms) {
+			nanos += ms * Timer.NANOS_PER_MS;
+		}
+	}
+
+	/**
+	 * A ResourceFactory that needs no display: images are copied into
+	 * plain BufferedImages. Like the engine's own J2D factory before it has
+	 * a window, it has no system fonts; cursors and frames need a screen,
+	 * so asking for one throws AWT's HeadlessException.
+	 */
+	static class NoDisplayResources extends ResourceFactory {
+
+		static void install() {
+			setCurrentResourceFactory(new NoDisplayResources());
+		}
+
+		protected ImageResource createImageResource(BufferedImage src, int transparency,
+				int width, int height, int xOffset, int yOffset) {
+			return new Image(src, width, height, xOffset, yOffset);
+		}
+
+		public CursorResource makeCursor(String name, Vector2D hotspot, long delay) {
+			throw new HeadlessException("A cursor (" + name + ") needs a display");
+		}
+
+		public FontResource getSystemFont(Font font) {
+			return null;
+		}
+
+		public GameFrame getGameFrame(String title, JigGC gc) {
+			throw new HeadlessException("A game frame (" + title + ") needs a display");
+		}
+
+		/** one frame of the sprite sheet */
+		static class Image implements ImageResource {
+			private final BufferedImage image;
+
+			Image(BufferedImage src, int width, int height, int xOffset, int yOffset) {
+				image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+				Graphics2D g = image.createGraphics();
+				g.drawImage(src, -xOffset, -yOffset, null);
+				g.dispose();
+			}
+
+			public int getWidth() {
+				return image.getWidth();
+			}
+
+			public int getHeight() {
+				return image.getHeight();
+			}
+
+			public void draw(Graphics2D g, int x, int y) {
+				g.drawImage(image, x, y, null);
+			}
+
+			public void render(RenderingContext rc, AffineTransform at) {
+			}
+		}
+	}
+
+	/**
+	 * Where the layers are drawn. Nothing is shown, but drawing has to
+	 * happen: towers spend their crystals when they're drawn
+	 * (VacuumTower.render), not when they're updated.
+	 */
+	static class NoDisplayContext implements RenderingContext {
+		private final AffineTransform transform = new AffineTransform();
+
+		public void transform(AffineTransform at) {
+			transform.concatenate(at);
+		}
+
+		public void setTransform(AffineTransform at) {
+			transform.setTransform(at);
+		}
+
+		public AffineTransform getTransform() {
+			return new AffineTransform(transform);
+		}
+	}
+
+	/**
+	 * Releases insects the way the game does when the player presses C
+	 * (Project3's wave release): a Scarabug from every source at once, then
+	 * a wave from every source whenever as many insects have been captured
+	 * or escaped as the last wave released, or the release delay has
+	 * passed. The waves cycle through Scarabugs, Scarlites and Sqworms.
+	 */
+	static class InsectRelease implements InsectObserver {
+		private final PlayingField pf;
+		private final List<GridCoordinate> sources;
+		private final Timer delay;
+		/** insects captured or escaped, less those the waves released */
+		private int finished;
+		private int wave;
+
+		InsectRelease(PlayingField pf, long delaySeconds) {
+			this.pf = pf;
+			this.sources = EngineAccess.sources(pf);
+			this.delay = Timer.createTimer(delaySeconds * Timer.NANOS_PER_SECOND, true);
+			for (GridCoordinate s : sources) pf.spawn(new Scarabug(), s);
+		}
+
+		public void insectAdded(InsectView i) {
+		}
+
+		public void insectCaptured(InsectView i, AirCurrentGenerator acg) {
+			finished++;
+		}
+
+		public void insectEscaped(InsectView i) {
+			finished++;
+		}
+
+		public void update() {
+			if (finished < sources.size() && !delay.alarmExpired()) return;
+			for (GridCoordinate s : sources) pf.spawn(insect(wave), s);
+			wave++;
+			finished -= sources.size();
+			delay.reset();
+		}
+
+		private static Insect insect(int wave) {
+			switch (wave % 3) {
+			case 0: return new Scarabug();
+			case 1: return new Scarlite();
+			default: return new Sqworm();
+			}
+		}
+
+		/** @return the number of sources insects are released from */
+		int sources() {
+			return sources.size();
+		}
+	}
+
+	private final PlayingField pf;
+	private final RobotDefenseAgent agent;
+	private final InsectRelease release;
+	private final HashSet<AirCurrentGenerator> towers = new HashSet<AirCurrentGenerator>();
+	/** the field's layers, which RobotDefense would update after the field */
+	private final List<ViewableLayer> layers = new ArrayList<ViewableLayer>();
+	private final NoDisplayContext display = new NoDisplayContext();
+
+	private long simulatedMS;
+	private long sinceAgentStep;
+	private long agentSteps;
+	private long agentNanos;
+	private long agentBytes;
+	private final FrameBudget.Latencies stepLatencies = new FrameBudget.Latencies(1 << 16);
+
+	/**
+	 * The agent has settled once no later block of SETTLE_BLOCK steps has a
+	 * median latency over SETTLE_FACTOR times that of the second half's
+	 * slowest block (see FrameBudget.Latencies.settledAfter).
+	 */
+	static final int SETTLE_BLOCK = 25;
+	static final double SETTLE_FACTOR = 1.5;
+
+	/** how long it took to create the agent (including any warm-up) */
+	long agentStartNanos;
+
+	/** counts the bytes each thread allocates (null if the JVM can't) */
+	private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+		if (!(b instanceof com.sun.management.ThreadMXBean)) return null;
+		com.sun.management.ThreadMXBean sb = (com.sun.management.ThreadMXBean) b;
+		if (!sb.isThreadAllocatedMemorySupported()) return null;
+		sb.setThreadAllocatedMemoryEnabled(true);
+		return sb;
+	}
+
+	private static long allocatedBytes() {
+		return ALLOCATIONS == null ? 0 : ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Sets up the engine to run without a display: a simulated clock, the
+	 * sprite sheet, and a game singleton without a window. Must be called
+	 * once, before any agent or game is created.
+	 *
+	 * @throws IllegalStateException if this JVM can't run the engine
+	 */
+	static void installEngine() {
+		EngineAccess.checkEngineSupported();
+		Timer.setTimerClass(new SimulatedTimer());
+		NoDisplayResources.install();
+		ResourceFactory.getFactory().loadSheet("resources/robot.png", "resources/robot.xml");
+		// the route map and search the game's buttons start with
+		EngineAccess.installWindowlessGame(
+				new LinkedList<String>(Arrays.asList("MySDRouteMap", "MySearchFactory")));
+	}
+
+	/**
+	 * Seeds the engine's random numbers: Math.random(), which insects,
+	 * forces and the tile map use, and the generator the aerodynamics
+	 * pick their functions with.
+	 */
+	static void seedEngine(long seed) {
+		EngineAccess.seedMathRandom(seed);
+		EngineAccess.seedAeroDynamics(seed);
+	}
+
+	public HeadlessGame(String levelFile, RobotDefenseAgent agent) {
+		RobotDefense.CRYSTALS_TO_START = STARTING_CRYSTALS;
+		this.pf = EngineAccess.playingField(Level.moreComplexLoader(levelFile));
+		this.agent = agent;
+		RobotDefense.getGame().pf = pf;
+
+		// what RobotDefense.init() does to the field
+		int w = pf.getGrid().getGridWidth(), h = pf.getGrid().getGridHeight();
+		pf.setAeroDynamics(EngineAccess.defaultAeroDynamics(w, h));
+		layers.addAll(EngineAccess.layers(pf));
+
+		EngineAccess.ignoreStats(pf);
+
+		pf.setAgentObserver(agent.getSensorySystem());
+		agent.enableEffectors(pf.getEffectorInterface());
+		if (agent instanceof BaseLearningAgent) {
+			((BaseLearningAgent) agent).setPlayingField(pf);
+		}
+
+		// after the agent is wired up, so it sees the first insects
+		release = new InsectRelease(pf, RELEASE_DELAY_S);
+		pf.addInsectObserver(release);
+
+		for (int x = 0; x < w; x++) {
+			for (int y = 0; y < h; y++) {
+				Tile t = pf.getTile(x, y);
+				if (t instanceof AirCurrentGenerator) towers.add((AirCurrentGenerator) t);
+			}
+		}
+	}
+
+	/**
+	 * Advances the game by one frame.
+	 */
+	public void frame() {
+		SimulatedTimer.advance(FRAME_MS);
+		Timer.tick();
+		pf.update(FRAME_MS);
+		for (ViewableLayer l : layers) l.update(FRAME_MS);
+		for (ViewableLayer l : layers) l.render(display);
+		simulatedMS += FRAME_MS;
+		sinceAgentStep += FRAME_MS;
+
+		if (sinceAgentStep >= BaseLearningAgent.AGENT_PERIOD_MS) {
+			long b0 = allocatedBytes();
+			long t0 = System.nanoTime();
+			agent.step(sinceAgentStep);
+			long ns = System.nanoTime() - t0;
+			agentNanos += ns;
+			stepLatencies.add(ns);
+			agentBytes += allocatedBytes() - b0;
+			agentSteps++;
+			sinceAgentStep = 0;
+		}
+	}
+
+	/**
+	 * Runs the game for the given amount of simulated time.
+	 */
+	public void run(long simulatedSeconds) {
+		long end = simulatedMS + simulatedSeconds * Timer.MS_PER_SECOND;
+		while (simulatedMS < end) frame();
+	}
+
+	public RobotDefenseAgent getAgent() {
+		return agent;
+	}
+
+	public PlayingField getPlayingField() {
+		return pf;
+	}
+
+	public long getSimulatedMS() {
+		return simulatedMS;
+	}
+
+	/**
+	 * @return the total number of crystals the towers have consumed
+	 */
+	public int crystalsConsumed() {
+		int used = 0;
+		for (AirCurrentGenerator acg : towers) used += acg.getConsumption();
+		return used;
+	}
+
+	/**
+	 * @return the game's statistics so far, as key/value pairs
+	 */
+	public Map<String, String> results() {
+		LinkedHashMap<String, String> r = new LinkedHashMap<String, String>();
+		r.put("simulatedMS", Long.toString(simulatedMS));
+		r.put("captured", Integer.toString(pf.capturedInsects()));
+		r.put("escaped", Integer.toString(pf.escapedInsects()));
+		r.put("crystals", Integer.toString(pf.countCrystals()));
+		r.put("consumed", Integer.toString(crystalsConsumed()));
+		r.put("towers", Integer.toString(towers.size()));
+		r.put("sources", Integer.toString(release.sources()));
+		r.put("agentSteps", Long.toString(agentSteps));
+		r.put("nsPerStep", Long.toString(agentSteps == 0 ? 0 : agentNanos / agentSteps));
+		r.put("p99StepNs", Long.toString(stepLatencies.percentile(0.99)));
+		r.put("maxStepNs", Long.toString(stepLatencies.max()));
+		// how long the agent took to reach its steady speed (see rd.warmup)
+		int settled = stepLatencies.settledAfter(SETTLE_BLOCK, SETTLE_FACTOR);
+		r.put("settledStep", Integer.toString(settled));
+		r.put("unsettledMS", settled < 0 ? "-1" : Long.toString(stepLatencies.sumOfFirst(settled) / 1000000));
+		r.put("startMS", Long.toString(agentStartNanos / 1000000));
+		r.put("bytesPerStep", ALLOCATIONS == null ? "-1" : Long.toString(agentSteps == 0 ? 0 : agentBytes / agentSteps));
+		return r;
+	}
+
+	/**
+	 * Creates the agent named by an AgentFactory class name.
+	 */
+	static RobotDefenseAgent createAgent(String factoryClass) throws Exception {
+		AgentFactory f = (AgentFactory) Class.forName(factoryClass).getDeclaredConstructor().newInstance();
+		return f.createAgent(factoryClass, null);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("usage: HeadlessGame level.dat FactoryClass seed seconds");
+			System.exit(2);
+		}
+		String level = args[0];
+		String factory = args[1];
+		long seed = Long.parseLong(args[2]);
+		long seconds = Long.parseLong(args[3]);
+
+		// agents pick up their random seed from the configuration
+		System.setProperty("rd.seed", Long.toString(seed));
+		System.setProperty("java.awt.headless", "true");
+		installEngine();
+		seedEngine(seed);
+
+		long t0 = System.nanoTime();
+		RobotDefenseAgent agent = createAgent(factory);
+		long started = System.nanoTime() - t0;
+		HeadlessGame game = new HeadlessGame(level, agent);
+		game.agentStartNanos = started;
+		game.run(seconds);
+
+		StringBuilder sb = new StringBuilder("RESULT");
+		sb.append(" level=").append(level);
+		sb.append(" agent=").append(factory);
+		sb.append(" seed=").append(seed);
+		for (Map.Entry<String, String> e : game.results().entrySet()) {
+			sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+		}
+		System.out.println(sb);
+		System.out.flush();
+		// the engine may have started non-daemon threads
+		System.exit(0);
+	}
+}
@@ -0,0 +1,83 @@
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ * Counts of insects in any rectangle of the map, kept up to date as
+ * insects appear, move and disappear.
+ *
+ * There is one two-dimensional Fenwick (binary indexed) tree per insect
+ * type, plus one for all insects. Moving an insect and counting the
+ * insects in a rectangle both cost O(log(width) * log(height)), however
+ * large the rectangle is, so features that look far from a tower (see
+ * StateVector.FAR_FIELD_FEATURE) cost the same as ones that look nearby.
+ * (A summed-area table would answer in O(1), but every move would have to
+ * rewrite O(width * height) sums; insects move far more often than a
+ * tower's state is rebuilt.)
+ */
+public class InsectDensityIndex implements InsectListener {
+
+	/** the tree index for all insects, after the per-type ones */
+	static final int ALL = CellContents.INSECT_TYPES;
+
+	private final int width, height;
+
+	/** [type][(x + 1) * (height + 1) + (y + 1)] */
+	private final int[][] tree = new int[CellContents.INSECT_TYPES + 1][];
+
+	public InsectDensityIndex(int width, int height) {
+		this.width = width;
+		this.height = height;
+		for (int t = 0; t < tree.length; t++) tree[t] = new int[(width + 1) * (height + 1)];
+	}
+
+	private void add(int type, int gx, int gy, int delta) {
+		if (gx < 0 || gy < 0 || gx >= width || gy >= height) return;
+		int[] a = tree[type], all = tree[ALL];
+		for (int x = gx + 1; x <= width; x += x & -x) {
+			for (int y = gy + 1; y <= height; y += y & -y) {
+				a[x * (height + 1) + y] += delta;
+				all[x * (height + 1) + y] += delta;
+			}
+		}
+	}
+
+	/** @return the number of insects of a type in cells [0, gx) x [0, gy) */
+	private int prefix(int type, int gx, int gy) {
+		gx = Math.min(gx, width);
+		gy = Math.min(gy, height);
+		int[] a = tree[type];
+		int n = 0;
+		for (int x = gx; x > 0; x -= x & -x) {
+			for (int y = gy; y > 0; y -= y & -y) {
+				n += a[x * (height + 1) + y];
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @param type an insect type (see CellContents.getInsectType), or ALL
+	 * @return the number of such insects in cells [x0, x1) x [y0, y1);
+	 *   the rectangle may reach off the map
+	 */
+	public int count(int type, int x0, int y0, int x1, int y1) {
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		if (x1 <= x0 || y1 <= y0) return 0;
+		return prefix(type, x1, y1) - prefix(type, x0, y1) - prefix(type, x1, y0) + prefix(type, x0, y0);
+	}
+
+	public void insectCreated(InsectView i, int gx, int gy) {
+		add(CellContents.getInsectType(i), gx, gy, 1);
+	}
+
+	public void insectMoved(InsectView i, int fromX, int fromY, int toX, int toY) {
+		int type = CellContents.getInsectType(i);
+		add(type, fromX, fromY, -1);
+		add(type, toX, toY, 1);
+	}
+
+	public void insectRemoved(InsectView i, int gx, int gy, AirCurrentGenerator capturedBy) {
+		add(CellContents.getInsectType(i), gx, gy, -1);
+	}
+}
@@ -0,0 +1,18 @@
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ * Notified by the sensor system (while draining events) as insects appear,
+ * move between cells and disappear.
+ */
+interface InsectListener {
+	void insectCreated(InsectView i, int gx, int gy);
+
+	void insectMoved(InsectView i, int fromX, int fromY, int toX, int toY);
+
+	/**
+	 * @param capturedBy the generator that captured the insect, or null if
+	 *   it reached its goal
+	 */
+	void insectRemoved(InsectView i, int gx, int gy, AirCurrentGenerator capturedBy);
+}
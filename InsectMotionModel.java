@@ -0,0 +1,174 @@
+import java.awt.Point;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Direction;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ * A transition model for insects, learned from the sensor stream.
+ *
+ * The engine moves each kind of insect according to a hidden model of how
+ * it responds to air currents (MoreForceMoreLikely and friends). We can't
+ * see those models, but we can watch what insects do. For each insect type
+ * and each kind of air current on the cell an insect is in (none, weak or
+ * strong, see CellContents.getAirCurrentCode) the model keeps:
+ *
+ *   - how many agent steps insects spent in that situation, and how many
+ *     cells they moved, giving a rate of moves per step
+ *   - which way they moved; when there is a current, directions are
+ *     counted relative to the current's direction, so what is learned
+ *     about a current blowing east also applies to one blowing north
+ *
+ * Counts start from a weak prior (about one move per second, in no
+ * particular direction) so the model is usable before it has seen much.
+ * A model can be saved and loaded again, so later games don't start cold.
+ */
+public class InsectMotionModel implements InsectListener {
+
+	static final int NO_AIR = 0, WEAK_AIR = 1, STRONG_AIR = 2;
+	static final int CONTEXTS = 3;
+	static final int DIRECTIONS = Direction.values().length;
+
+	/** prior: PRIOR_MOVES moves in PRIOR_STEPS steps, DIRECTION_PRIOR per direction */
+	static final double PRIOR_MOVES = 1.0, PRIOR_STEPS = 5.0, DIRECTION_PRIOR = 0.5;
+
+	private static final int FILE_VERSION = 1;
+
+	private final LearningAgentSensorSystem sensors;
+
+	/** [type][context][direction] */
+	private final double[] moves = new double[CellContents.INSECT_TYPES * CONTEXTS * DIRECTIONS];
+
+	/** [type][context] */
+	private final double[] moveTotals = new double[CellContents.INSECT_TYPES * CONTEXTS];
+	private final double[] steps = new double[CellContents.INSECT_TYPES * CONTEXTS];
+
+	public InsectMotionModel(LearningAgentSensorSystem sensors) {
+		this.sensors = sensors;
+		sensors.addInsectListener(this);
+	}
+
+	/** @return NO_AIR, WEAK_AIR or STRONG_AIR for an air current code */
+	static int context(int airCode) {
+		if (airCode == 0) return NO_AIR;
+		return (airCode <= DIRECTIONS) ? WEAK_AIR : STRONG_AIR;
+	}
+
+	/** @return the ordinal of the current's direction (undefined for NO_AIR) */
+	static int airDirection(int airCode) {
+		return (airCode - 1) % DIRECTIONS;
+	}
+
+	/**
+	 * @return the air current code on a cell, as the sensors see it now
+	 */
+	int airCode(int gx, int gy) {
+		AirCurrentField air = sensors.getAirCurrents();
+		return CellContents.getAirCurrentCode(air.totalX(gx, gy), air.totalY(gx, gy));
+	}
+
+	/**
+	 * Counts one step of exposure for every insect on the map. Call once
+	 * per agent step, after the sensor events are drained.
+	 */
+	public void observeStep() {
+		for (Map.Entry<InsectView, Point> e : sensors.getInsectLocations().entrySet()) {
+			Point p = e.getValue();
+			int type = CellContents.getInsectType(e.getKey());
+			steps[type * CONTEXTS + context(airCode(p.x, p.y))] += 1.0;
+		}
+	}
+
+	public void insectCreated(InsectView i, int gx, int gy) {}
+
+	public void insectRemoved(InsectView i, int gx, int gy, AirCurrentGenerator capturedBy) {}
+
+	public void insectMoved(InsectView i, int fromX, int fromY, int toX, int toY) {
+		Direction d = CellContents.directionOf(toX - fromX, toY - fromY);
+		if (d == null) return;
+		int type = CellContents.getInsectType(i);
+		int code = airCode(fromX, fromY);
+		int ctx = context(code);
+		int dir = d.ordinal();
+		if (ctx != NO_AIR) dir = (dir - airDirection(code) + DIRECTIONS) % DIRECTIONS;
+		moves[(type * CONTEXTS + ctx) * DIRECTIONS + dir] += 1.0;
+		moveTotals[type * CONTEXTS + ctx] += 1.0;
+	}
+
+	/**
+	 * @return the expected number of cells an insect of the given type moves
+	 *   in one agent step, on a cell with the given air current code
+	 */
+	public double moveRate(int type, int airCode) {
+		int k = type * CONTEXTS + context(airCode);
+		return (moveTotals[k] + PRIOR_MOVES) / (steps[k] + PRIOR_STEPS);
+	}
+
+	/**
+	 * Samples the direction of an insect's next move.
+	 *
+	 * @return the ordinal of the Direction it moves in
+	 */
+	public int sampleDirection(int type, int airCode, SplittableRandom rn) {
+		int ctx = context(airCode);
+		int base = (type * CONTEXTS + ctx) * DIRECTIONS;
+		double u = rn.nextDouble() * (moveTotals[type * CONTEXTS + ctx] + DIRECTIONS * DIRECTION_PRIOR);
+		int dir = DIRECTIONS - 1;
+		for (int d = 0; d < DIRECTIONS; d++) {
+			u -= moves[base + d] + DIRECTION_PRIOR;
+			if (u < 0) {
+				dir = d;
+				break;
+			}
+		}
+		if (ctx != NO_AIR) dir = (dir + airDirection(airCode)) % DIRECTIONS;
+		return dir;
+	}
+
+	/**
+	 * @return the number of moves observed so far
+	 */
+	public long observedMoves() {
+		double n = 0;
+		for (double m : moveTotals) n += m;
+		return (long) n;
+	}
+
+	public void save(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+		try {
+			out.writeInt(FILE_VERSION);
+			out.writeInt(moves.length);
+			for (double v : moves) out.writeDouble(v);
+			for (double v : moveTotals) out.writeDouble(v);
+			for (double v : steps) out.writeDouble(v);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Adds the counts saved in a file to this model's.
+	 */
+	public void load(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			if (in.readInt() != FILE_VERSION || in.readInt() != moves.length) {
+				throw new IOException("Incompatible motion model: " + f);
+			}
+			for (int k = 0; k < moves.length; k++) moves[k] += in.readDouble();
+			for (int k = 0; k < moveTotals.length; k++) moveTotals[k] += in.readDouble();
+			for (int k = 0; k < steps.length; k++) steps[k] += in.readDouble();
+		} finally {
+			in.close();
+		}
+	}
+}
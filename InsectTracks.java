@@ -0,0 +1,228 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ * Where each insect has been lately, and where it's heading.
+ *
+ * The sensors only know the cell an insect is in now, so a tower can't
+ * tell an insect leaving its neighborhood from one coming in. For each
+ * insect this keeps its last rd.tracks.history cells, with the simulated
+ * time it entered each, in rings of primitives: every insect has a slot
+ * (from a pool, reused once the insect is gone) and its cells live at
+ * slot * history onwards in shared arrays. At most rd.tracks.insects
+ * insects are tracked at once; any more are left out until a slot frees
+ * up, so the memory used is bounded whatever the level does.
+ *
+ * The slots are also linked into a list per cell (first() and next(), in
+ * primitive arrays too), so a tower can visit just the insects near it.
+ *
+ * predicted() extrapolates an insect's track (its velocity from the oldest
+ * cell in its ring to the newest) some agent steps ahead, moving it at
+ * most rd.tracks.maxSpeed cells per step. Predictions are only made when
+ * something asks for one, and are cached until the insect moves or the
+ * clock advances, so the towers that share an insect compute it once.
+ */
+public class InsectTracks implements InsectListener {
+
+	final int history = Math.max(2, AgentConfig.getInt("rd.tracks.history", 8));
+	final int maxInsects = AgentConfig.getInt("rd.tracks.insects", 512);
+	final int maxSpeed = AgentConfig.getInt("rd.tracks.maxSpeed", 2);
+
+	private final int width, height;
+
+	/** the simulated time, and the length of the last step */
+	private long now, stepMS = BaseLearningAgent.AGENT_PERIOD_MS;
+
+	private final HashMap<InsectView, Integer> slotOf = new HashMap<InsectView, Integer>();
+
+	/** [slot * history + k]: the cells and times of the rings */
+	private int[] xs = new int[0], ys = new int[0];
+	private long[] times = new long[0];
+
+	/** [slot]: the newest entry in the ring, and how many it holds (0 = free) */
+	private int[] head = new int[0], count = new int[0];
+
+	/** [slot]: the cached prediction, when it was made and how far ahead */
+	private int[] predictedCell = new int[0], predictedSteps = new int[0];
+	private long[] predictedAt = new long[0];
+
+	/** [cell]: the first slot in the cell (-1 if none); [slot]: the next and previous in its cell */
+	private final int[] cellFirst;
+	private int[] nextInCell = new int[0], prevInCell = new int[0];
+
+	/** freed slots, and the number of slots ever used */
+	private int[] free = new int[0];
+	private int freeCount, slots;
+
+	private long dropped, predictions, cached;
+
+	public InsectTracks(int width, int height) {
+		this.width = width;
+		this.height = height;
+		cellFirst = new int[width * height];
+		Arrays.fill(cellFirst, -1);
+	}
+
+	/**
+	 * Moves the clock on; the insects' moves from now on are stamped with
+	 * the new time. Call once per agent step, before its events are applied.
+	 */
+	public void advance(long deltaMS) {
+		if (deltaMS <= 0) return;
+		now += deltaMS;
+		stepMS = deltaMS;
+	}
+
+	public void insectCreated(InsectView i, int gx, int gy) {
+		int s = allocate();
+		if (s < 0) {
+			dropped++;
+			return;
+		}
+		slotOf.put(i, s);
+		head[s] = 0;
+		count[s] = 0;
+		push(s, gx, gy);
+		link(s, gx * height + gy);
+	}
+
+	public void insectMoved(InsectView i, int fromX, int fromY, int toX, int toY) {
+		Integer s = slotOf.get(i);
+		if (s == null) return;
+		unlink(s, x(s) * height + y(s));
+		push(s, toX, toY);
+		link(s, toX * height + toY);
+	}
+
+	public void insectRemoved(InsectView i, int gx, int gy, AirCurrentGenerator capturedBy) {
+		Integer s = slotOf.remove(i);
+		if (s == null) return;
+		unlink(s, x(s) * height + y(s));
+		count[s] = 0;
+		free[freeCount++] = s;
+	}
+
+	private void link(int s, int cell) {
+		int f = cellFirst[cell];
+		nextInCell[s] = f;
+		prevInCell[s] = -1;
+		if (f >= 0) prevInCell[f] = s;
+		cellFirst[cell] = s;
+	}
+
+	private void unlink(int s, int cell) {
+		int n = nextInCell[s], p = prevInCell[s];
+		if (p >= 0) nextInCell[p] = n;
+		else cellFirst[cell] = n;
+		if (n >= 0) prevInCell[n] = p;
+	}
+
+	private void push(int s, int x, int y) {
+		int h = count[s] == 0 ? 0 : (head[s] + 1) % history;
+		int k = s * history + h;
+		xs[k] = x;
+		ys[k] = y;
+		times[k] = now;
+		head[s] = h;
+		if (count[s] < history) count[s]++;
+		predictedAt[s] = -1;
+	}
+
+	/** @return a free slot, or -1 if rd.tracks.insects are tracked already */
+	private int allocate() {
+		if (freeCount > 0) return free[--freeCount];
+		if (slots == maxInsects) return -1;
+		if (slots == head.length) grow(Math.min(maxInsects, Math.max(16, 2 * slots)));
+		return slots++;
+	}
+
+	private void grow(int n) {
+		xs = Arrays.copyOf(xs, n * history);
+		ys = Arrays.copyOf(ys, n * history);
+		times = Arrays.copyOf(times, n * history);
+		head = Arrays.copyOf(head, n);
+		count = Arrays.copyOf(count, n);
+		predictedCell = Arrays.copyOf(predictedCell, n);
+		predictedSteps = Arrays.copyOf(predictedSteps, n);
+		predictedAt = Arrays.copyOf(predictedAt, n);
+		nextInCell = Arrays.copyOf(nextInCell, n);
+		prevInCell = Arrays.copyOf(prevInCell, n);
+		free = Arrays.copyOf(free, n);
+	}
+
+	/** @return the first tracked insect's slot in a cell, or -1 if there's none */
+	public int first(int gx, int gy) {
+		return cellFirst[gx * height + gy];
+	}
+
+	/** @return the next tracked insect's slot in the same cell, or -1 */
+	public int next(int slot) {
+		return nextInCell[slot];
+	}
+
+	/** @return the insect's cell now */
+	public int x(int slot) {
+		return xs[slot * history + head[slot]];
+	}
+
+	public int y(int slot) {
+		return ys[slot * history + head[slot]];
+	}
+
+	/**
+	 * @return the cell (x * height + y) the insect is expected to be in
+	 *   'steps' agent steps from now
+	 */
+	public int predicted(int slot, int steps) {
+		if (predictedAt[slot] == now && predictedSteps[slot] == steps) {
+			cached++;
+			return predictedCell[slot];
+		}
+		predictions++;
+		int newest = slot * history + head[slot];
+		int x = xs[newest], y = ys[newest];
+		int n = count[slot];
+		if (n >= 2) {
+			int oldest = slot * history + (head[slot] - n + 1 + history) % history;
+			long dt = times[newest] - times[oldest];
+			if (dt > 0) {
+				// past the last move, but not longer than a move has taken on average
+				long ahead = steps * stepMS + Math.min(now - times[newest], dt / (n - 1));
+				int reach = steps * maxSpeed;
+				x += clamp(Math.round((xs[newest] - xs[oldest]) * (double) ahead / dt), reach);
+				y += clamp(Math.round((ys[newest] - ys[oldest]) * (double) ahead / dt), reach);
+				x = Math.max(0, Math.min(width - 1, x));
+				y = Math.max(0, Math.min(height - 1, y));
+			}
+		}
+		predictedCell[slot] = x * height + y;
+		predictedSteps[slot] = steps;
+		predictedAt[slot] = now;
+		return predictedCell[slot];
+	}
+
+	private static int clamp(long d, int reach) {
+		return (int) Math.max(-reach, Math.min(reach, d));
+	}
+
+	/** @return how far (in cells) a prediction can be from the insect */
+	int reach(int steps) {
+		return steps * maxSpeed;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public String stats() {
+		return String.format("tracked=%d slots=%d dropped=%d predictions=%d cached=%d", slotOf.size(), slots,
+				dropped, predictions, cached);
+	}
+}
@@ -0,0 +1,461 @@
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Direction;
+import jig.misc.rd.Tile;
+import jig.misc.rd.ai.AgentSensoryInterface;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ * This is the BaseLearningAgent's sensor system. This class can be viewed as a
+ * container for all the information the agent <b>could</b> use in its decision
+ * making. Users who want to subclass the BaseLearningAgent will typically not
+ * need to interact this class directly. Rather, they will want to modify the
+ * StateVector class and CellContents class to determine what information the
+ * agent uses to make its decisions.
+ * 
+ * 
+ * The engine may call the sensor callbacks from its own thread, so the
+ * insect and air current callbacks don't touch the map directly. Instead
+ * they publish into a SensorEventQueue, and the agent applies the queued
+ * events by calling drainEvents(deltaMS) at the start of its step() method. 
+ * 
+ * @author Scott Wallace
+ * 
+ */
+class LearningAgentSensorSystem implements AgentSensoryInterface, SensorEventQueue.Handler {
+
+	/**
+	 * This map has a dual function:
+	 * 1) the key set can be used to track the set of air current generators on the map
+	 * 2) the values indicate how many insect each generator has captured
+	 */
+	HashMap<AirCurrentGenerator, Integer> generators;
+
+	/**
+	 * Changes whenever the set of generators does (a new world, or a new
+	 * generator on the map).
+	 */
+	private int generatorsVersion;
+	
+	/**
+	 * This keeps track of the important properties of individual cells which will
+	 * later be used to create StateVector instances.
+	 */
+	private CellContents[][] map;
+	
+	/**
+	 * This keeps track of the insect's current location on the map (in grid coordiantes).
+	 */
+	private HashMap<InsectView, Point> insectLocationMap;
+
+	/**
+	 * The air currents applied to each cell, by each generator.
+	 */
+	private AirCurrentField airCurrents;
+
+	/**
+	 * The travel distance from each cell to the insects' destinations.
+	 */
+	private GoalDistanceField goalDistances;
+
+	/**
+	 * Insect counts for any rectangle of the map.
+	 */
+	private InsectDensityIndex insectDensity;
+
+	/**
+	 * Each insect's recent cells, and where it's heading (null unless
+	 * StateVector.PREDICT_FEATURE is on, or trackInsects() was called).
+	 */
+	private InsectTracks insectTracks;
+	private boolean trackInsects = StateVector.PREDICT_FEATURE;
+
+	/**
+	 * Events published by the game thread, waiting for the agent to drain them.
+	 */
+	private final SensorEventQueue events = new SensorEventQueue();
+	private long droppedReported;
+
+	/** set once the agent has drained events, i.e., once the game is under way */
+	private boolean draining;
+
+	/**
+	 * Told about every cell whose insects change (may be null).
+	 */
+	private CellChangeListener cellListener;
+
+	/**
+	 * Told about every insect that appears, moves or disappears.
+	 */
+	private final ArrayList<InsectListener> insectListeners = new ArrayList<InsectListener>();
+
+	/**
+	 * Writes what the sensors receive to a SensorTrace (may be null).
+	 */
+	private SensorTrace.Recorder traceRecorder;
+
+	public void setTraceRecorder(SensorTrace.Recorder r) {
+		traceRecorder = r;
+	}
+
+	public void setCellChangeListener(CellChangeListener l) {
+		cellListener = l;
+	}
+
+	public void addInsectListener(InsectListener l) {
+		insectListeners.add(l);
+	}
+
+	/**
+	 * @return every insect's current grid location; callers must not modify
+	 *   the map or its points
+	 */
+	HashMap<InsectView, Point> getInsectLocations() {
+		return insectLocationMap;
+	}
+
+	private void cellChanged(int gx, int gy) {
+		if (cellListener != null) cellListener.cellChanged(gx, gy);
+	}
+
+	/** @return the width of the world in grid cells (0 before initialization) */
+	public int getWorldWidth() {
+		return map == null ? 0 : map.length;
+	}
+
+	/** @return the height of the world in grid cells (0 before initialization) */
+	public int getWorldHeight() {
+		return (map == null || map.length == 0) ? 0 : map[0].length;
+	}
+
+	/** @return a number that changes whenever the set of generators does */
+	int getGeneratorsVersion() {
+		return generatorsVersion;
+	}
+
+	/**
+	 * Keeps InsectTracks for the insects (see getInsectTracks), whether or
+	 * not the state uses them. Call before the world is initialized.
+	 */
+	public void trackInsects() {
+		trackInsects = true;
+	}
+
+	/**
+	 * @return the insects' tracks, or null if they aren't kept
+	 */
+	public InsectTracks getInsectTracks() {
+		return insectTracks;
+	}
+
+	/**
+	 * Applies every event the game has published since the last call. This
+	 * must be called by the agent (on the agent's thread) before it reads
+	 * any sensor state, typically at the start of step().
+	 * 
+	 * @param deltaMS the simulated time since the last call (the insect
+	 *   tracks' clock)
+	 * @return the number of events applied
+	 */
+	public int drainEvents(long deltaMS) {
+		if (insectTracks != null) insectTracks.advance(deltaMS);
+		draining = true;
+		int n = events.drain(this);
+		if (traceRecorder != null) traceRecorder.step();
+		if (events.dropped() > droppedReported) {
+			droppedReported = events.dropped();
+			System.err.println("WARNING: " + droppedReported + " insect moves dropped while the agent was idle");
+		}
+		return n;
+	}
+
+	/**
+	 * Applies a single queued event to the map.
+	 */
+	public void handle(SensorEvent e) {
+		if (traceRecorder != null) traceRecorder.event(e);
+		switch (e.type) {
+		case SensorEvent.INSECT_CREATED:
+			applyInsectCreated(e.insect, e.x, e.y);
+			break;
+		case SensorEvent.INSECT_CAPTURED:
+			applyInsectCaptured(e.insect, e.acg);
+			break;
+		case SensorEvent.INSECT_OBTAINED_GOAL:
+			applyInsectObtainedGoal(e.insect);
+			break;
+		case SensorEvent.INSECT_MOVED:
+			applyInsectGridLocationChanged(e.insect, e.x, e.y);
+			break;
+		case SensorEvent.AIR_CURRENT:
+			applyAirCurrent(e.acg, e.x, e.y, e.xmag, e.ymag);
+			break;
+		case SensorEvent.TILE_CHANGED:
+			applyTile(e.tile, e.x, e.y);
+			cellChanged(e.x, e.y);
+			break;
+		case SensorEvent.GENERATOR_CHANGED:
+			airCurrents.generatorChanged(e.acg, e.x, Direction.values()[e.y], 
+					StateVector.AIR_CURRENT_FEATURE ? cellListener : null);
+			break;
+		default:
+			System.err.println("WARNING: unknown sensor event type " + e.type);
+		}
+	}
+
+	/**
+	 * This method wraps CellContents.getContentsCode to get the 
+	 * code associated with one cell on the overall map. Users of the
+	 * BaseLearningAgent probably want to modify CellContents
+	 * instead of this method.
+	 * 
+	 * 
+	 * @param gx the x grid coordinate of the desired cell
+	 * @param gy the y grid coordinate of the desired cell
+	 * @return an inteter code representing the 'state' of the desired cell
+	 * 
+	 * @see CellContents#getContentsCode()
+	 */
+	public int getMapContentsCode(int gx, int gy) {
+		try {
+			int r = map[gx][gy].getContentsCode();
+			if (StateVector.AIR_CURRENT_FEATURE) {
+				r += CellContents.AIR_CURRENT_MULTIPLIER * 
+					CellContents.getAirCurrentCode(airCurrents.totalX(gx, gy), airCurrents.totalY(gx, gy));
+			}
+			return r;
+		} catch (ArrayIndexOutOfBoundsException aob) {
+			return CellContents.getOutOfBoundsContentsCode();
+		}
+	}
+
+	/**
+	 * @return the distances from each cell to the insects' destinations
+	 */
+	public GoalDistanceField getGoalDistances() {
+		return goalDistances;
+	}
+
+	/**
+	 * @return the number of insects in any rectangle of the map
+	 */
+	public InsectDensityIndex getInsectDensity() {
+		return insectDensity;
+	}
+
+	/**
+	 * @return the air currents on the map
+	 */
+	public AirCurrentField getAirCurrents() {
+		return airCurrents;
+	}
+
+	/**
+	 * This method is called by the environment to indcate an airCurrentGenerator changed its
+	 * state (power or direction).
+	 * 
+	 * It will be called in two situations: 
+	 *  1) when the agent itself successfully changes the ACG's state (here, it serves
+	 *  as proprioception)
+	 *  
+	 *  2) when a human user steps in a directly interacts with the game and changes
+	 *  the state of a tower.
+	 *  
+	 * The base learning agent doesn't care if a human steps in and changes the
+	 * tower settings. In addition, it assumes (as is currently the case) that
+	 * its actions always work as expected.  However, the engine calls this 
+	 * between tearing down the old air currents and setting up the new ones,
+	 * which lets the AirCurrentField update the tower's cells in bulk.
+	 */
+	public void airCurrentGeneratorChanged(AirCurrentGenerator ac) {
+		events.publishGeneratorChanged(ac, ac.getPowerSetting(), ac.getFacingDirection().ordinal());
+	}
+
+	/**
+	 * This method is called by the environment when a tile is initialized
+	 * before the game begins, and again whenever a tile is placed during
+	 * the game (a tower is built, or the terrain is edited). Those later
+	 * tiles are queued like the other events, so the map and the goal
+	 * distances only change on the agent's thread.
+	 */
+	public void initializeTile(Tile t, int gx, int gy) {
+		if (draining) {
+			events.publishTileChanged(t, gx, gy);
+			return;
+		}
+		applyTile(t, gx, gy);
+	}
+
+	private void applyTile(Tile t, int gx, int gy) {
+		if (t instanceof AirCurrentGenerator) {
+			// a acg that occupies more than one tile will 
+			// call this method more than one time -- the hashmap ensures
+			// a single entry is added
+			if (!generators.containsKey(t)) generatorsVersion++;
+			generators.put((AirCurrentGenerator) t, 0);
+
+		}
+		if (traceRecorder != null) traceRecorder.tile(t);
+		airCurrents.tileChanged(t, gx, gy, StateVector.AIR_CURRENT_FEATURE ? cellListener : null);
+		map[gx][gy].setTile(t);
+		goalDistances.setTile(t, gx, gy);
+	}
+
+	/**
+	 * This method is called by the environment when the size of the world 
+	 * is determined (before the game begins)
+	 */
+	public void initializeWorld(int width, int height) {
+		draining = false;
+		generators = new HashMap<AirCurrentGenerator, Integer>(20);
+		generatorsVersion++;
+		map = new CellContents[width][height];
+		insectLocationMap = new HashMap<InsectView, Point>();
+		airCurrents = new AirCurrentField(width, height);
+		goalDistances = new GoalDistanceField(width, height);
+		insectDensity = new InsectDensityIndex(width, height);
+		insectTracks = trackInsects ? new InsectTracks(width, height) : null;
+		if (traceRecorder != null) traceRecorder.world(width, height);
+
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				map[x][y] = new CellContents();
+			}
+		}
+	}
+
+	/**
+	 * This method is called by the environment when a new Insect is created.
+	 * 
+	 * @param i the agent's view (an InsectView instance) of a new insect
+	 *      the InsectView can be used to uniquely identify an insect over the
+	 *      course of time (i.e., there is a one to one mapping of Insect objects
+	 *      and InsectView objects, and this mapping is persistent over the lifetime
+	 *      of the Insect object).
+	 * 
+	 * @param x the x location of the new insect (in grid coordinates)
+	 * @param y the y location of the new insect (in grid coordinates)
+	 * 
+	 */
+	public void insectCreated(InsectView i, int x, int y) {
+		events.publishInsectCreated(i, x, y);
+	}
+
+	private void applyInsectCreated(InsectView i, int x, int y) {
+		map[x][y].addInsect(i);
+		insectLocationMap.put(i, new Point(x, y));
+		cellChanged(x, y);
+		insectDensity.insectCreated(i, x, y);
+		if (insectTracks != null) insectTracks.insectCreated(i, x, y);
+		for (InsectListener l : insectListeners) l.insectCreated(i, x, y);
+
+	}
+
+	/**
+	 * This method is called by the environment when an Insect is captured.
+	 * 
+	 * @param i the agent's view (an InsectView instance) of the insect
+	 * @param acg the AirCurrentGenerator that captured the insect
+	 */
+	public void insectCaptured(InsectView i, AirCurrentGenerator acg) {
+		events.publishInsectCaptured(i, acg);
+	}
+
+	private void applyInsectCaptured(InsectView i, AirCurrentGenerator acg) {
+		Integer caught = generators.get(acg);
+		generators.put(acg, new Integer(caught.intValue() + 1));
+		Point oldLoc = insectLocationMap.get(i);
+		if (oldLoc == null) {
+			System.err.println("WARNING: couldn't look up insect!" + i);
+			return;
+		}
+		map[oldLoc.x][oldLoc.y].removeInsect(i);
+		insectLocationMap.remove(i);
+		cellChanged(oldLoc.x, oldLoc.y);
+		insectDensity.insectRemoved(i, oldLoc.x, oldLoc.y, acg);
+		if (insectTracks != null) insectTracks.insectRemoved(i, oldLoc.x, oldLoc.y, acg);
+		for (InsectListener l : insectListeners) l.insectRemoved(i, oldLoc.x, oldLoc.y, acg);
+	}
+
+	
+	/**
+	 * This method is called by the environment when an Insect reaches its goal.
+	 * 
+	 * @param i the agent's view (an InsectView instance) of the insect
+	 */
+	public void insectObtainedGoal(InsectView i) {
+		events.publishInsectObtainedGoal(i);
+	}
+
+	private void applyInsectObtainedGoal(InsectView i) {
+		Point oldLoc = insectLocationMap.get(i);
+		if (oldLoc == null) {
+			System.err.println("WARNING: couldn't look up insect!" + i);
+			return;
+		}
+		map[oldLoc.x][oldLoc.y].removeInsect(i);
+		insectLocationMap.remove(i);
+		cellChanged(oldLoc.x, oldLoc.y);
+		insectDensity.insectRemoved(i, oldLoc.x, oldLoc.y, null);
+		if (insectTracks != null) insectTracks.insectRemoved(i, oldLoc.x, oldLoc.y, null);
+		for (InsectListener l : insectListeners) l.insectRemoved(i, oldLoc.x, oldLoc.y, null);
+	}
+
+	/**
+	 * This method is called by the environment when an Insect changes grid cells.
+	 *
+	 * @param i the agent's view (an InsectView instance) of the insect
+	 * @param newGridX the insect's new x position in grid coordinates
+	 * @param newGridY the insect's new y position in grid coordinates
+	 */
+	public void insectGridLocationChanged(InsectView i, int newGridX,
+			int newGridY) {
+		events.publishInsectMoved(i, newGridX, newGridY);
+	}
+
+	private void applyInsectGridLocationChanged(InsectView i, int newGridX,
+			int newGridY) {
+
+		Point oldLocation = insectLocationMap.get(i);
+		if (oldLocation == null) {
+			System.err.println("WARNING: couldn't look up insect!" + i);
+			return;
+		}
+		map[oldLocation.x][oldLocation.y].removeInsect(i);
+		map[newGridX][newGridY].addInsect(i);
+		cellChanged(oldLocation.x, oldLocation.y);
+		cellChanged(newGridX, newGridY);
+		insectDensity.insectMoved(i, oldLocation.x, oldLocation.y, newGridX, newGridY);
+		if (insectTracks != null) insectTracks.insectMoved(i, oldLocation.x, oldLocation.y, newGridX, newGridY);
+		for (InsectListener l : insectListeners) {
+			l.insectMoved(i, oldLocation.x, oldLocation.y, newGridX, newGridY);
+		}
+		// desctructively modify hash value
+		oldLocation.x = newGridX;
+		oldLocation.y = newGridY;
+
+	}
+
+	/**
+	 * This method is called by the environment when an air current changes
+	 * on a particular cell. Once drained, we'll pass this off to the 
+	 * AirCurrentField.
+	 * 
+	 */
+	public void updateAirCurrent(AirCurrentGenerator a, int x, int y,
+			double xmag, double ymag) {
+		events.publishAirCurrent(a, x, y, xmag, ymag);
+	}
+
+	private void applyAirCurrent(AirCurrentGenerator a, int x, int y,
+			double xmag, double ymag) {
+		if (airCurrents.set(a, x, y, xmag, ymag) && StateVector.AIR_CURRENT_FEATURE) {
+			cellChanged(x, y);
+		}
+
+	}
+
+}
@@ -0,0 +1,59 @@
+/**
+ * The learning rate, discount and exploration settings shared by every
+ * state's action values.
+ *
+ * One instance is shared by all of an agent's QMaps, so the settings
+ * aren't copied into each table row. The rows only keep what really is
+ * per state: their visit counts.
+ *
+ * Learning rates decay with experience: an action that has been tried n
+ * times in a state is updated with
+ *
+ *   alpha = max(rd.learn.alpha, 1 / (1 + n)^rd.learn.decay)
+ *
+ * so the first few rewards move a new estimate a long way, and the rate
+ * settles at the old fixed value (0.1) for well known states, which
+ * still lets the estimate follow the insects as they change.
+ *
+ * Exploration is either UCB1-style (rd.learn.explore=ucb, the default),
+ * which adds an optimism bonus that shrinks as an action is tried, or the
+ * original rule (rd.learn.explore=legacy) that explores at random more
+ * often when many actions look alike.
+ */
+public class LearningParameters {
+
+	/** the discount for the next state's value */
+	final double gamma = AgentConfig.getDouble("rd.learn.gamma", 0.9);
+
+	/** the lowest learning rate */
+	final double alphaFloor = AgentConfig.getDouble("rd.learn.alpha", 0.1);
+
+	/** how quickly the learning rate decays with visits */
+	final double decay = AgentConfig.getDouble("rd.learn.decay", 0.7);
+
+	/** the reward for each insect a tower captures */
+	final double captureReward = AgentConfig.getDouble("rd.reward.capture", 10.0);
+
+	/** explore with UCB (otherwise use the legacy random rule) */
+	final boolean ucb = !"legacy".equals(AgentConfig.getString("rd.learn.explore", "ucb"));
+
+	/** the weight of the UCB exploration bonus, in reward units */
+	final double ucbWeight = AgentConfig.getDouble("rd.learn.ucb", 1.0);
+
+	/**
+	 * @param visits the number of times the action was taken in the state
+	 * @return the learning rate for the action's next update
+	 */
+	double alpha(int visits) {
+		return Math.max(alphaFloor, Math.pow(1.0 + visits, -decay));
+	}
+
+	/**
+	 * @param stateVisits the number of decisions made in the state
+	 * @param actionVisits the number of times the action was taken there
+	 * @return the optimism added to the action's value when exploring
+	 */
+	double explorationBonus(int stateVisits, int actionVisits) {
+		return ucbWeight * Math.sqrt(Math.log(stateVisits + 1.0) / (actionVisits + 1.0));
+	}
+}
@@ -0,0 +1,381 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A table of action values that lives outside the Java heap.
+ *
+ * Rows are found by a 64-bit state key (StateVector.longKey) in an open
+ * addressing hash table with linear probing. Each slot holds
+ *
+ *   key (long, 0 = empty) | stateVisits (int) | values (float x actions)
+ *     | visits (char x actions) | padding to 8 bytes
+ *
+ * The slots live in direct ByteBuffers of at most CHUNK_BYTES each, so the
+ * garbage collector never scans them and the table can grow past the 2GB
+ * a single buffer can address. When the table is more than 70% full it is
+ * rehashed into a table twice the size.
+ *
+ * A table can be mapped to a file (see map()), in which case the file is
+ * the table: a HEADER_BYTES header (magic, version, actions, capacity,
+ * size) followed by the slots, so a file written by one game can be mapped
+ * by the next, or mapped read-only by several evaluation processes on the
+ * same host at once. A mapped table grows by writing the rehashed table to
+ * a new file and renaming it over the old one; processes that already
+ * mapped the old file keep seeing it.
+ *
+ * Tables are not thread-safe.
+ */
+public class OffHeapQTable {
+
+	static final int MAGIC = 0x52445154; // "RDQT"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 64;
+	static final long CHUNK_BYTES = 1L << 30;
+	static final double MAX_LOAD = 0.7;
+
+	private final int actions;
+	private final int slotBytes;
+	private final int slotsPerChunk;
+
+	/** the file this table is mapped to (null if it's in anonymous memory) */
+	private final File file;
+	private final boolean readOnly;
+
+	private ByteBuffer header;
+	private ByteBuffer[] chunks;
+	private long capacity, size;
+
+	/**
+	 * Creates an empty table in (direct, anonymous) memory.
+	 *
+	 * @param actions the number of action values per row
+	 * @param capacity the initial number of slots (rounded up to a power of two)
+	 */
+	public OffHeapQTable(int actions, long capacity) {
+		this(actions, null, false);
+		allocate(roundUp(capacity));
+	}
+
+	private OffHeapQTable(int actions, File file, boolean readOnly) {
+		this.actions = actions;
+		this.slotBytes = (12 + 6 * actions + 7) & ~7;
+		this.slotsPerChunk = (int) (CHUNK_BYTES / slotBytes);
+		this.file = file;
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * Maps a table file, creating it if it doesn't exist (unless readOnly).
+	 *
+	 * @throws IOException if the file can't be mapped, or holds a table
+	 *   with a different number of actions
+	 */
+	public static OffHeapQTable map(File f, int actions, boolean readOnly) throws IOException {
+		OffHeapQTable t = new OffHeapQTable(actions, f, readOnly);
+		if (!f.exists()) {
+			if (readOnly) throw new IOException("No such table: " + f);
+			t.create(f, 1024);
+			return t;
+		}
+		RandomAccessFile raf = new RandomAccessFile(f, readOnly ? "r" : "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			t.header = ch.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+					0, HEADER_BYTES).order(ByteOrder.nativeOrder());
+			if (t.header.getInt(0) != MAGIC || t.header.getInt(4) != VERSION) {
+				throw new IOException("Not a Q-table: " + f);
+			}
+			if (t.header.getInt(8) != actions) {
+				throw new IOException("Q-table " + f + " has " + t.header.getInt(8) + " actions, not " + actions);
+			}
+			t.capacity = t.header.getLong(16);
+			t.size = t.header.getLong(24);
+			t.chunks = t.mapChunks(ch, t.capacity, readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE);
+		} finally {
+			raf.close();
+		}
+		return t;
+	}
+
+	/**
+	 * Maps a table file copy-on-write: the table starts as the file's
+	 * contents, but its changes stay in this process (the file never
+	 * changes), and any number of processes mapping the same file share
+	 * the pages none of them changed. Use save() to keep the changes.
+	 *
+	 * The file must not change while it's mapped.
+	 */
+	public static OffHeapQTable mapPrivate(File f, int actions) throws IOException {
+		OffHeapQTable t = new OffHeapQTable(actions, null, false);
+		if (!f.isFile()) throw new IOException("No Q-table " + f);
+		// Java only maps a file privately through a writable channel (the file isn't written)
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			t.header = ch.map(FileChannel.MapMode.PRIVATE, 0, HEADER_BYTES).order(ByteOrder.nativeOrder());
+			if (t.header.getInt(0) != MAGIC || t.header.getInt(4) != VERSION || t.header.getInt(8) != actions) {
+				throw new IOException("Not a Q-table with " + actions + " actions: " + f);
+			}
+			t.capacity = t.header.getLong(16);
+			t.size = t.header.getLong(24);
+			t.chunks = t.mapChunks(ch, t.capacity, FileChannel.MapMode.PRIVATE);
+		} finally {
+			raf.close();
+		}
+		return t;
+	}
+
+	/**
+	 * Writes the table to a file (which map() can then open), replacing
+	 * the file only once the whole table is written.
+	 */
+	public void save(File f) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel ch = raf.getChannel();
+			ByteBuffer h = header.duplicate();
+			h.clear();
+			while (h.hasRemaining()) ch.write(h);
+			for (ByteBuffer c : chunks) {
+				ByteBuffer b = c.duplicate();
+				b.clear();
+				while (b.hasRemaining()) ch.write(b);
+			}
+			ch.force(true);
+		} finally {
+			raf.close();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** creates a new empty table file and maps it */
+	private void create(File f, long slots) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			raf.setLength(HEADER_BYTES + slots * slotBytes);
+			header = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES).order(ByteOrder.nativeOrder());
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, actions);
+			header.putLong(16, slots);
+			header.putLong(24, 0);
+			chunks = mapChunks(ch, slots, FileChannel.MapMode.READ_WRITE);
+			capacity = slots;
+			size = 0;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private ByteBuffer[] mapChunks(FileChannel ch, long slots, FileChannel.MapMode mode) throws IOException {
+		ByteBuffer[] cs = new ByteBuffer[(int) ((slots + slotsPerChunk - 1) / slotsPerChunk)];
+		for (int k = 0; k < cs.length; k++) {
+			long first = (long) k * slotsPerChunk;
+			long n = Math.min(slotsPerChunk, slots - first);
+			MappedByteBuffer b = ch.map(mode, HEADER_BYTES + first * slotBytes, n * slotBytes);
+			cs[k] = b.order(ByteOrder.nativeOrder());
+		}
+		return cs;
+	}
+
+	/** allocates empty anonymous memory for the given number of slots */
+	private void allocate(long slots) {
+		header = ByteBuffer.allocateDirect(HEADER_BYTES).order(ByteOrder.nativeOrder());
+		// filled in like a file's, so save() can write it out as it is
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putInt(8, actions);
+		header.putLong(16, slots);
+		chunks = new ByteBuffer[(int) ((slots + slotsPerChunk - 1) / slotsPerChunk)];
+		for (int k = 0; k < chunks.length; k++) {
+			long n = Math.min(slotsPerChunk, slots - (long) k * slotsPerChunk);
+			chunks[k] = ByteBuffer.allocateDirect((int) (n * slotBytes)).order(ByteOrder.nativeOrder());
+		}
+		capacity = slots;
+		size = 0;
+	}
+
+	private static long roundUp(long n) {
+		long c = 16;
+		while (c < n) c <<= 1;
+		return c;
+	}
+
+	/**
+	 * Keys of 0 mark empty slots, so 0 is stored as another (arbitrary)
+	 * key. The two then share a row, which for hashed keys is no likelier
+	 * than any other collision.
+	 */
+	private static long nonZero(long key) {
+		return key == 0 ? 0x9E3779B97F4A7C15L : key;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return z ^ (z >>> 33);
+	}
+
+	private ByteBuffer chunk(long slot) {
+		return chunks[(int) (slot / slotsPerChunk)];
+	}
+
+	private int offset(long slot) {
+		return (int) (slot % slotsPerChunk) * slotBytes;
+	}
+
+	/**
+	 * @return the slot holding a key, or -1 if the table doesn't have it
+	 */
+	public long find(long key) {
+		key = nonZero(key);
+		long mask = capacity - 1;
+		for (long s = mix(key) & mask; ; s = (s + 1) & mask) {
+			long k = chunk(s).getLong(offset(s));
+			if (k == key) return s;
+			if (k == 0) return -1;
+		}
+	}
+
+	/**
+	 * @return the slot holding a key, adding an empty row (all values and
+	 *   counts 0) if the table doesn't have it. Adding a row may rehash the
+	 *   table, which moves every row: slots found earlier are no longer valid.
+	 * @throws IllegalStateException if the table is read-only
+	 */
+	public long findOrInsert(long key) {
+		long s = find(key);
+		if (s >= 0) return s;
+		if (readOnly) throw new IllegalStateException("Read-only Q-table: " + file);
+		if (size + 1 > capacity * MAX_LOAD) grow();
+		key = nonZero(key);
+		long mask = capacity - 1;
+		for (s = mix(key) & mask; chunk(s).getLong(offset(s)) != 0; s = (s + 1) & mask);
+		ByteBuffer b = chunk(s);
+		int o = offset(s);
+		for (int i = 8; i < slotBytes; i += 4) b.putInt(o + i, 0);
+		b.putLong(o, key);
+		size++;
+		header.putLong(24, size);
+		return s;
+	}
+
+	/**
+	 * Rehashes into a table twice the size.
+	 */
+	private void grow() {
+		ByteBuffer[] old = chunks;
+		long oldCapacity = capacity;
+		File tmp = null;
+		try {
+			if (file != null) {
+				tmp = new File(file.getPath() + ".grow");
+				create(tmp, 2 * oldCapacity);
+			} else {
+				allocate(2 * oldCapacity);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't grow the Q-table: " + e);
+		}
+
+		long mask = capacity - 1;
+		for (long s = 0; s < oldCapacity; s++) {
+			ByteBuffer from = old[(int) (s / slotsPerChunk)];
+			int fo = (int) (s % slotsPerChunk) * slotBytes;
+			long key = from.getLong(fo);
+			if (key == 0) continue;
+			long t = mix(key) & mask;
+			while (chunk(t).getLong(offset(t)) != 0) t = (t + 1) & mask;
+			ByteBuffer to = chunk(t);
+			int to0 = offset(t);
+			for (int i = 0; i < slotBytes; i += 4) to.putInt(to0 + i, from.getInt(fo + i));
+			size++;
+		}
+		header.putLong(24, size);
+
+		if (tmp != null) {
+			try {
+				force();
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				throw new IllegalStateException("Couldn't replace " + file + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return the key stored in a slot (0 if the slot is empty), for
+	 *   walking every row
+	 */
+	public long keyAt(long slot) {
+		return chunk(slot).getLong(offset(slot));
+	}
+
+	public float value(long slot, int action) {
+		return chunk(slot).getFloat(offset(slot) + 12 + 4 * action);
+	}
+
+	public void setValue(long slot, int action, float v) {
+		chunk(slot).putFloat(offset(slot) + 12 + 4 * action, v);
+	}
+
+	public char visits(long slot, int action) {
+		return chunk(slot).getChar(offset(slot) + 12 + 4 * actions + 2 * action);
+	}
+
+	public void setVisits(long slot, int action, char n) {
+		chunk(slot).putChar(offset(slot) + 12 + 4 * actions + 2 * action, n);
+	}
+
+	public int stateVisits(long slot) {
+		return chunk(slot).getInt(offset(slot) + 8);
+	}
+
+	public void setStateVisits(long slot, int n) {
+		chunk(slot).putInt(offset(slot) + 8, n);
+	}
+
+	/** @return the number of rows */
+	public long size() { return size; }
+
+	/** @return the number of slots */
+	public long capacity() { return capacity; }
+
+	public int getActions() { return actions; }
+
+	public boolean isReadOnly() { return readOnly; }
+
+	/** @return the bytes of off-heap memory (or file) the table uses */
+	public long bytes() {
+		return HEADER_BYTES + capacity * slotBytes;
+	}
+
+	/**
+	 * Writes a mapped table's changes through to its file (does nothing for
+	 * tables in memory).
+	 */
+	public void force() {
+		if (file == null || readOnly) return;
+		((MappedByteBuffer) header).force();
+		for (ByteBuffer c : chunks) ((MappedByteBuffer) c).force();
+	}
+
+	/**
+	 * @return the table's statistics, on one line
+	 */
+	public String stats() {
+		return String.format("rows=%d slots=%d load=%.2f offHeapMB=%.1f%s", size, capacity,
+				size / (double) capacity, bytes() / (1024.0 * 1024.0),
+				file == null ? "" : " file=" + file + (readOnly ? " (read-only)" : ""));
+	}
+}
@@ -0,0 +1,249 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A training worker's link to a ParameterServer (rd.ps=host:port).
+ *
+ * The agent learns into its own rows as usual and tells the client which
+ * rows it touched. Every rd.ps.syncSteps agent steps the client
+ *
+ *   - pushes, for each row touched since the last sync, the change since
+ *     the row was last synchronized. Only changes larger than
+ *     rd.ps.minDelta are sent; smaller ones stay behind (they are still
+ *     part of the difference next time), so nothing is lost, and rows that
+ *     barely changed cost nothing on the wire.
+ *   - pulls the rows it used whose copy is rd.ps.staleness syncs old or
+ *     more, and merges them: the row becomes the server's values plus
+ *     whatever local change hasn't been pushed yet.
+ *
+ * So no row the agent relies on is more than rd.ps.staleness sync periods
+ * behind the other workers' pushes. Visit counts stay local: each worker
+ * explores on its own.
+ *
+ * What the client knows about a row (its values as of the last sync) is a
+ * Row kept by the agent's own table row (see touch()), so it goes when a
+ * bounded table evicts the row, and the client holds nothing but the rows
+ * touched since the last sync. A row that comes back is pulled at the next
+ * sync; changes too small to have been pushed before it was evicted stay
+ * behind in the local copy only.
+ *
+ * A sync is two blocking round trips (push, then pull) on the agent's
+ * thread, once every rd.ps.syncSteps steps. On the same host they take
+ * tens of microseconds, and the frame budget (see FrameBudget) counts
+ * them like any other work in the step.
+ *
+ * If the server can't be reached, the client says so once and the agent
+ * carries on learning alone.
+ */
+public class ParameterClient {
+
+	final int syncSteps = AgentConfig.getInt("rd.ps.syncSteps", 25);
+	final int staleness = AgentConfig.getInt("rd.ps.staleness", 1);
+	final double minDelta = AgentConfig.getDouble("rd.ps.minDelta", 0.001);
+
+	private final int actions;
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	/** the rows touched since the last sync */
+	private final ArrayList<Row> touched = new ArrayList<Row>();
+
+	private int steps, syncs;
+	private long rows, serverVersion, bytesSent, bytesReceived, deltasSent, rowsPulled;
+
+	/**
+	 * What is known about one of the agent's rows. The agent keeps it with
+	 * the row (see touch()).
+	 */
+	static class Row {
+		final long key;
+		double[] values;
+		/** the values as of the last synchronization */
+		final float[] base;
+		int pulledAt = Integer.MIN_VALUE / 2;
+		boolean isTouched;
+
+		Row(long key, double[] values) {
+			this.key = key;
+			this.values = values;
+			this.base = new float[values.length];
+			// nothing to push until the agent changes it, and pulled at the next sync
+			for (int a = 0; a < values.length; a++) base[a] = (float) values[a];
+		}
+	}
+
+	public ParameterClient(String hostPort, int actions) {
+		this.actions = actions;
+		int colon = hostPort.lastIndexOf(':');
+		String host = colon < 0 ? hostPort : hostPort.substring(0, colon);
+		int port = colon < 0 ? ParameterServer.DEFAULT_PORT : Integer.parseInt(hostPort.substring(colon + 1));
+		try {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					System.out.println("Parameter client: " + getStats());
+				}
+			});
+		} catch (IOException e) {
+			System.err.println("Couldn't reach the parameter server at " + hostPort + ", learning alone: " + e);
+			socket = null;
+		}
+	}
+
+	/**
+	 * Notes that the agent is about to use or update a row. Call it before
+	 * changing the values, so the first change is pushed.
+	 *
+	 * @param values the row's values, updated in place when the row is
+	 *   pulled (null, for a compacted row, is ignored)
+	 * @param r what the client returned for this row last time (null the
+	 *   first time)
+	 * @return what the agent should keep with the row and pass next time
+	 */
+	public Row touch(StateVector s, double[] values, Row r) {
+		if (socket == null || values == null) return r;
+		if (r == null) {
+			r = new Row(s.longKey(), values);
+			rows++;
+		}
+		r.values = values;
+		if (!r.isTouched) {
+			r.isTouched = true;
+			touched.add(r);
+		}
+		return r;
+	}
+
+	/**
+	 * Counts an agent step, and synchronizes if it's time to (blocking on
+	 * the server, see above).
+	 */
+	public void step() {
+		if (socket == null || ++steps < syncSteps) return;
+		steps = 0;
+		try {
+			sync();
+		} catch (IOException e) {
+			System.err.println("Lost the parameter server, learning alone: " + e);
+			close();
+		}
+	}
+
+	private void sync() throws IOException {
+		syncs++;
+
+		// push the changes
+		int pushRows = 0;
+		for (Row r : touched) {
+			if (changes(r) > 0) pushRows++;
+		}
+		if (pushRows > 0) {
+			out.writeByte(ParameterServer.PUSH);
+			out.writeInt(pushRows);
+			bytesSent += 5;
+			for (Row r : touched) {
+				int n = changes(r);
+				if (n == 0) continue;
+				out.writeLong(r.key);
+				out.writeByte(n);
+				bytesSent += 9 + 5 * n;
+				for (int a = 0; a < actions; a++) {
+					float d = delta(r, a);
+					if (d == 0) continue;
+					out.writeByte(a);
+					out.writeFloat(d);
+					r.base[a] += d;
+					deltasSent++;
+				}
+			}
+			out.flush();
+			serverVersion = in.readLong();
+			bytesReceived += 8;
+		}
+
+		// pull the rows that are too old
+		ArrayList<Row> stale = new ArrayList<Row>();
+		for (Row r : touched) {
+			if (syncs - r.pulledAt >= staleness) stale.add(r);
+			r.isTouched = false;
+		}
+		touched.clear();
+		if (stale.isEmpty()) return;
+		out.writeByte(ParameterServer.PULL);
+		out.writeInt(stale.size());
+		for (Row r : stale) out.writeLong(r.key);
+		out.flush();
+		bytesSent += 5 + 8 * stale.size();
+		serverVersion = in.readLong();
+		bytesReceived += 8;
+		for (Row r : stale) {
+			boolean found = in.readByte() != 0;
+			bytesReceived++;
+			r.pulledAt = syncs;
+			if (!found) continue;
+			for (int a = 0; a < actions; a++) {
+				float v = in.readFloat();
+				// keep the local change that hasn't been pushed yet
+				r.values[a] = v + (r.values[a] - r.base[a]);
+				r.base[a] = v;
+			}
+			bytesReceived += 4 * actions;
+			rowsPulled++;
+		}
+	}
+
+	/** @return the change to push for one of a row's values (0 if it's too small) */
+	private float delta(Row r, int a) {
+		float d = (float) (r.values[a] - r.base[a]);
+		return Math.abs(d) < minDelta ? 0 : d;
+	}
+
+	/** @return the number of a row's values that changed enough to push */
+	private int changes(Row r) {
+		int n = 0;
+		for (int a = 0; a < actions; a++) {
+			if (delta(r, a) != 0) n++;
+		}
+		return n;
+	}
+
+	public boolean isConnected() {
+		return socket != null;
+	}
+
+	public void close() {
+		if (socket == null) return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+		socket = null;
+	}
+
+	/**
+	 * @return the client's traffic so far
+	 */
+	public Map<String, Long> getStats() {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		m.put("syncs", (long) syncs);
+		m.put("rows", rows);
+		m.put("deltasSent", deltasSent);
+		m.put("rowsPulled", rowsPulled);
+		m.put("bytesSent", bytesSent);
+		m.put("bytesReceived", bytesReceived);
+		m.put("serverVersion", serverVersion);
+		return m;
+	}
+}
@@ -0,0 +1,214 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Holds the shared action values for several training processes (see
+ * ParameterClient), and serves them over a localhost socket.
+ *
+ * Workers push batches of sparse value deltas for the rows they touched,
+ * and pull the current values of the rows they use. The server adds the
+ * deltas into an OffHeapQTable (mapped to rd.ps.table if that's set, so
+ * the result outlives the server), so updates from all the workers
+ * accumulate in one table.
+ *
+ * Each request is one byte, followed by its arguments; all numbers are
+ * big-endian (DataOutputStream):
+ *
+ *   PUSH  int rows, then per row: long key, byte n, then n times
+ *         (byte action, float delta)                      -> long version
+ *   PULL  int rows, then per row: long key                -> long version,
+ *         then per row: byte found, and if found, float values[actions]
+ *   STATS                                                 -> UTF line
+ *
+ * The version counts the deltas applied so far, so a worker can tell how
+ * far the table has moved since it last looked.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. ParameterServer [port]
+ */
+public class ParameterServer {
+
+	static final byte PUSH = 'P', PULL = 'G', STATS = 'S';
+	static final int DEFAULT_PORT = 7341;
+
+	private final OffHeapQTable table;
+	private final ServerSocket socket;
+	private long version, pushes, pulls, rowsPushed, rowsPulled;
+	private volatile boolean running = true;
+
+	/**
+	 * @param port the port to listen on (0 for any free port)
+	 */
+	public ParameterServer(int port, int actions) throws IOException {
+		String file = AgentConfig.getString("rd.ps.table", null);
+		table = (file == null) ? new OffHeapQTable(actions, 1 << 16) : OffHeapQTable.map(new File(file), actions, false);
+		socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Accepts workers (one thread each) until close() is called.
+	 */
+	public void serve() {
+		while (running) {
+			final Socket s;
+			try {
+				s = socket.accept();
+			} catch (IOException e) {
+				if (running) System.err.println("Parameter server: " + e);
+				return;
+			}
+			Thread t = new Thread("ps-" + s.getPort()) {
+				public void run() {
+					handle(s);
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Starts serving on a background (daemon) thread.
+	 */
+	public void start() {
+		Thread t = new Thread("parameter-server") {
+			public void run() {
+				serve();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void close() throws IOException {
+		running = false;
+		socket.close();
+		synchronized (this) {
+			table.force();
+		}
+	}
+
+	private void handle(Socket s) {
+		try {
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			while (true) {
+				int op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				if (op == PUSH) push(in, out);
+				else if (op == PULL) pull(in, out);
+				else if (op == STATS) out.writeUTF(stats());
+				else throw new IOException("Unknown request " + op);
+				out.flush();
+			}
+		} catch (IOException e) {
+			if (running) System.err.println("Parameter server lost a worker: " + e);
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	/*
+	 * push and pull only hold the lock while they use the table: a worker's
+	 * request is read, and its reply written, without it, so one slow or
+	 * stalled worker can't hold up the others.
+	 */
+
+	private void push(DataInputStream in, DataOutputStream out) throws IOException {
+		int rows = in.readInt();
+		long[] keys = new long[rows];
+		byte[][] actions = new byte[rows][];
+		float[][] deltas = new float[rows][];
+		for (int r = 0; r < rows; r++) {
+			keys[r] = in.readLong();
+			int n = in.readByte() & 0xff;
+			actions[r] = new byte[n];
+			deltas[r] = new float[n];
+			for (int k = 0; k < n; k++) {
+				actions[r][k] = in.readByte();
+				deltas[r][k] = in.readFloat();
+			}
+		}
+		long v;
+		synchronized (this) {
+			for (int r = 0; r < rows; r++) {
+				long slot = table.findOrInsert(keys[r]);
+				for (int k = 0; k < actions[r].length; k++) {
+					int a = actions[r][k] & 0xff;
+					table.setValue(slot, a, table.value(slot, a) + deltas[r][k]);
+				}
+				version += actions[r].length;
+			}
+			pushes++;
+			rowsPushed += rows;
+			v = version;
+		}
+		out.writeLong(v);
+	}
+
+	private void pull(DataInputStream in, DataOutputStream out) throws IOException {
+		int rows = in.readInt();
+		long[] keys = new long[rows];
+		for (int r = 0; r < rows; r++) keys[r] = in.readLong();
+		// null for the rows the table doesn't have
+		float[][] values = new float[rows][];
+		long v;
+		synchronized (this) {
+			for (int r = 0; r < rows; r++) {
+				long slot = table.find(keys[r]);
+				if (slot < 0) continue;
+				values[r] = new float[table.getActions()];
+				for (int a = 0; a < values[r].length; a++) values[r][a] = table.value(slot, a);
+			}
+			pulls++;
+			rowsPulled += rows;
+			v = version;
+		}
+		out.writeLong(v);
+		for (float[] row : values) {
+			out.writeByte(row == null ? 0 : 1);
+			if (row == null) continue;
+			for (float x : row) out.writeFloat(x);
+		}
+	}
+
+	public synchronized String stats() {
+		return String.format("version=%d pushes=%d rowsPushed=%d pulls=%d rowsPulled=%d %s",
+				version, pushes, rowsPushed, pulls, rowsPulled, table.stats());
+	}
+
+	/**
+	 * @return the server's table (lock the server while using it)
+	 */
+	OffHeapQTable getTable() {
+		return table;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		ParameterServer ps = new ParameterServer(port, munchersOne.potentials.length);
+		System.out.println("Parameter server listening on localhost:" + ps.getPort());
+		ps.serve();
+	}
+}
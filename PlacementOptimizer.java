@@ -0,0 +1,347 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches for good tower placements on a level, scoring each candidate
+ * with short headless games.
+ *
+ * A layout is the set of cells holding a tower (the V glyphs of a .dat
+ * level); towers may stand on any grass (G) cell. Starting from the
+ * level's own layout, simulated annealing proposes rd.place.proposals
+ * neighbors per round, each moving one tower, usually a few cells
+ * (rd.place.moveRadius) and sometimes anywhere. The best proposal
+ * replaces the current layout if it scores better, or by chance (the
+ * Metropolis rule) if it scores worse, with a temperature falling
+ * linearly from rd.place.temperature to 0 over the rounds.
+ *
+ * Each layout is played by the agent rd.place.agent (policyFactory by
+ * default, which plays a fixed trained policy, see rd.policy.file) for
+ * the given simulated seconds, once per seed. Every layout gets the same
+ * seeds, so differences come from the placement rather than from luck. Its score is
+ *
+ *   capture ratio - rd.place.crystalWeight * crystals used per insect
+ *
+ * averaged over the seeds. A layout with a failed game (see
+ * GameRunner.play) isn't scored. The proposals of a round, and each one's
+ * games, run in parallel on a fork-join pool (rd.place.parallelism, one
+ * game per core by default). Scores are cached by layout, so a layout
+ * the search comes back to isn't played again.
+ *
+ * At the end, the rd.place.top best layouts found are written as levels
+ * to placement/, ranked (name-rank01.dat is the best), and listed with
+ * their statistics in placement/ranking.tsv.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. PlacementOptimizer level.dat [rounds] [seconds] [seeds]
+ */
+public class PlacementOptimizer {
+
+	final String agent = AgentConfig.getString("rd.place.agent", "policyFactory");
+	final int proposals = AgentConfig.getInt("rd.place.proposals", Runtime.getRuntime().availableProcessors());
+	final int moveRadius = AgentConfig.getInt("rd.place.moveRadius", 3);
+	final double temperature = AgentConfig.getDouble("rd.place.temperature", 0.05);
+	final double crystalWeight = AgentConfig.getDouble("rd.place.crystalWeight", 0.01);
+	final int top = AgentConfig.getInt("rd.place.top", 10);
+
+	/** the level without its towers */
+	private final char[][] grid;
+	/** the level's own layout */
+	private final int[] initial;
+	private final int width, height;
+	private final int towers;
+	private final int rounds, seeds;
+	private final long seconds;
+	private final String name;
+	private final File out = new File("placement");
+	private final GameRunner runner = new GameRunner(new File(out, "games"));
+	private final ForkJoinPool pool = new ForkJoinPool(
+			AgentConfig.getInt("rd.place.parallelism", Runtime.getRuntime().availableProcessors()));
+	private final SplittableRandom random = new SplittableRandom(AgentConfig.getLong("rd.place.seed", 1));
+
+	/** every layout evaluated (or being evaluated), by key() */
+	private final ConcurrentHashMap<String, Evaluation> scored = new ConcurrentHashMap<String, Evaluation>();
+
+	/**
+	 * numbers the layouts' level files, so layouts being played at the
+	 * same time never share a file or a GameRunner work directory
+	 */
+	private final AtomicInteger layoutsWritten = new AtomicInteger();
+
+	PlacementOptimizer(String levelFile, int rounds, long seconds, int seeds) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(levelFile));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty()) lines.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		height = lines.size();
+		width = lines.get(0).length();
+		grid = new char[height][];
+		int n = 0;
+		for (int y = 0; y < height; y++) {
+			grid[y] = lines.get(y).toCharArray();
+			for (int x = 0; x < grid[y].length; x++) {
+				if (grid[y][x] == 'V') {
+					// the layouts say where towers go
+					grid[y][x] = 'G';
+					n++;
+				}
+			}
+		}
+		this.towers = n;
+		this.rounds = rounds;
+		this.seconds = seconds;
+		this.seeds = seeds;
+		this.name = GameRunner.baseName(levelFile);
+		this.initial = new int[n];
+		int i = 0;
+		for (int y = 0; y < height; y++) {
+			String line = lines.get(y);
+			for (int x = 0; x < line.length(); x++) {
+				if (line.charAt(x) == 'V') initial[i++] = y * width + x;
+			}
+		}
+		Arrays.sort(initial);
+	}
+
+	/**
+	 * The scores of one layout: it plays its seeds as subtasks.
+	 */
+	private class Evaluation extends RecursiveTask<Evaluation> {
+		private static final long serialVersionUID = 1L;
+
+		final int[] cells;
+		double captured, escaped, consumed, ratio, score;
+		int games, failed;
+
+		Evaluation(int[] cells) {
+			this.cells = cells;
+		}
+
+		protected Evaluation compute() {
+			final File level;
+			try {
+				level = write(cells, new File(out, "layouts"), String.format("L%05d", layoutsWritten.incrementAndGet()));
+			} catch (IOException e) {
+				System.err.println("Couldn't write a layout: " + e);
+				score = Double.NEGATIVE_INFINITY;
+				return this;
+			}
+			List<ForkJoinTask<GameResult>> games = new ArrayList<ForkJoinTask<GameResult>>();
+			for (int s = 1; s <= seeds; s++) {
+				final long seed = s;
+				games.add(new RecursiveTask<GameResult>() {
+					protected GameResult compute() {
+						try {
+							return runner.play(level.getPath(), agent, seed, seconds, null);
+						} catch (Exception e) {
+							System.err.println("Game failed: " + e);
+							return null;
+						}
+					}
+				}.fork());
+			}
+			double perInsect = 0;
+			for (ForkJoinTask<GameResult> t : games) {
+				GameResult r = t.join();
+				if (r == null) {
+					failed++;
+					continue;
+				}
+				this.games++;
+				captured += r.captured();
+				escaped += r.escaped();
+				consumed += r.consumed();
+				ratio += r.captureRatio();
+				perInsect += r.consumed() / (double) Math.max(1, r.captured() + r.escaped());
+			}
+			if (failed > 0 || this.games == 0) {
+				// scored on fewer seeds than the others, it wouldn't be
+				// comparable; GameRunner also fails a game in which no
+				// insect finished
+				score = Double.NEGATIVE_INFINITY;
+				return this;
+			}
+			captured /= this.games;
+			escaped /= this.games;
+			consumed /= this.games;
+			ratio /= this.games;
+			score = ratio - crystalWeight * perInsect / this.games;
+			return this;
+		}
+	}
+
+	/** @return a layout's cache key (its cells are kept sorted) */
+	static String key(int[] cells) {
+		return Arrays.toString(cells);
+	}
+
+	/**
+	 * @return the layout's evaluation, shared with any other proposal of
+	 *   the same layout (forked, if it's new)
+	 */
+	private Evaluation evaluate(int[] cells) {
+		Evaluation e = new Evaluation(cells);
+		Evaluation was = scored.putIfAbsent(key(cells), e);
+		if (was != null) return was;
+		e.fork();
+		return e;
+	}
+
+	/**
+	 * @return a copy of the layout with one tower moved to a free grass cell
+	 */
+	private int[] neighbor(int[] cells) {
+		int[] c = cells.clone();
+		int i = random.nextInt(c.length);
+		for (int tries = 0; tries < 100; tries++) {
+			int x, y;
+			if (random.nextDouble() < 0.8) {
+				x = c[i] % width + random.nextInt(-moveRadius, moveRadius + 1);
+				y = c[i] / width + random.nextInt(-moveRadius, moveRadius + 1);
+			} else {
+				x = random.nextInt(width);
+				y = random.nextInt(height);
+			}
+			if (x < 0 || y < 0 || y >= height || x >= grid[y].length || grid[y][x] != 'G') continue;
+			int cell = y * width + x;
+			boolean taken = false;
+			for (int k : c) taken |= k == cell;
+			if (taken) continue;
+			c[i] = cell;
+			Arrays.sort(c);
+			return c;
+		}
+		return c;
+	}
+
+	/**
+	 * Writes a layout as a level.
+	 */
+	File write(int[] cells, File dir, String base) throws IOException {
+		dir.mkdirs();
+		File f = new File(dir, base + ".dat");
+		char[][] g = new char[height][];
+		for (int y = 0; y < height; y++) g[y] = grid[y].clone();
+		for (int c : cells) g[c / width][c % width] = 'V';
+		FileWriter w = new FileWriter(f);
+		try {
+			for (char[] row : g) {
+				w.write(row);
+				w.write('\n');
+			}
+		} finally {
+			w.close();
+		}
+		return f;
+	}
+
+	void run() throws IOException {
+		if (towers == 0) {
+			System.err.println("The level has no towers to place");
+			return;
+		}
+		int[] current = initial;
+		Evaluation currentEval = pool.invoke(new RecursiveTask<Evaluation>() {
+			protected Evaluation compute() {
+				return evaluate(initial).join();
+			}
+		});
+		System.out.println(String.format(Locale.ROOT, "round 0: score %.4f (the level's own layout)", currentEval.score));
+
+		for (int round = 1; round <= rounds; round++) {
+			final List<int[]> candidates = new ArrayList<int[]>();
+			for (int p = 0; p < proposals; p++) candidates.add(neighbor(current));
+			Evaluation best = pool.invoke(new RecursiveTask<Evaluation>() {
+				protected Evaluation compute() {
+					List<Evaluation> evals = new ArrayList<Evaluation>();
+					for (int[] c : candidates) evals.add(evaluate(c));
+					Evaluation b = null;
+					for (Evaluation e : evals) {
+						e.join();
+						if (b == null || e.score > b.score) b = e;
+					}
+					return b;
+				}
+			});
+
+			double t = temperature * (1.0 - (round - 1) / (double) rounds);
+			double delta = best.score - currentEval.score;
+			boolean accept = delta >= 0 || (t > 0 && random.nextDouble() < Math.exp(delta / t));
+			if (accept) {
+				current = best.cells;
+				currentEval = best;
+			}
+			System.out.println(String.format(Locale.ROOT, "round %d: best proposal %.4f, current %.4f%s (%d layouts scored)",
+					round, best.score, currentEval.score, accept ? "" : " (kept)", scored.size()));
+		}
+		pool.shutdown();
+		report();
+	}
+
+	/**
+	 * Writes the best layouts found, and their ranking.
+	 */
+	private void report() throws IOException {
+		List<Evaluation> all = new ArrayList<Evaluation>();
+		for (Evaluation e : scored.values()) {
+			if (e.isDone() && e.games > 0 && e.failed == 0) all.add(e);
+		}
+		Collections.sort(all, new Comparator<Evaluation>() {
+			public int compare(Evaluation a, Evaluation b) {
+				return Double.compare(b.score, a.score);
+			}
+		});
+
+		File tsv = new File(out, "ranking.tsv");
+		FileWriter w = new FileWriter(tsv);
+		try {
+			w.write("rank\tfile\tscore\tcaptureRatio\tcaptured\tescaped\tconsumed\ttowers\n");
+			System.out.println(String.format("%4s %-28s %8s %8s %9s %9s %9s  %s",
+					"rank", "file", "score", "ratio", "captured", "escaped", "consumed", "towers (x,y)"));
+			for (int r = 0; r < Math.min(top, all.size()); r++) {
+				Evaluation e = all.get(r);
+				File f = write(e.cells, out, String.format("%s-rank%02d", name, r + 1));
+				StringBuilder cells = new StringBuilder();
+				for (int c : e.cells) cells.append(' ').append(c % width).append(',').append(c / width);
+				w.write(String.format(Locale.ROOT, "%d\t%s\t%.4f\t%.4f\t%.1f\t%.1f\t%.1f\t%s\n", r + 1, f.getName(),
+						e.score, e.ratio, e.captured, e.escaped, e.consumed, cells.toString().trim()));
+				System.out.println(String.format(Locale.ROOT, "%4d %-28s %8.4f %8.3f %9.1f %9.1f %9.1f %s", r + 1,
+						f.getName(), e.score, e.ratio, e.captured, e.escaped, e.consumed, cells));
+			}
+		} finally {
+			w.close();
+		}
+		System.out.println("Ranking written to " + tsv);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: PlacementOptimizer level.dat [rounds] [seconds] [seeds]");
+			System.exit(2);
+		}
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 120;
+		int seeds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		new PlacementOptimizer(args[0], rounds, seconds, seeds).run();
+	}
+}
@@ -0,0 +1,276 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tunes munchersOne's learning settings per level by population based
+ * training, instead of by hand.
+ *
+ * A population of learners (each its own headless game and JVM, see
+ * GameRunner) starts with settings drawn at random: the learning rate
+ * floor (rd.learn.alpha), the discount (rd.learn.gamma), the price of a
+ * crystal (rd.budget.penalty) and the reward for a capture
+ * (rd.reward.capture). Each round, every member plays the given simulated
+ * seconds, all in parallel (rd.pbt.parallelism games at once), on the
+ * same seed, and is scored as
+ *
+ *   capture ratio - rd.pbt.crystalWeight * crystals used per insect
+ *
+ * Then the worst rd.pbt.truncate of the population take over the table of
+ * a member of the best rd.pbt.truncate, and its settings, each multiplied
+ * by 1 - rd.pbt.perturb or 1 + rd.pbt.perturb (for the discount, 1 -
+ * gamma is). The others carry on with their own table.
+ *
+ * A member's table is a file, and a game writes a new one each round: it
+ * maps the table it starts from copy-on-write (rd.qtable.parent), and saves
+ * it to its own file at the end. Last round's files don't change, so the
+ * members that start from the same one share its pages until they change
+ * them, and a population of dozens costs little more than the rows each
+ * member learns in a round.
+ *
+ * For each level, pbt/name/trajectory.tsv has every member's settings and
+ * score each round; the best member's trajectory (its own rounds, and those
+ * of the members it was cloned from) is printed at the end and written to
+ * pbt/name/best.tsv, and its table is kept as pbt/name/best.qt.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. PopulationTrainer level.dat[,level2.dat...] [members] [rounds] [seconds]
+ */
+public class PopulationTrainer {
+
+	final double truncate = AgentConfig.getDouble("rd.pbt.truncate", 0.25);
+	final double perturb = AgentConfig.getDouble("rd.pbt.perturb", 0.2);
+	final double crystalWeight = AgentConfig.getDouble("rd.pbt.crystalWeight", 0.01);
+
+	private final String level, name;
+	private final int rounds;
+	private final long seconds;
+	private final File out, tables;
+	private final List<Member> population = new ArrayList<Member>();
+	private final ExecutorService pool;
+	private final SplittableRandom random;
+
+	/**
+	 * One learner: its settings, the table it starts the next round from,
+	 * and its history.
+	 */
+	static class Member {
+		final int id;
+		final GameRunner runner;
+		double alpha, gamma, penalty, capture;
+		File table;
+		double score = Double.NEGATIVE_INFINITY;
+		/** trajectory.tsv lines of its rounds (and its ancestors') */
+		List<String> history = new ArrayList<String>();
+
+		Member(int id, File dir) {
+			this.id = id;
+			this.runner = new GameRunner(new File(dir, String.format("m%02d", id)));
+		}
+
+		List<String> jvmArgs(File store) {
+			List<String> a = new ArrayList<String>();
+			a.add("-Drd.learn.alpha=" + alpha);
+			a.add("-Drd.learn.gamma=" + gamma);
+			a.add("-Drd.budget.penalty=" + penalty);
+			a.add("-Drd.reward.capture=" + capture);
+			a.add("-Drd.qtable.store=" + store.getAbsolutePath());
+			if (table != null) a.add("-Drd.qtable.parent=" + table.getAbsolutePath());
+			return a;
+		}
+
+		String settings() {
+			return String.format(Locale.ROOT, "%.4f\t%.4f\t%.4f\t%.3f", alpha, gamma, penalty, capture);
+		}
+	}
+
+	PopulationTrainer(String level, int members, int rounds, long seconds, ExecutorService pool) {
+		this.level = level;
+		this.name = GameRunner.baseName(level);
+		this.rounds = rounds;
+		this.seconds = seconds;
+		this.pool = pool;
+		this.out = new File("pbt", name);
+		this.tables = new File(out, "tables");
+		this.random = new SplittableRandom(AgentConfig.getLong("rd.pbt.seed", 1));
+		for (int m = 0; m < members; m++) {
+			Member p = new Member(m, out);
+			p.alpha = logUniform(0.02, 0.5);
+			p.gamma = 1.0 - logUniform(0.01, 0.5);
+			p.penalty = logUniform(0.01, 0.2);
+			p.capture = logUniform(2.0, 30.0);
+			population.add(p);
+		}
+	}
+
+	private double logUniform(double lo, double hi) {
+		return Math.exp(Math.log(lo) + random.nextDouble() * (Math.log(hi) - Math.log(lo)));
+	}
+
+	private double factor() {
+		return random.nextBoolean() ? 1.0 - perturb : 1.0 + perturb;
+	}
+
+	private static double clamp(double v, double lo, double hi) {
+		return Math.max(lo, Math.min(hi, v));
+	}
+
+	/** Gives a laggard a leader's table and settings, perturbed. */
+	private void exploit(Member laggard, Member leader) {
+		laggard.table = leader.table;
+		laggard.alpha = clamp(leader.alpha * factor(), 0.005, 1.0);
+		laggard.gamma = clamp(1.0 - (1.0 - leader.gamma) * factor(), 0.5, 0.999);
+		laggard.penalty = clamp(leader.penalty * factor(), 0.0, 1.0);
+		laggard.capture = clamp(leader.capture * factor(), 0.5, 100.0);
+		laggard.history = new ArrayList<String>(leader.history);
+	}
+
+	void run() throws IOException, InterruptedException {
+		tables.mkdirs();
+		FileWriter tsv = new FileWriter(new File(out, "trajectory.tsv"));
+		try {
+			tsv.write("round\tmember\talpha\tgamma\tpenalty\tcapture\tscore\tcaptureRatio\tconsumed\tnext\n");
+			for (int round = 1; round <= rounds; round++) {
+				playRound(round, tsv);
+				tsv.flush();
+			}
+		} finally {
+			tsv.close();
+		}
+		report();
+	}
+
+	private void playRound(final int round, FileWriter tsv) throws IOException, InterruptedException {
+		List<Future<GameResult>> games = new ArrayList<Future<GameResult>>();
+		final File[] stores = new File[population.size()];
+		for (final Member m : population) {
+			stores[m.id] = new File(tables, String.format("m%02d-r%03d.qt", m.id, round));
+			final List<String> args = m.jvmArgs(stores[m.id]);
+			games.add(pool.submit(new Callable<GameResult>() {
+				public GameResult call() throws Exception {
+					// every member gets the same seed, so the settings make the difference
+					return m.runner.play(level, "munchersFactory", round, seconds, args);
+				}
+			}));
+		}
+
+		Set<File> previous = new HashSet<File>();
+		String[] lines = new String[population.size()];
+		for (Member m : population) {
+			GameResult r;
+			try {
+				r = games.get(m.id).get();
+			} catch (Exception e) {
+				System.err.println(name + ": member " + m.id + " failed: " + e);
+				r = null;
+			}
+			if (r != null && stores[m.id].exists()) {
+				previous.add(m.table);
+				m.table = stores[m.id];
+				double perInsect = r.consumed() / (double) Math.max(1, r.captured() + r.escaped());
+				m.score = r.captureRatio() - crystalWeight * perInsect;
+				lines[m.id] = String.format(Locale.ROOT, "%d\t%d\t%s\t%.4f\t%.4f\t%d", round, m.id, m.settings(),
+						m.score, r.captureRatio(), r.consumed());
+			} else {
+				// it keeps its table, but can't lead until it plays again
+				m.score = Double.NEGATIVE_INFINITY;
+				lines[m.id] = String.format(Locale.ROOT, "%d\t%d\t%s\t-\t-\t-", round, m.id, m.settings());
+			}
+		}
+
+		List<Member> ranked = new ArrayList<Member>(population);
+		Collections.sort(ranked, new Comparator<Member>() {
+			public int compare(Member a, Member b) {
+				return Double.compare(b.score, a.score);
+			}
+		});
+		int cut = Math.max(1, (int) Math.round(truncate * ranked.size()));
+		String[] next = new String[population.size()];
+		Arrays.fill(next, "kept");
+		for (Member m : population) m.history.add(lines[m.id]);
+		if (round < rounds && cut * 2 <= ranked.size()) {
+			for (Member laggard : ranked.subList(ranked.size() - cut, ranked.size())) {
+				Member leader = ranked.get(random.nextInt(cut));
+				if (leader.score == Double.NEGATIVE_INFINITY) continue;
+				// the table it just wrote goes, unless another member starts from it
+				previous.add(laggard.table);
+				exploit(laggard, leader);
+				next[laggard.id] = "cloned m" + leader.id;
+			}
+		}
+		for (Member m : population) tsv.write(lines[m.id] + "\t" + next[m.id] + "\n");
+
+		// last round's tables nobody starts from any more
+		for (Member m : population) previous.remove(m.table);
+		for (File f : previous) {
+			if (f != null) f.delete();
+		}
+
+		Member best = ranked.get(0);
+		System.out.println(String.format(Locale.ROOT, "%s round %d: best m%d %.4f (alpha %.4f gamma %.4f penalty %.4f"
+				+ " capture %.3f), worst %.4f", name, round, best.id, best.score, best.alpha, best.gamma, best.penalty,
+				best.capture, ranked.get(ranked.size() - 1).score));
+	}
+
+	/**
+	 * Prints and writes the best member's trajectory, and keeps its table.
+	 */
+	private void report() throws IOException {
+		Member best = null;
+		for (Member m : population) {
+			if (best == null || m.score > best.score) best = m;
+		}
+		if (best == null || best.score == Double.NEGATIVE_INFINITY) {
+			System.err.println(name + ": no member finished its games");
+			return;
+		}
+		if (best.table != null && best.table.exists()) {
+			File kept = new File(out, "best.qt");
+			if (!best.table.renameTo(kept)) System.err.println("Couldn't keep the best table " + best.table);
+		}
+		FileWriter w = new FileWriter(new File(out, "best.tsv"));
+		try {
+			w.write("round\tmember\talpha\tgamma\tpenalty\tcapture\tscore\tcaptureRatio\tconsumed\n");
+			System.out.println(name + ": best trajectory (m" + best.id + ")");
+			System.out.println("round\tmember\talpha\tgamma\tpenalty\tcapture\tscore\tratio\tconsumed");
+			for (String line : best.history) {
+				w.write(line + "\n");
+				System.out.println(line);
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: PopulationTrainer level.dat[,level2.dat...] [members] [rounds] [seconds]");
+			System.exit(2);
+		}
+		int members = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		long seconds = args.length > 3 ? Long.parseLong(args[3]) : 120;
+		ExecutorService pool = Executors.newFixedThreadPool(
+				AgentConfig.getInt("rd.pbt.parallelism", Runtime.getRuntime().availableProcessors()));
+		try {
+			for (String level : args[0].split(",")) {
+				new PopulationTrainer(level, members, rounds, seconds, pool).run();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * A map from states to rows of action values that can be held to a fixed
+ * number of rows.
+ *
+ * By default (rd.qtable.cap=0) the table grows without bound, like the
+ * HashMap it replaces. With a cap, adding a row to a full table evicts
+ * one, chosen with the CLOCK algorithm extended with small frequency
+ * counters: every row has a counter that is bumped (up to MAX_FREQUENCY)
+ * each time the row is read, and a 'hand' sweeps the rows in a circle,
+ * decrementing counters until it finds a row whose counter is zero.
+ * Rows that are used often survive several sweeps; rows seen once go
+ * first. A new row starts with a count of one, so it survives one sweep.
+ *
+ * With rd.qtable.quantize (the default when capped), a row whose counter
+ * the hand has worn down to zero is also compacted (see Row): it is cold,
+ * and is next in line for eviction, but may still be needed. A compacted
+ * row is expanded again the next time it's read.
+ *
+ * A table can also sit in front of a larger Store (such as an
+ * OffHeapQTable), as a cache: evicted rows are written to the store, and
+ * rows the table doesn't have are looked for there. Rows aren't compacted
+ * when there is a store, since the store keeps them anyway.
+ *
+ * @param <K> the state type
+ * @param <V> the row type
+ */
+public class QTable<K, V extends QTable.Row> {
+
+	/**
+	 * A row of action values that can be stored in a compact, lossy form
+	 * while it's cold.
+	 */
+	public interface Row {
+		/** switch to the compact form */
+		void compact();
+
+		/** switch back to the full form */
+		void expand();
+
+		boolean isCompact();
+	}
+
+	/**
+	 * Where rows go when they're evicted, and come back from.
+	 */
+	public interface Store<K, V> {
+		/** @return the stored row for a state, or null if there is none */
+		V load(K state);
+
+		void store(K state, V row);
+
+		boolean contains(K state);
+	}
+
+	static final int MAX_FREQUENCY = 3;
+
+	/** the maximum number of rows (0 means unbounded) */
+	final int cap;
+
+	/** compact cold rows */
+	final boolean quantize;
+
+	private final HashMap<K, Entry<K, V>> map = new HashMap<K, Entry<K, V>>();
+
+	/** the rows, in the order the CLOCK hand visits them (null if unbounded) */
+	private final Entry<K, V>[] ring;
+	private int hand, used;
+
+	private Store<K, V> store;
+
+	private long hits, misses, evictions, compactions, expansions, loads;
+
+	public QTable() {
+		this(AgentConfig.getInt("rd.qtable.cap", 0), AgentConfig.getBoolean("rd.qtable.quantize", true));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public QTable(int cap, boolean quantize) {
+		this.cap = Math.max(0, cap);
+		this.quantize = quantize && cap > 0;
+		this.ring = (cap > 0) ? new Entry[cap] : null;
+	}
+
+	/**
+	 * Puts the table in front of a store. Rows already in the table are
+	 * written to the store when they're evicted (or flushed).
+	 */
+	public void setStore(Store<K, V> store) {
+		this.store = store;
+	}
+
+	/**
+	 * @return the row for a state (expanded, if it had been compacted, or
+	 *   loaded from the store), or null if there is none
+	 */
+	public V get(K state) {
+		Entry<K, V> e = map.get(state);
+		if (e == null) {
+			misses++;
+			V row = (store != null) ? store.load(state) : null;
+			if (row != null) {
+				loads++;
+				put(state, row);
+			}
+			return row;
+		}
+		hits++;
+		if (e.frequency < MAX_FREQUENCY) e.frequency++;
+		if (e.row.isCompact()) {
+			e.row.expand();
+			expansions++;
+		}
+		return e.row;
+	}
+
+	/**
+	 * @return the row for a state, if it's in the table (not just its
+	 *   store), without counting it as a use
+	 */
+	public V peek(K state) {
+		Entry<K, V> e = map.get(state);
+		if (e == null) return null;
+		if (e.row.isCompact()) {
+			e.row.expand();
+			expansions++;
+		}
+		return e.row;
+	}
+
+	/**
+	 * @return the states with rows in the table (not its store)
+	 */
+	public Set<K> states() {
+		return Collections.unmodifiableSet(map.keySet());
+	}
+
+	/**
+	 * @return true if the table (or its store) has a row for the state
+	 *   (doesn't count as a use)
+	 */
+	public boolean containsKey(K state) {
+		return map.containsKey(state) || (store != null && store.contains(state));
+	}
+
+	/**
+	 * Adds or replaces a row, evicting another if the table is full.
+	 */
+	public void put(K state, V row) {
+		Entry<K, V> e = map.get(state);
+		if (e != null) {
+			e.row = row;
+			return;
+		}
+		e = new Entry<K, V>(state, row);
+		if (ring != null) {
+			if (used == cap) evict();
+			// the evicted row's slot is the one under the hand
+			while (ring[hand] != null) hand = (hand + 1) % cap;
+			ring[hand] = e;
+			used++;
+		}
+		map.put(state, e);
+	}
+
+	/**
+	 * Sweeps the hand until it finds a row whose counter is zero, and
+	 * removes it.
+	 */
+	private void evict() {
+		while (true) {
+			Entry<K, V> e = ring[hand];
+			if (e != null) {
+				if (e.frequency == 0) {
+					if (store != null) store.store(e.key, e.row);
+					map.remove(e.key);
+					ring[hand] = null;
+					used--;
+					evictions++;
+					return;
+				}
+				if (--e.frequency == 0 && quantize && store == null && !e.row.isCompact()) {
+					e.row.compact();
+					compactions++;
+				}
+			}
+			hand = (hand + 1) % cap;
+		}
+	}
+
+	/**
+	 * Writes every row in the table to the store (if there is one).
+	 */
+	public void flush() {
+		if (store == null) return;
+		for (Entry<K, V> e : map.values()) {
+			if (e.row.isCompact()) e.row.expand();
+			store.store(e.key, e.row);
+		}
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * @return the number of rows currently compacted
+	 */
+	public int compactRows() {
+		int n = 0;
+		for (Entry<K, V> e : map.values()) {
+			if (e.row.isCompact()) n++;
+		}
+		return n;
+	}
+
+	public long getHits() { return hits; }
+
+	public long getMisses() { return misses; }
+
+	public long getEvictions() { return evictions; }
+
+	public long getCompactions() { return compactions; }
+
+	public long getExpansions() { return expansions; }
+
+	public long getLoads() { return loads; }
+
+	/**
+	 * @return a one line summary of the table's statistics
+	 */
+	public String stats() {
+		long lookups = hits + misses;
+		return String.format("rows=%d cap=%s compact=%d hitRatio=%.3f evictions=%d compactions=%d expansions=%d loads=%d",
+				size(), cap == 0 ? "none" : Integer.toString(cap), compactRows(),
+				lookups == 0 ? 0.0 : hits / (double) lookups, evictions, compactions, expansions, loads);
+	}
+
+	/**
+	 * A row of doubles quantized to one signed byte each, with a shared
+	 * scale: v[i] is approximately q[i] * scale. Values keep about two
+	 * significant digits, relative to the row's largest magnitude, which is
+	 * plenty to remember which actions were good in a cold state.
+	 */
+	static class Quantized {
+		final byte[] q;
+		final float scale;
+
+		Quantized(double[] v) {
+			double max = 0.0;
+			for (double x : v) max = Math.max(max, Math.abs(x));
+			scale = (float) (max / 127.0);
+			q = new byte[v.length];
+			if (scale > 0f) {
+				for (int i = 0; i < v.length; i++) q[i] = (byte) Math.round(v[i] / scale);
+			}
+		}
+
+		double[] toDoubles() {
+			double[] v = new double[q.length];
+			for (int i = 0; i < q.length; i++) v[i] = q[i] * (double) scale;
+			return v;
+		}
+	}
+
+	private static class Entry<K, V> {
+		final K key;
+		V row;
+		int frequency = 1;
+
+		Entry(K key, V row) {
+			this.key = key;
+			this.row = row;
+		}
+	}
+}
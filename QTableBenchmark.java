@@ -0,0 +1,183 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Measures what capping a QTable costs.
+ *
+ * The default mode replays a synthetic workload: state keys drawn from a
+ * Zipf distribution (a few states are visited constantly, most rarely,
+ * which is what the towers' states look like in a long game), each lookup
+ * followed by an update of the row, as the agents do. For each cap it
+ * reports lookup latency percentiles, the hit ratio, and the approximate
+ * heap used by the table.
+ *
+ * The 'games' mode plays munchersOne on a level with each cap instead, and
+ * reports the capture ratio, to show what the forgotten states cost in
+ * play.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. QTableBenchmark [keys] [lookups] [zipf exponent] [caps...]
+ *   java -cp rd881.jar:. QTableBenchmark games level.dat [seconds] [seeds] [caps...]
+ *
+ * A cap of 0 is unbounded.
+ */
+public class QTableBenchmark {
+
+	static final int ACTIONS = 28;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("games")) {
+			games(args);
+			return;
+		}
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+		double exponent = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+		int[] caps = caps(args, 3, new int[] { 0, 50000, 10000, 2000 });
+
+		long[] trace = zipfTrace(keys, lookups, exponent, new SplittableRandom(AgentConfig.getLong("rd.seed", 1)));
+		System.out.printf("%d keys, %d lookups, zipf exponent %.2f%n", keys, lookups, exponent);
+		System.out.printf("%8s %8s %8s %8s %8s %9s %10s %8s%n",
+				"cap", "p50ns", "p99ns", "p999ns", "hit", "rows", "evictions", "heapMB");
+		for (int cap : caps) {
+			for (boolean quantize : cap == 0 ? new boolean[] { false } : new boolean[] { false, true }) {
+				run(cap, quantize, trace);
+			}
+		}
+	}
+
+	private static void run(int cap, boolean quantize, long[] trace) {
+		// once to warm up the JIT, then again for the record
+		simulate(cap, quantize, trace, null);
+		long[] nanos = new long[trace.length];
+		long before = usedHeap();
+		QTable<Long, Row> table = simulate(cap, quantize, trace, nanos);
+		long heap = usedHeap() - before;
+
+		Arrays.sort(nanos);
+		long lookups = table.getHits() + table.getMisses();
+		System.out.printf("%8s %8d %8d %8d %8.3f %9d %10d %8.1f%n",
+				(cap == 0 ? "none" : Integer.toString(cap)) + (quantize ? "q" : ""),
+				percentile(nanos, 0.5), percentile(nanos, 0.99), percentile(nanos, 0.999),
+				table.getHits() / (double) lookups, table.size(), table.getEvictions(),
+				heap / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Looks up (and inserts, on a miss) each key in turn, and updates one of
+	 * its values.
+	 *
+	 * @param nanos if not null, receives the time each lookup took
+	 */
+	private static QTable<Long, Row> simulate(int cap, boolean quantize, long[] trace, long[] nanos) {
+		QTable<Long, Row> table = new QTable<Long, Row>(cap, quantize);
+		for (int i = 0; i < trace.length; i++) {
+			Long key = trace[i];
+			long t0 = System.nanoTime();
+			Row r = table.get(key);
+			if (r == null) {
+				r = new Row();
+				table.put(key, r);
+			}
+			if (nanos != null) nanos[i] = System.nanoTime() - t0;
+			r.values[i % ACTIONS] += 0.1 * (1.0 - r.values[i % ACTIONS]);
+		}
+		return table;
+	}
+
+	/**
+	 * @return a sequence of keys in [0, keys) where key k is drawn with
+	 *   probability proportional to 1 / (k + 1)^exponent; keys are then
+	 *   scattered so that popular ones aren't numerically adjacent
+	 */
+	static long[] zipfTrace(int keys, int lookups, double exponent, SplittableRandom rn) {
+		double[] cdf = new double[keys];
+		double sum = 0.0;
+		for (int k = 0; k < keys; k++) {
+			sum += Math.pow(k + 1.0, -exponent);
+			cdf[k] = sum;
+		}
+		long[] trace = new long[lookups];
+		for (int i = 0; i < lookups; i++) {
+			int k = Arrays.binarySearch(cdf, rn.nextDouble() * sum);
+			if (k < 0) k = Math.min(keys - 1, -k - 1);
+			trace[i] = k * 0x9E3779B97F4A7C15L;
+		}
+		return trace;
+	}
+
+	/**
+	 * Plays munchersOne on one level for each cap, and reports the mean
+	 * capture ratio over the seeds.
+	 */
+	private static void games(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("usage: QTableBenchmark games level.dat [seconds] [seeds] [caps...]");
+			System.exit(2);
+		}
+		String level = args[1];
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 600;
+		int seeds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		// a 600 s game only learns a couple of hundred rows, so larger caps
+		// never evict anything
+		int[] caps = caps(args, 4, new int[] { 0, 200, 50, 20 });
+
+		GameRunner runner = new GameRunner(new File("qtable-benchmark"));
+		System.out.printf("%8s %8s %10s %10s%n", "cap", "capture", "nsPerStep", "consumed");
+		for (int cap : caps) {
+			List<String> jvmArgs = new ArrayList<String>();
+			jvmArgs.add("-Drd.qtable.cap=" + cap);
+			double ratio = 0.0, ns = 0.0, consumed = 0.0;
+			for (int s = 0; s < seeds; s++) {
+				GameResult r = runner.play(level, munchersFactory.class.getName(), 1 + s, seconds, jvmArgs);
+				ratio += r.captureRatio();
+				ns += r.get("nsPerStep");
+				consumed += r.consumed();
+			}
+			System.out.printf("%8s %8.3f %10.0f %10.1f%n", cap == 0 ? "none" : Integer.toString(cap),
+					ratio / seeds, ns / seeds, consumed / seeds);
+		}
+	}
+
+	private static int[] caps(String[] args, int from, int[] defaults) {
+		if (args.length <= from) return defaults;
+		int[] caps = new int[args.length - from];
+		for (int i = 0; i < caps.length; i++) caps[i] = Integer.parseInt(args[from + i]);
+		return caps;
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * A row the size of the agents' (one value per action).
+	 */
+	static class Row implements QTable.Row {
+		double[] values = new double[ACTIONS];
+		QTable.Quantized compacted;
+
+		public void compact() {
+			compacted = new QTable.Quantized(values);
+			values = null;
+		}
+
+		public void expand() {
+			values = compacted.toDoubles();
+			compacted = null;
+		}
+
+		public boolean isCompact() {
+			return values == null;
+		}
+	}
+}
@@ -0,0 +1,380 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of Q-table updates, so learning survives a crash
+ * without writing the whole table out every so often.
+ *
+ * The table's durable form is a snapshot (an OffHeapQTable mapped to
+ * name.qt) plus the log segments written since it was last brought up to
+ * date (name.wal.N, numbered by generation). Each update of a row appends
+ * a record with the row's new value for the action, and its visit counts:
+ *
+ *   key (long) | action (byte) | value (float) | visits (char) | stateVisits (int)
+ *
+ * Records hold values, not changes, so applying one twice does no harm.
+ *
+ * append() only copies the record into a memory buffer. A writer thread
+ * commits the buffer every rd.qtable.log.commitMS (group commit): it
+ * writes everything appended since the last commit as one batch
+ * (a record count and a CRC, then the records) and forces it to disk, so
+ * the game thread never waits for the disk.
+ *
+ * When a segment reaches rd.qtable.log.checkpointBytes, or is
+ * rd.qtable.log.checkpointMS old, the writer starts a new one and hands
+ * the old one to a compactor thread. The compactor applies its records to
+ * the snapshot, forces the snapshot, records the generation it has
+ * reached (in name.gen) and deletes the segment. A checkpoint therefore
+ * costs as much as the rows changed since the last one, however large the
+ * table is.
+ *
+ * Opening a log recovers: the snapshot is mapped, and the segments newer
+ * than its generation are applied in order (a torn batch at the end of a
+ * segment, from a crash while it was written, is dropped).
+ *
+ * If a checkpoint fails, the compactor says so and tries the same segment
+ * again a little later (segments must reach the snapshot in order), so a
+ * passing problem, such as a full disk, doesn't stop checkpoints for good.
+ *
+ * Neither thread is ever interrupted: an interrupt during a FileChannel
+ * write closes the channel and tears the batch. close() wakes the writer
+ * and waits for it instead, and stops the compactor through its queue.
+ *
+ * The compactor updates the snapshot while the game reads rows from it,
+ * so lock the log while using getSnapshot().
+ */
+public class QTableLog {
+
+	static final int RECORD_BYTES = 8 + 1 + 4 + 2 + 4;
+	static final int BATCH_HEADER_BYTES = 8;
+
+	/** how long the compactor waits before trying a failed checkpoint again */
+	static final long RETRY_MS = 1000;
+
+	/** queued for the compactor by close() */
+	private static final long STOP = -1;
+
+	final long commitMS = AgentConfig.getLong("rd.qtable.log.commitMS", 50);
+	final long checkpointBytes = AgentConfig.getLong("rd.qtable.log.checkpointBytes", 64L << 20);
+	final long checkpointMS = AgentConfig.getLong("rd.qtable.log.checkpointMS", 60000);
+
+	private final File base;
+	private final int actions;
+	private final OffHeapQTable snapshot;
+
+	/** records appended since the last commit (guarded by 'pendingLock') */
+	private ByteBuffer pending = ByteBuffer.allocate(RECORD_BYTES * 4096);
+	private ByteBuffer committing = ByteBuffer.allocate(RECORD_BYTES * 4096);
+	private final Object pendingLock = new Object();
+	private final Object commitLock = new Object();
+
+	/** the segment being written (guarded by 'commitLock', not the log, so readers never wait for a disk) */
+	private FileChannel segment;
+	private long generation, segmentBytes, segmentStarted;
+
+	private final LinkedBlockingQueue<Long> toCompact = new LinkedBlockingQueue<Long>();
+	private final Thread writer, compactor;
+	private volatile boolean closed;
+
+	/** the writer waits on this between commits, so close() can wake it */
+	private final Object wake = new Object();
+
+	private volatile long records, commits, commitNanos, checkpoints, checkpointNanos, recovered;
+
+	private QTableLog(File base, int actions) throws IOException {
+		this.base = base;
+		this.actions = actions;
+		this.snapshot = OffHeapQTable.map(file(".qt"), actions, false);
+		recover();
+		startSegment();
+
+		writer = new Thread("qtable-log-writer") {
+			public void run() {
+				while (!closed) {
+					synchronized (wake) {
+						try {
+							if (!closed) wake.wait(commitMS);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					// close() commits the rest itself
+					if (closed) return;
+					try {
+						commit();
+					} catch (IOException e) {
+						System.err.println("Q-table log: couldn't commit: " + e);
+					}
+				}
+			}
+		};
+		compactor = new Thread("qtable-log-compactor") {
+			public void run() {
+				try {
+					long gen;
+					while ((gen = toCompact.take()) != STOP) {
+						while (true) {
+							try {
+								compact(gen);
+								break;
+							} catch (IOException e) {
+								System.err.println("Q-table log: couldn't checkpoint generation " + gen
+										+ ", will retry: " + e);
+							}
+							// whatever is left is applied when the log is next opened
+							if (closed) return;
+							Thread.sleep(RETRY_MS);
+						}
+					}
+				} catch (InterruptedException e) {
+					// not expected; the segments left are recovered on open
+				}
+			}
+		};
+		writer.setDaemon(true);
+		compactor.setDaemon(true);
+		writer.start();
+		compactor.start();
+	}
+
+	/**
+	 * Opens (and recovers) the log and snapshot named by base, creating
+	 * them if they don't exist.
+	 */
+	public static QTableLog open(File base, int actions) throws IOException {
+		return new QTableLog(base, actions);
+	}
+
+	private File file(String suffix) {
+		return new File(base.getPath() + suffix);
+	}
+
+	private File segmentFile(long gen) {
+		return file(String.format(".wal.%012d", gen));
+	}
+
+	/**
+	 * Logs a row's new value for one action.
+	 */
+	public void append(long key, int action, float value, char visits, int stateVisits) {
+		synchronized (pendingLock) {
+			if (pending.remaining() < RECORD_BYTES) {
+				ByteBuffer b = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				b.put(pending);
+				pending = b;
+			}
+			pending.putLong(key).put((byte) action).putFloat(value).putChar(visits).putInt(stateVisits);
+		}
+		records++;
+	}
+
+	/**
+	 * Writes and forces everything appended so far, as one batch.
+	 */
+	private void commit() throws IOException {
+		synchronized (commitLock) {
+			commitPending();
+		}
+	}
+
+	private void commitPending() throws IOException {
+		ByteBuffer b;
+		synchronized (pendingLock) {
+			b = pending;
+			pending = committing;
+			committing = b;
+		}
+		if (b.position() > 0) {
+			long t0 = System.nanoTime();
+			b.flip();
+			CRC32 crc = new CRC32();
+			crc.update(b.array(), 0, b.limit());
+			ByteBuffer head = ByteBuffer.allocate(BATCH_HEADER_BYTES);
+			head.putInt(b.limit() / RECORD_BYTES).putInt((int) crc.getValue()).flip();
+			segmentBytes += head.remaining() + b.remaining();
+			while (head.hasRemaining()) segment.write(head);
+			while (b.hasRemaining()) segment.write(b);
+			segment.force(false);
+			commits++;
+			commitNanos += System.nanoTime() - t0;
+		}
+		b.clear();
+
+		if (segmentBytes > 0 && (segmentBytes >= checkpointBytes
+				|| System.currentTimeMillis() - segmentStarted >= checkpointMS)) {
+			segment.close();
+			toCompact.add(generation);
+			startSegment();
+		}
+	}
+
+	private void startSegment() throws IOException {
+		generation++;
+		segment = new RandomAccessFile(segmentFile(generation), "rw").getChannel();
+		segment.truncate(0);
+		segmentBytes = 0;
+		segmentStarted = System.currentTimeMillis();
+	}
+
+	/**
+	 * Applies a finished segment to the snapshot, and deletes it.
+	 */
+	private void compact(long gen) throws IOException {
+		long t0 = System.nanoTime();
+		replay(segmentFile(gen));
+		// forcing only reads the table, so the game can go on reading too
+		snapshot.force();
+		writeGeneration(gen);
+		segmentFile(gen).delete();
+		checkpoints++;
+		checkpointNanos += System.nanoTime() - t0;
+	}
+
+	/**
+	 * Applies the segments newer than the snapshot.
+	 */
+	private void recover() throws IOException {
+		long applied = readGeneration();
+		List<Long> gens = new ArrayList<Long>();
+		String prefix = base.getName() + ".wal.";
+		File dir = base.getAbsoluteFile().getParentFile();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String n : names) {
+				if (!n.startsWith(prefix)) continue;
+				try {
+					gens.add(Long.parseLong(n.substring(prefix.length())));
+				} catch (NumberFormatException e) {
+					// not ours
+				}
+			}
+		}
+		Collections.sort(gens);
+		generation = applied;
+		for (long gen : gens) {
+			if (gen > applied) recovered += replay(segmentFile(gen));
+			generation = Math.max(generation, gen);
+		}
+		if (generation > applied) {
+			snapshot.force();
+			writeGeneration(generation);
+		}
+		for (long gen : gens) segmentFile(gen).delete();
+	}
+
+	/**
+	 * Applies a segment's records to the snapshot, a batch at a time
+	 * (holding the lock for one batch only, so the game isn't kept
+	 * waiting).
+	 *
+	 * @return the number of records applied
+	 */
+	private long replay(File f) throws IOException {
+		byte[] data = Files.readAllBytes(f.toPath());
+		ByteBuffer in = ByteBuffer.wrap(data);
+		long n = 0;
+		while (in.remaining() >= BATCH_HEADER_BYTES) {
+			int count = in.getInt();
+			int crc = in.getInt();
+			int len = count * RECORD_BYTES;
+			if (count < 0 || len > in.remaining()) break;
+			CRC32 c = new CRC32();
+			c.update(data, in.position(), len);
+			if ((int) c.getValue() != crc) break;
+			synchronized (this) {
+				for (int r = 0; r < count; r++) {
+					long key = in.getLong();
+					int action = in.get() & 0xff;
+					float value = in.getFloat();
+					char visits = in.getChar();
+					int stateVisits = in.getInt();
+					if (action >= actions) continue;
+					long slot = snapshot.findOrInsert(key);
+					snapshot.setValue(slot, action, value);
+					snapshot.setVisits(slot, action, visits);
+					snapshot.setStateVisits(slot, stateVisits);
+				}
+			}
+			n += count;
+		}
+		return n;
+	}
+
+	private long readGeneration() throws IOException {
+		File f = file(".gen");
+		if (!f.exists()) return 0;
+		return Long.parseLong(new String(Files.readAllBytes(f.toPath()), "UTF-8").trim());
+	}
+
+	private void writeGeneration(long gen) throws IOException {
+		File tmp = file(".gen.tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(Long.toString(gen).getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file(".gen").toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the snapshot (lock the log while using it)
+	 */
+	OffHeapQTable getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Commits what's pending and stops the log. Segments that weren't
+	 * compacted yet are applied when the log is next opened.
+	 */
+	public void close() {
+		if (closed) return;
+		closed = true;
+		synchronized (wake) {
+			wake.notifyAll();
+		}
+		toCompact.add(STOP);
+		// an interrupt would close the channel under the last commit, so
+		// it's put off until the log is closed
+		boolean interrupted = Thread.interrupted();
+		while (true) {
+			try {
+				writer.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		try {
+			synchronized (commitLock) {
+				commitPending();
+				segment.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Q-table log: couldn't commit: " + e);
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	public String stats() {
+		return String.format("records=%d commits=%d msPerCommit=%.2f checkpoints=%d msPerCheckpoint=%.1f"
+				+ " recovered=%d generation=%d snapshot: %s",
+				records, commits, commits == 0 ? 0.0 : commitNanos / 1e6 / commits, checkpoints,
+				checkpoints == 0 ? 0.0 : checkpointNanos / 1e6 / checkpoints, recovered, generation, snapshot.stats());
+	}
+}
@@ -0,0 +1,423 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A performance regression suite: plays learnOneAgent and munchersOne
+ * headless on every bundled level, with fixed seeds and a fixed simulated
+ * duration, and checks the results against a baseline.
+ *
+ * For each agent and level it records, averaged over the seeds:
+ *
+ *   - runtime: agent ns per step and bytes allocated per step (from
+ *     HeadlessGame's RESULT line)
+ *   - learning: captures, escapes, crystals consumed and capture ratio at
+ *     the end, and the curve of crystals, captures and escapes over time
+ *     from each game's performance.out
+ *
+ * Each seed seeds both the agents and the engine's own random numbers
+ * (see HeadlessGame), so a level, agent and seed always play the same
+ * game. A change in the capture ratio therefore comes from the agent, not
+ * from unseeded spawns or movement. The seeds add more games to the
+ * average; they are not there to average out noise. The report records
+ * this as "seeding".
+ *
+ * The report is written as JSON (rd.regression.report, by default
+ * regression/report.json). If a baseline report exists
+ * (rd.regression.baseline, by default regression/baseline.json), each
+ * result is compared with it, and the suite exits with status 1 if
+ *
+ *   - ns per step grew by more than rd.regression.maxSlowdown (0.25, i.e. 25%)
+ *   - bytes per step grew by more than rd.regression.maxAllocGrowth (0.5)
+ *   - the capture ratio fell by more than rd.regression.maxRatioDrop (0.05)
+ *
+ * It also exits with status 1 if any game failed, and that includes a game
+ * in which no insect was captured or escaped (GameRunner rejects those):
+ * comparing capture ratios of 0 with 0 would pass no matter what the
+ * agents did. The same goes for an agent and level with no finite curve
+ * in their performance.out files.
+ *
+ * To accept the current results as the new baseline, copy the report over
+ * the baseline. Timings are only comparable on the same machine.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. RegressionBenchmark [seconds] [seeds] [parallelism]
+ */
+public class RegressionBenchmark {
+
+	static final String[] AGENTS = { "learnOneFactory", "munchersFactory" };
+
+	final double maxSlowdown = AgentConfig.getDouble("rd.regression.maxSlowdown", 0.25);
+	final double maxAllocGrowth = AgentConfig.getDouble("rd.regression.maxAllocGrowth", 0.5);
+	final double maxRatioDrop = AgentConfig.getDouble("rd.regression.maxRatioDrop", 0.05);
+
+	public static void main(String[] args) throws Exception {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 600;
+		int seeds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int parallel = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		File report = new File(AgentConfig.getString("rd.regression.report", "regression/report.json"));
+		File baseline = new File(AgentConfig.getString("rd.regression.baseline", "regression/baseline.json"));
+
+		List<String> levels = Tournament.listLevels(new File(AgentConfig.getString("rd.levels", "levels")));
+		if (levels.isEmpty()) {
+			System.err.println("No levels to play");
+			System.exit(1);
+		}
+
+		final GameRunner runner = new GameRunner(new File("regression"));
+		ExecutorService pool = Executors.newFixedThreadPool(parallel);
+		Map<String, List<Future<GameResult>>> games = new LinkedHashMap<String, List<Future<GameResult>>>();
+		for (final String agent : AGENTS) {
+			for (final String level : levels) {
+				List<Future<GameResult>> l = new ArrayList<Future<GameResult>>();
+				for (int s = 1; s <= seeds; s++) {
+					final long seed = s;
+					final long secs = seconds;
+					l.add(pool.submit(new Callable<GameResult>() {
+						public GameResult call() throws Exception {
+							return runner.play(level, agent, seed, secs, null);
+						}
+					}));
+				}
+				games.put(agent + "\t" + level, l);
+			}
+		}
+
+		List<Summary> results = new ArrayList<Summary>();
+		for (Map.Entry<String, List<Future<GameResult>>> e : games.entrySet()) {
+			String[] key = e.getKey().split("\t");
+			Summary sum = new Summary(key[0], GameRunner.baseName(key[1]));
+			for (Future<GameResult> f : e.getValue()) {
+				try {
+					sum.add(f.get());
+				} catch (Exception ex) {
+					System.err.println("Game failed: " + ex.getCause());
+					sum.failed++;
+				}
+			}
+			results.add(sum);
+		}
+		pool.shutdown();
+
+		// a failed game (one that hung, crashed or finished no insects), or a
+		// result without a usable learning curve, means the games or their
+		// logs are broken, and comparing it with a baseline would be noise
+		int broken = 0;
+		for (Summary s : results) {
+			if (s.failed > 0) {
+				System.err.println(s.agent + "/" + s.level + ": " + s.failed + " of "
+						+ (s.games + s.failed) + " games failed");
+				broken++;
+			} else if (s.games == 0 || !s.curveIsFinite()) {
+				System.err.println(s.agent + "/" + s.level + ": " + s.games
+						+ " games finished, and their performance.out curves are missing or not finite");
+				broken++;
+			}
+		}
+
+		report.getAbsoluteFile().getParentFile().mkdirs();
+		writeReport(report, seconds, seeds, results);
+		System.out.println("Wrote " + report);
+
+		int failures = 0;
+		if (baseline.exists()) {
+			failures = new RegressionBenchmark().compare(results, Json.parse(read(baseline)));
+		} else {
+			System.out.println("No baseline (" + baseline + "); nothing to compare with");
+		}
+		System.exit(failures + broken > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Prints each result next to its baseline.
+	 *
+	 * @return the number of regressions
+	 */
+	@SuppressWarnings("unchecked")
+	int compare(List<Summary> results, Object baseline) {
+		Map<String, Map<String, Object>> base = new LinkedHashMap<String, Map<String, Object>>();
+		for (Object o : (List<Object>) ((Map<String, Object>) baseline).get("results")) {
+			Map<String, Object> r = (Map<String, Object>) o;
+			base.put(r.get("agent") + "/" + r.get("level"), r);
+		}
+
+		int failures = 0;
+		System.out.println(String.format("%-30s %22s %22s %22s", "", "ns/step", "bytes/step", "capture ratio"));
+		for (Summary s : results) {
+			Map<String, Object> b = base.get(s.agent + "/" + s.level);
+			if (b == null) {
+				System.out.println(String.format("%-30s (not in the baseline)", s.agent + "/" + s.level));
+				continue;
+			}
+			double ns = number(b, "nsPerStep"), bytes = number(b, "bytesPerStep"), ratio = number(b, "captureRatio");
+			List<String> why = new ArrayList<String>();
+			if (ns > 0 && s.nsPerStep() > ns * (1 + maxSlowdown)) why.add("slower");
+			if (bytes > 0 && s.bytesPerStep() > bytes * (1 + maxAllocGrowth)) why.add("allocates more");
+			if (s.captureRatio() < ratio - maxRatioDrop) why.add("captures less");
+			System.out.println(String.format("%-30s %10.0f -> %9.0f %10.0f -> %9.0f %10.3f -> %9.3f %s",
+					s.agent + "/" + s.level, ns, s.nsPerStep(), bytes, s.bytesPerStep(), ratio, s.captureRatio(),
+					why.isEmpty() ? "ok" : "REGRESSION: " + why));
+			if (!why.isEmpty()) failures++;
+		}
+		return failures;
+	}
+
+	private static double number(Map<String, Object> m, String key) {
+		Object v = m.get(key);
+		return v instanceof Number ? ((Number) v).doubleValue() : 0.0;
+	}
+
+	static void writeReport(File f, long seconds, int seeds, List<Summary> results) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"seconds\": ").append(seconds).append(",\n  \"seeds\": ").append(seeds);
+		sb.append(",\n  \"seeding\": \"agents and engine\"");
+		sb.append(",\n  \"results\": [");
+		for (int i = 0; i < results.size(); i++) {
+			sb.append(i == 0 ? "\n" : ",\n");
+			results.get(i).toJson(sb);
+		}
+		sb.append("\n  ]\n}\n");
+		FileWriter out = new FileWriter(f);
+		try {
+			out.write(sb.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	static String read(File f) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		BufferedReader in = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) sb.append(line).append('\n');
+		} finally {
+			in.close();
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The results of one agent on one level, over all the seeds.
+	 */
+	static class Summary {
+		final String agent, level;
+		int games;
+		/** games that didn't produce a result, see GameRunner.play */
+		int failed;
+		double captured, escaped, consumed, ratio, nsPerStep, bytesPerStep;
+
+		/** [row][time, crystals, captured, escaped], summed over the games */
+		final List<double[]> curve = new ArrayList<double[]>();
+		final List<Integer> curveGames = new ArrayList<Integer>();
+
+		Summary(String agent, String level) {
+			this.agent = agent;
+			this.level = level;
+		}
+
+		void add(GameResult r) throws IOException {
+			games++;
+			captured += r.captured();
+			escaped += r.escaped();
+			consumed += r.consumed();
+			ratio += r.captureRatio();
+			nsPerStep += r.get("nsPerStep");
+			bytesPerStep += r.get("bytesPerStep");
+
+			File log = new File(r.workDir, "performance.out");
+			if (!log.exists()) return;
+			BufferedReader in = new BufferedReader(new FileReader(log));
+			try {
+				String line;
+				int row = 0;
+				double[] v = new double[4];
+				while ((line = in.readLine()) != null) {
+					// skips the header, and anything else that isn't a row of numbers
+					if (!parseRow(line, v)) continue;
+					if (row == curve.size()) {
+						curve.add(new double[4]);
+						curveGames.add(0);
+					}
+					double[] c = curve.get(row);
+					for (int k = 0; k < 4; k++) c[k] += v[k];
+					curveGames.set(row, curveGames.get(row) + 1);
+					row++;
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Reads a performance.out row (time, crystals, captured, escaped).
+		 *
+		 * @return false if the line isn't four finite numbers
+		 */
+		static boolean parseRow(String line, double[] v) {
+			String[] f = line.trim().split("\t");
+			if (f.length < 4) return false;
+			try {
+				for (int k = 0; k < 4; k++) {
+					v[k] = Double.parseDouble(f[k]);
+					if (Double.isNaN(v[k]) || Double.isInfinite(v[k])) return false;
+				}
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if there is a curve and all of it is finite
+		 */
+		boolean curveIsFinite() {
+			if (curve.isEmpty()) return false;
+			for (int i = 0; i < curve.size(); i++) {
+				for (double x : curve.get(i)) {
+					double avg = x / curveGames.get(i);
+					if (Double.isNaN(avg) || Double.isInfinite(avg)) return false;
+				}
+			}
+			return true;
+		}
+
+		double captureRatio() { return games == 0 ? 0.0 : ratio / games; }
+
+		double nsPerStep() { return games == 0 ? 0.0 : nsPerStep / games; }
+
+		double bytesPerStep() { return games == 0 ? 0.0 : bytesPerStep / games; }
+
+		void toJson(StringBuilder sb) {
+			int n = Math.max(1, games);
+			sb.append("    {\"agent\": \"").append(agent).append("\", \"level\": \"").append(level).append('"');
+			sb.append(", \"games\": ").append(games).append(", \"failed\": ").append(failed);
+			sb.append(String.format(Locale.ROOT, ", \"captured\": %.1f, \"escaped\": %.1f, \"consumed\": %.1f",
+					captured / n, escaped / n, consumed / n));
+			sb.append(String.format(Locale.ROOT, ", \"captureRatio\": %.4f, \"nsPerStep\": %.0f, \"bytesPerStep\": %.0f",
+					captureRatio(), nsPerStep(), bytesPerStep()));
+			sb.append(",\n     \"curve\": [");
+			for (int i = 0; i < curve.size(); i++) {
+				double[] c = curve.get(i);
+				int g = curveGames.get(i);
+				if (i > 0) sb.append(", ");
+				sb.append(String.format(Locale.ROOT, "[%.0f, %.1f, %.1f, %.1f]", c[0] / g, c[1] / g, c[2] / g, c[3] / g));
+			}
+			sb.append("]}");
+		}
+	}
+}
+
+/**
+ * Just enough of a JSON reader for the regression reports: objects become
+ * LinkedHashMaps, arrays ArrayLists, numbers Doubles.
+ */
+class Json {
+	private final String s;
+	private int i;
+
+	private Json(String s) {
+		this.s = s;
+	}
+
+	static Object parse(String s) {
+		Json j = new Json(s);
+		Object v = j.value();
+		j.space();
+		if (j.i != s.length()) throw j.error("trailing characters");
+		return v;
+	}
+
+	private Object value() {
+		space();
+		if (i >= s.length()) throw error("unexpected end");
+		char c = s.charAt(i);
+		if (c == '{') {
+			i++;
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			space();
+			if (peek('}')) return m;
+			do {
+				space();
+				String k = string();
+				space();
+				expect(':');
+				m.put(k, value());
+				space();
+			} while (peek(','));
+			expect('}');
+			return m;
+		}
+		if (c == '[') {
+			i++;
+			List<Object> l = new ArrayList<Object>();
+			space();
+			if (peek(']')) return l;
+			do {
+				l.add(value());
+				space();
+			} while (peek(','));
+			expect(']');
+			return l;
+		}
+		if (c == '"') return string();
+		if (s.startsWith("true", i)) { i += 4; return Boolean.TRUE; }
+		if (s.startsWith("false", i)) { i += 5; return Boolean.FALSE; }
+		if (s.startsWith("null", i)) { i += 4; return null; }
+		int start = i;
+		while (i < s.length() && "+-0123456789.eE".indexOf(s.charAt(i)) >= 0) i++;
+		if (start == i) throw error("unexpected '" + c + "'");
+		return Double.valueOf(s.substring(start, i));
+	}
+
+	private String string() {
+		expect('"');
+		StringBuilder sb = new StringBuilder();
+		while (i < s.length() && s.charAt(i) != '"') {
+			char c = s.charAt(i++);
+			if (c == '\\' && i < s.length()) {
+				c = s.charAt(i++);
+				if (c == 'n') c = '\n';
+				else if (c == 't') c = '\t';
+				else if (c == 'u') {
+					c = (char) Integer.parseInt(s.substring(i, i + 4), 16);
+					i += 4;
+				}
+			}
+			sb.append(c);
+		}
+		expect('"');
+		return sb.toString();
+	}
+
+	private void space() {
+		while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+	}
+
+	private boolean peek(char c) {
+		if (i < s.length() && s.charAt(i) == c) {
+			i++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char c) {
+		if (!peek(c)) throw error("expected '" + c + "'");
+	}
+
+	private IllegalArgumentException error(String what) {
+		return new IllegalArgumentException("Bad JSON at " + i + ": " + what);
+	}
+}
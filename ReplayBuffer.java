@@ -0,0 +1,54 @@
+import java.util.SplittableRandom;
+
+/**
+ * The last so many transitions (state features, action, reward, next
+ * state features) in preallocated arrays, for training from random
+ * minibatches. The agent adds and the trainer samples from different
+ * threads, so both are synchronized; sampling copies the minibatch out.
+ */
+class ReplayBuffer {
+
+	private final int capacity, features;
+	private final float[] state, next, reward;
+	private final int[] action;
+	private long added;
+
+	ReplayBuffer(int capacity, int features) {
+		this.capacity = capacity;
+		this.features = features;
+		state = new float[capacity * features];
+		next = new float[capacity * features];
+		reward = new float[capacity];
+		action = new int[capacity];
+	}
+
+	synchronized void add(float[] s, int sOffset, int a, float r, float[] s2, int s2Offset) {
+		int i = (int) (added++ % capacity);
+		System.arraycopy(s, sOffset, state, i * features, features);
+		System.arraycopy(s2, s2Offset, next, i * features, features);
+		action[i] = a;
+		reward[i] = r;
+	}
+
+	synchronized int size() {
+		return (int) Math.min(added, capacity);
+	}
+
+	synchronized long getAdded() {
+		return added;
+	}
+
+	/**
+	 * Copies n transitions, chosen at random, into the arrays given.
+	 */
+	synchronized void sample(int n, SplittableRandom rn, float[] s, int[] a, float[] r, float[] s2) {
+		int size = size();
+		for (int k = 0; k < n; k++) {
+			int i = rn.nextInt(size);
+			System.arraycopy(state, i * features, s, k * features, features);
+			System.arraycopy(next, i * features, s2, k * features, features);
+			a[k] = action[i];
+			r[k] = reward[i];
+		}
+	}
+}
@@ -0,0 +1,44 @@
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Tile;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ * One slot of the SensorEventQueue. Slots in the ring are reused, so
+ * handlers must copy out anything they want to keep.
+ */
+class SensorEvent {
+	static final int INSECT_CREATED = 1;
+	static final int INSECT_CAPTURED = 2;
+	static final int INSECT_OBTAINED_GOAL = 3;
+	static final int INSECT_MOVED = 4;
+	static final int AIR_CURRENT = 5;
+	static final int GENERATOR_CHANGED = 6;
+	static final int TILE_CHANGED = 7;
+
+	int type;
+	/** for a spilled event, the ring sequence it was spilled at */
+	long seq;
+	InsectView insect;
+	AirCurrentGenerator acg;
+	Tile tile;
+	int x, y;
+	double xmag, ymag;
+
+	void set(int type, InsectView i, AirCurrentGenerator acg, int x, int y,
+			double xmag, double ymag) {
+		this.type = type;
+		this.insect = i;
+		this.acg = acg;
+		this.x = x;
+		this.y = y;
+		this.xmag = xmag;
+		this.ymag = ymag;
+	}
+
+	/** drop references so drained slots don't keep dead insects alive */
+	void clear() {
+		insect = null;
+		acg = null;
+		tile = null;
+	}
+}
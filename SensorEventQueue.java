@@ -0,0 +1,215 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Tile;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ * A single-producer/single-consumer ring buffer that carries sensor events
+ * from the game thread (the producer) to the agent (the consumer).
+ *
+ * The ring is made of preallocated, mutable SensorEvent slots so publishing
+ * an event does not allocate. The producer claims a slot, fills it in and
+ * then publishes it by advancing its cursor; the consumer drains every
+ * published slot at the start of step() and then advances its own cursor
+ * to hand the slots back. Neither side ever takes a lock, and the consumer
+ * never sees a half written slot because the producer's cursor is only
+ * advanced (with release semantics) once the slot is complete.
+ *
+ * The game keeps sending events even while the agent is not being stepped
+ * (e.g., before the user turns the agent on), so the producer must never
+ * block. When the ring is full, events spill into an overflow queue. Once
+ * the overflow is in use, every later event also goes there until the
+ * consumer has emptied it, and each spilled event carries the sequence it
+ * was spilled at, so the consumer handles the ring up to there first and
+ * the events stay in order.
+ *
+ * The overflow holds at most rd.sensors.overflow events. Past that, insect
+ * moves are dropped (and counted): they make up nearly all the traffic,
+ * and an insect whose move was dropped is put right by its next one. The
+ * rest (insects appearing and leaving, air currents) are always kept.
+ */
+public class SensorEventQueue {
+
+	/**
+	 * Receives events as they are drained from the queue.
+	 */
+	public interface Handler {
+		void handle(SensorEvent e);
+	}
+
+	/** default number of slots in the ring (must be a power of two) */
+	static final int DEFAULT_CAPACITY = 1 << 14;
+
+	/** the number of spilled events past which insect moves are dropped */
+	static final int OVERFLOW_LIMIT = AgentConfig.getInt("rd.sensors.overflow", 1 << 18);
+
+	private final SensorEvent[] ring;
+	private final int mask;
+
+	/** next sequence the producer will write; padded against false sharing */
+	private final PaddedSequence published = new PaddedSequence();
+
+	/** next sequence the consumer will read; padded against false sharing */
+	private final PaddedSequence consumed = new PaddedSequence();
+
+	/** producer side cache of the consumer's cursor, to avoid volatile reads */
+	private long cachedConsumed;
+
+	private final ConcurrentLinkedQueue<SensorEvent> overflow = new ConcurrentLinkedQueue<SensorEvent>();
+
+	/** the overflow's size (ConcurrentLinkedQueue.size() walks the queue) */
+	private final AtomicInteger overflowSize = new AtomicInteger();
+
+	/** insect moves dropped because the overflow was full (producer only) */
+	private long dropped;
+
+	public SensorEventQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public SensorEventQueue(int capacity) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+		}
+		ring = new SensorEvent[capacity];
+		for (int i = 0; i < capacity; i++) {
+			ring[i] = new SensorEvent();
+		}
+		mask = capacity - 1;
+	}
+
+	public void publishInsectCreated(InsectView i, int x, int y) {
+		publish(SensorEvent.INSECT_CREATED, i, null, null, x, y, 0.0, 0.0);
+	}
+
+	public void publishInsectCaptured(InsectView i, AirCurrentGenerator acg) {
+		publish(SensorEvent.INSECT_CAPTURED, i, acg, null, 0, 0, 0.0, 0.0);
+	}
+
+	public void publishInsectObtainedGoal(InsectView i) {
+		publish(SensorEvent.INSECT_OBTAINED_GOAL, i, null, null, 0, 0, 0.0, 0.0);
+	}
+
+	public void publishInsectMoved(InsectView i, int x, int y) {
+		publish(SensorEvent.INSECT_MOVED, i, null, null, x, y, 0.0, 0.0);
+	}
+
+	public void publishAirCurrent(AirCurrentGenerator acg, int x, int y, double xmag, double ymag) {
+		publish(SensorEvent.AIR_CURRENT, null, acg, null, x, y, xmag, ymag);
+	}
+
+	/**
+	 * The generator's new setting is copied into the event (x holds the power,
+	 * y the direction's ordinal) since it may change again before the drain.
+	 */
+	public void publishGeneratorChanged(AirCurrentGenerator acg, int power, int direction) {
+		publish(SensorEvent.GENERATOR_CHANGED, null, acg, null, power, direction, 0.0, 0.0);
+	}
+
+	/**
+	 * A tile placed once the game is under way (a tower built, or the
+	 * terrain edited).
+	 */
+	public void publishTileChanged(Tile t, int x, int y) {
+		publish(SensorEvent.TILE_CHANGED, null, null, t, x, y, 0.0, 0.0);
+	}
+
+	/**
+	 * Producer side: copies the event into the next free slot. Only the
+	 * game thread may call this.
+	 */
+	private void publish(int type, InsectView i, AirCurrentGenerator acg, Tile t, int x, int y,
+			double xmag, double ymag) {
+		long seq = published.get();
+
+		if (overflow.isEmpty() && hasRoom(seq)) {
+			SensorEvent e = ring[(int) (seq & mask)];
+			e.set(type, i, acg, x, y, xmag, ymag);
+			e.tile = t;
+			published.lazySet(seq + 1);
+			return;
+		}
+		if (type == SensorEvent.INSECT_MOVED && overflowSize.get() >= OVERFLOW_LIMIT) {
+			dropped++;
+			return;
+		}
+		SensorEvent e = new SensorEvent();
+		e.set(type, i, acg, x, y, xmag, ymag);
+		e.tile = t;
+		// the ring events before this one are the ones published so far
+		e.seq = seq;
+		overflowSize.incrementAndGet();
+		overflow.add(e);
+	}
+
+	private boolean hasRoom(long seq) {
+		if (seq - cachedConsumed < ring.length) return true;
+		cachedConsumed = consumed.get();
+		return seq - cachedConsumed < ring.length;
+	}
+
+	/**
+	 * Consumer side: hands every published event to the handler, oldest
+	 * first. Only the agent's thread may call this.
+	 *
+	 * @return the number of events drained
+	 */
+	public int drain(Handler handler) {
+		int n = drainRing(handler, published.get());
+
+		// the producer may have filled the ring and spilled after the line
+		// above, so each spilled event waits for the ring events before it
+		SensorEvent e;
+		while ((e = overflow.peek()) != null) {
+			n += drainRing(handler, e.seq);
+			overflow.poll();
+			overflowSize.decrementAndGet();
+			handler.handle(e);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Hands the ring's events up to (not including) sequence 'to' to the
+	 * handler, and gives their slots back.
+	 */
+	private int drainRing(Handler handler, long to) {
+		long from = consumed.get();
+		for (long seq = from; seq < to; seq++) {
+			SensorEvent e = ring[(int) (seq & mask)];
+			handler.handle(e);
+			e.clear();
+		}
+		if (to <= from) return 0;
+		consumed.lazySet(to);
+		return (int) (to - from);
+	}
+
+	/**
+	 * @return an estimate of the number of events waiting to be drained
+	 */
+	public int backlog() {
+		return (int) (published.get() - consumed.get()) + overflowSize.get();
+	}
+
+	/**
+	 * @return the number of insect moves dropped because the overflow was
+	 *   full (an estimate, if called off the game thread)
+	 */
+	public long dropped() {
+		return dropped;
+	}
+
+	/**
+	 * An AtomicLong followed by a cache line of padding so the producer
+	 * and consumer cursors never share a line.
+	 */
+	@SuppressWarnings("serial")
+	static final class PaddedSequence extends AtomicLong {
+		long p1, p2, p3, p4, p5, p6, p7;
+	}
+}
@@ -0,0 +1,540 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Direction;
+import jig.misc.rd.Tile;
+import jig.misc.rd.ai.InsectView;
+import jig.misc.rd.tiles.VacuumTower;
+
+/**
+ * A recording of the insect events an agent's sensors received, which can
+ * be played back through another agent without a game.
+ *
+ * The trace is text, one line per event:
+ *
+ *   world W H         the map's size (first)
+ *   frameMS T         the time between agent steps
+ *   tower X Y         an air current generator, by its top left cell
+ *   c ID NAME X Y     insect ID (of type NAME, e.g. scarabug) appeared
+ *   m ID X Y          insect ID moved to another cell
+ *   x ID X Y          insect ID was captured by the tower at X Y
+ *   g ID              insect ID reached its goal
+ *   f [N]             the agent stepped (N times) after the events above
+ *
+ * Lines starting with # are comments. Only the insects are recorded: the
+ * air currents are the agent's own doing, so on playback they come from
+ * the agent's actions (see WarmupTower).
+ *
+ * The point of playing a trace back is to warm up the JIT. A new agent is
+ * slow for its first few thousand steps, until its hot paths (building
+ * state vectors, cell codes, picking actions, the hash maps) are compiled;
+ * playing a short trace through a throwaway copy of the agent before the
+ * game starts (see rd.warmup in munchersOne) gets that over with. A trace
+ * ships with the game (levels/warmup.trace, made by 'synthesize'), and
+ * setting rd.trace.record to a file name records a real game's sensors.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. SensorTrace synthesize out.trace [insects] [seed]
+ */
+public class SensorTrace {
+
+	/** the trace that comes with the game (a file, or else a class path resource) */
+	static final String BUNDLED = "levels/warmup.trace";
+
+	static final int CREATED = 1, MOVED = 2, CAPTURED = 3, GOAL = 4, STEP = 5;
+
+	int width, height;
+	long frameMS = 200;
+
+	/** x, y of each tower */
+	int[] towers = new int[0];
+
+	/** the events, an opcode followed by its operands (see playOnce) */
+	int[] ops = new int[0];
+	int opCount;
+
+	/** the insect types, by their index in a CREATED event */
+	final List<String> names = new ArrayList<String>();
+
+	/** one more than the largest insect ID */
+	int insects;
+	int steps;
+
+	/**
+	 * Reads a trace from a file or, if there's no such file, from the class
+	 * path (so the bundled trace is found whatever the working directory).
+	 */
+	public static SensorTrace load(String name) throws IOException {
+		File f = new File(name);
+		if (f.isFile()) {
+			BufferedReader in = new BufferedReader(new FileReader(f));
+			try {
+				return parse(in);
+			} finally {
+				in.close();
+			}
+		}
+		InputStream s = SensorTrace.class.getClassLoader().getResourceAsStream(name);
+		if (s == null) throw new FileNotFoundException("No trace " + name);
+		BufferedReader in = new BufferedReader(new InputStreamReader(s, "UTF-8"));
+		try {
+			return parse(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	static SensorTrace parse(BufferedReader in) throws IOException {
+		SensorTrace t = new SensorTrace();
+		HashMap<String, Integer> nameIndex = new HashMap<String, Integer>();
+		int towerCount = 0;
+		int lineNo = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			lineNo++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			String[] w = line.split("\\s+");
+			try {
+				if (w[0].equals("world")) {
+					t.width = Integer.parseInt(w[1]);
+					t.height = Integer.parseInt(w[2]);
+				} else if (w[0].equals("frameMS")) {
+					t.frameMS = Long.parseLong(w[1]);
+				} else if (w[0].equals("tower")) {
+					if (2 * towerCount + 2 > t.towers.length) t.towers = Arrays.copyOf(t.towers, 2 * towerCount + 8);
+					t.towers[2 * towerCount++] = Integer.parseInt(w[1]);
+					t.towers[2 * towerCount - 1] = Integer.parseInt(w[2]);
+				} else if (w[0].equals("c")) {
+					Integer n = nameIndex.get(w[2]);
+					if (n == null) {
+						n = t.names.size();
+						nameIndex.put(w[2], n);
+						t.names.add(w[2]);
+					}
+					t.add(CREATED, t.insect(w[1]), n, Integer.parseInt(w[3]), Integer.parseInt(w[4]));
+				} else if (w[0].equals("m")) {
+					t.add(MOVED, t.insect(w[1]), Integer.parseInt(w[2]), Integer.parseInt(w[3]));
+				} else if (w[0].equals("x")) {
+					t.add(CAPTURED, t.insect(w[1]), Integer.parseInt(w[2]), Integer.parseInt(w[3]));
+				} else if (w[0].equals("g")) {
+					t.add(GOAL, t.insect(w[1]));
+				} else if (w[0].equals("f")) {
+					int n = w.length > 1 ? Integer.parseInt(w[1]) : 1;
+					t.add(STEP, n);
+					t.steps += n;
+				} else {
+					throw new IOException("Unknown event '" + w[0] + "'");
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("Bad trace line " + lineNo + ": " + line + " (" + e + ")");
+			}
+		}
+		t.towers = Arrays.copyOf(t.towers, 2 * towerCount);
+		if (t.width <= 0 || t.height <= 0) throw new IOException("The trace has no world size");
+		return t;
+	}
+
+	private int insect(String id) {
+		int i = Integer.parseInt(id);
+		if (i < 0) throw new NumberFormatException("negative insect " + id);
+		insects = Math.max(insects, i + 1);
+		return i;
+	}
+
+	private void add(int... op) {
+		if (opCount + op.length > ops.length) ops = Arrays.copyOf(ops, Math.max(64, 2 * (opCount + op.length)));
+		System.arraycopy(op, 0, ops, opCount, op.length);
+		opCount += op.length;
+	}
+
+	/**
+	 * What a playback did.
+	 */
+	static class Playback {
+		int steps;
+		long events, nanos;
+
+		public String toString() {
+			return String.format("%d steps, %d events in %.1f ms", steps, events, nanos / 1e6);
+		}
+	}
+
+	/**
+	 * Plays the trace through an agent that hasn't seen a game: sets up its
+	 * sensors with the trace's world and towers (WarmupTowers), then
+	 * publishes the events to them and steps the agent as the trace says,
+	 * 'passes' times over.
+	 *
+	 * The agent is only good for throwing away afterwards.
+	 */
+	Playback play(BaseLearningAgent agent, int passes) {
+		Playback p = new Playback();
+		long t0 = System.nanoTime();
+		LearningAgentSensorSystem sensors = agent.sensors;
+		sensors.initializeWorld(width, height);
+		WarmupTower[] placed = new WarmupTower[towers.length / 2];
+		for (int k = 0; k < placed.length; k++) {
+			WarmupTower t = new WarmupTower(towers[2 * k], towers[2 * k + 1], sensors);
+			placed[k] = t;
+			for (int x = t.getGridX(); x < Math.min(width, t.getGridX() + t.getGridWidth()); x++) {
+				for (int y = t.getGridY(); y < Math.min(height, t.getGridY() + t.getGridHeight()); y++) {
+					sensors.initializeTile(t, x, y);
+				}
+			}
+		}
+		for (int pass = 0; pass < passes; pass++) playOnce(agent, placed, p);
+		p.nanos = System.nanoTime() - t0;
+		return p;
+	}
+
+	private void playOnce(BaseLearningAgent agent, WarmupTower[] placed, Playback p) {
+		LearningAgentSensorSystem sensors = agent.sensors;
+		InsectView[] alive = new InsectView[insects];
+		for (int i = 0; i < opCount; ) {
+			switch (ops[i]) {
+			case CREATED:
+				alive[ops[i + 1]] = new TraceInsect(names.get(ops[i + 2]));
+				sensors.insectCreated(alive[ops[i + 1]], ops[i + 3], ops[i + 4]);
+				i += 5;
+				break;
+			case MOVED:
+				if (alive[ops[i + 1]] != null) sensors.insectGridLocationChanged(alive[ops[i + 1]], ops[i + 2], ops[i + 3]);
+				i += 4;
+				break;
+			case CAPTURED:
+				WarmupTower by = towerAt(placed, ops[i + 2], ops[i + 3]);
+				if (alive[ops[i + 1]] != null && by != null) {
+					sensors.insectCaptured(alive[ops[i + 1]], by);
+					alive[ops[i + 1]] = null;
+				}
+				i += 4;
+				break;
+			case GOAL:
+				if (alive[ops[i + 1]] != null) {
+					sensors.insectObtainedGoal(alive[ops[i + 1]]);
+					alive[ops[i + 1]] = null;
+				}
+				i += 2;
+				break;
+			case STEP:
+				for (int n = 0; n < ops[i + 1]; n++) {
+					for (WarmupTower t : placed) t.consume();
+					agent.step(frameMS);
+					p.steps++;
+				}
+				i += 2;
+				continue;
+			default:
+				throw new IllegalStateException("Bad opcode " + ops[i]);
+			}
+			p.events++;
+		}
+		// insects left over would still be on the map for the next pass
+		for (InsectView iv : alive) {
+			if (iv != null) sensors.insectObtainedGoal(iv);
+		}
+		agent.step(frameMS);
+	}
+
+	private static WarmupTower towerAt(WarmupTower[] placed, int x, int y) {
+		for (WarmupTower t : placed) {
+			if (t.getGridX() == x && t.getGridY() == y) return t;
+		}
+		return null;
+	}
+
+	/**
+	 * Writes what a sensor system receives to a trace file (see
+	 * LearningAgentSensorSystem.setTraceRecorder). Runs of steps without
+	 * events are written as one line.
+	 */
+	static class Recorder {
+		private final Writer out;
+		private final IdentityHashMap<InsectView, Integer> ids = new IdentityHashMap<InsectView, Integer>();
+		private final IdentityHashMap<AirCurrentGenerator, Boolean> towersSeen =
+				new IdentityHashMap<AirCurrentGenerator, Boolean>();
+		private int nextId, pendingSteps;
+		private boolean started;
+
+		Recorder(File f, long frameMS) throws IOException {
+			out = new BufferedWriter(new FileWriter(f));
+			out.write("# recorded sensor events (see SensorTrace)\n");
+			out.write("frameMS " + frameMS + "\n");
+			final Recorder r = this;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					r.close();
+				}
+			});
+		}
+
+		synchronized void world(int width, int height) {
+			write("world " + width + " " + height);
+		}
+
+		synchronized void tile(Tile t) {
+			if (!(t instanceof AirCurrentGenerator) || towersSeen.put((AirCurrentGenerator) t, Boolean.TRUE) != null) return;
+			AirCurrentGenerator acg = (AirCurrentGenerator) t;
+			write("tower " + acg.getGridX() + " " + acg.getGridY());
+		}
+
+		synchronized void event(SensorEvent e) {
+			switch (e.type) {
+			case SensorEvent.INSECT_CREATED:
+				ids.put(e.insect, nextId);
+				write("c " + nextId++ + " " + e.insect.shortName() + " " + e.x + " " + e.y);
+				break;
+			case SensorEvent.INSECT_MOVED:
+				Integer id = ids.get(e.insect);
+				if (id != null) write("m " + id + " " + e.x + " " + e.y);
+				break;
+			case SensorEvent.INSECT_CAPTURED:
+				id = ids.remove(e.insect);
+				if (id != null) write("x " + id + " " + e.acg.getGridX() + " " + e.acg.getGridY());
+				break;
+			case SensorEvent.INSECT_OBTAINED_GOAL:
+				id = ids.remove(e.insect);
+				if (id != null) write("g " + id);
+				break;
+			default:
+				// the agent's own air currents aren't recorded
+			}
+		}
+
+		synchronized void step() {
+			if (started) pendingSteps++;
+		}
+
+		private void write(String line) {
+			try {
+				if (pendingSteps > 0) {
+					out.write(pendingSteps == 1 ? "f\n" : "f " + pendingSteps + "\n");
+					pendingSteps = 0;
+				}
+				out.write(line);
+				out.write('\n');
+				started = true;
+			} catch (IOException e) {
+				System.err.println("Couldn't record the sensor trace: " + e);
+			}
+		}
+
+		synchronized void close() {
+			try {
+				if (pendingSteps > 0) out.write("f " + pendingSteps + "\n");
+				pendingSteps = 0;
+				out.close();
+			} catch (IOException e) {
+				System.err.println("Couldn't record the sensor trace: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Writes a synthetic trace: insects of the three kinds walk from the
+	 * left edge of a small map to the right edge, wandering up and down,
+	 * past four towers that capture some of those next to them.
+	 */
+	static void synthesize(File f, int count, long seed) throws IOException {
+		final int width = 24, height = 16;
+		final int[] towerCells = { 6, 4, 10, 10, 15, 5, 19, 11 };
+		final String[] kinds = { "scarabug", "scarlite", "sqworm" };
+		SplittableRandom rn = new SplittableRandom(seed);
+
+		Writer out = new BufferedWriter(new FileWriter(f));
+		try {
+			out.write("# a synthetic trace for warming up the JIT (java SensorTrace synthesize)\n");
+			out.write("world " + width + " " + height + "\n");
+			out.write("frameMS 200\n");
+			for (int k = 0; k < towerCells.length; k += 2) {
+				out.write("tower " + towerCells[k] + " " + towerCells[k + 1] + "\n");
+			}
+			int[] x = new int[count], y = new int[count];
+			boolean[] gone = new boolean[count];
+			int created = 0, left = count, idle = 0;
+			while (left > 0) {
+				StringBuilder frame = new StringBuilder();
+				if (created < count && rn.nextInt(3) == 0) {
+					x[created] = 0;
+					y[created] = 2 + rn.nextInt(height - 4);
+					frame.append("c ").append(created).append(' ').append(kinds[rn.nextInt(kinds.length)])
+							.append(' ').append(x[created]).append(' ').append(y[created]).append('\n');
+					created++;
+				}
+				for (int i = 0; i < created; i++) {
+					if (gone[i] || rn.nextInt(3) != 0) continue;
+					int t = nearTower(towerCells, x[i], y[i]);
+					if (t >= 0 && rn.nextInt(4) == 0) {
+						frame.append("x ").append(i).append(' ').append(towerCells[t]).append(' ')
+								.append(towerCells[t + 1]).append('\n');
+						gone[i] = true;
+						left--;
+						continue;
+					}
+					if (x[i] == width - 1) {
+						frame.append("g ").append(i).append('\n');
+						gone[i] = true;
+						left--;
+						continue;
+					}
+					int nx = x[i] + (rn.nextInt(4) == 0 ? 0 : 1);
+					int ny = Math.max(0, Math.min(height - 1, y[i] + rn.nextInt(-1, 2)));
+					if (nx == x[i] && ny == y[i]) continue;
+					x[i] = nx;
+					y[i] = ny;
+					frame.append("m ").append(i).append(' ').append(nx).append(' ').append(ny).append('\n');
+				}
+				if (frame.length() == 0) {
+					idle++;
+					continue;
+				}
+				if (idle > 0) out.write(idle == 1 ? "f\n" : "f " + idle + "\n");
+				out.write(frame.toString());
+				idle = 1;
+			}
+			out.write("f " + idle + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/** @return the index in towerCells of a tower next to the cell, or -1 */
+	private static int nearTower(int[] towerCells, int x, int y) {
+		for (int k = 0; k < towerCells.length; k += 2) {
+			int dx = x - towerCells[k], dy = y - towerCells[k + 1];
+			if (dx >= -1 && dx <= 2 && dy >= -1 && dy <= 2) return k;
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || !args[0].equals("synthesize")) {
+			System.err.println("usage: SensorTrace synthesize out.trace [insects] [seed]");
+			System.exit(2);
+		}
+		int count = args.length > 2 ? Integer.parseInt(args[2]) : 150;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+		synthesize(new File(args[1]), count, seed);
+		SensorTrace t = load(args[1]);
+		System.out.println(args[1] + ": " + t.insects + " insects, " + t.steps + " steps, " + t.towers.length / 2
+				+ " towers");
+	}
+}
+
+/**
+ * A vacuum tower for playing a SensorTrace back: it isn't on a playing
+ * field, so instead of the engine working out its air current, it reports
+ * a simple one to the sensors itself (pulling toward the tower, 'power'
+ * cells out in the direction it faces), the way the engine would. It uses
+ * a crystal per step while it's on.
+ *
+ * Towers are numbered when they're made, so a game that warms up first
+ * numbers its real towers (and seeds their random streams) differently
+ * than one that doesn't; each is still repeatable with a fixed rd.seed.
+ */
+class WarmupTower extends VacuumTower {
+	private final LearningAgentSensorSystem sensors;
+	private int power;
+	private Direction facing = Direction.north;
+
+	WarmupTower(int gx, int gy, LearningAgentSensorSystem sensors) {
+		this.gx = gx;
+		this.gy = gy;
+		this.sensors = sensors;
+	}
+
+	public int getPowerSetting() {
+		return power;
+	}
+
+	public Direction getFacingDirection() {
+		return facing;
+	}
+
+	public void setPower(int p) {
+		setPowerAndDirection(p, facing);
+	}
+
+	public void setFacingDirection(Direction d) {
+		setPowerAndDirection(power, d);
+	}
+
+	public void setPowerAndDirection(int p, Direction d) {
+		p = Math.max(0, Math.min(POWER_SETTINGS, p));
+		if (p == power && d == facing) return;
+		blow(0.0);
+		power = p;
+		facing = d;
+		sensors.airCurrentGeneratorChanged(this);
+		blow(1.0);
+	}
+
+	/** reports the current on each cell it reaches, times 'scale' (0 tears it down) */
+	private void blow(double scale) {
+		int w = sensors.getWorldWidth(), h = sensors.getWorldHeight();
+		int dx = facing.xhat(), dy = facing.yhat();
+		int x0 = dx > 0 ? gx + getGridWidth() - 1 : gx;
+		int y0 = dy > 0 ? gy + getGridHeight() - 1 : gy;
+		for (int k = 1; k <= power; k++) {
+			int x = x0 + k * dx, y = y0 + k * dy;
+			if (x < 0 || y < 0 || x >= w || y >= h) break;
+			double m = scale * power / (double) (POWER_SETTINGS * k);
+			sensors.updateAirCurrent(this, x, y, -dx * m, -dy * m);
+		}
+	}
+
+	/** the same answer as a vacuum's, without the engine's debugging output */
+	public boolean canBeEntered(int gx, int gy, Direction d) {
+		return false;
+	}
+
+	void consume() {
+		if (power > 0) crystalsConsumed++;
+	}
+}
+
+/**
+ * An insect from a SensorTrace (there's no engine insect behind it).
+ */
+class TraceInsect extends InsectView {
+	private static int next;
+	private final String name;
+	private final int id = next++;
+
+	TraceInsect(String name) {
+		super(null);
+		this.name = name;
+	}
+
+	public String shortName() {
+		return name;
+	}
+
+	public int hashCode() {
+		return id;
+	}
+
+	public boolean equals(InsectView o) {
+		return o == this;
+	}
+
+	public String toString() {
+		return "[Trace insect " + name + " id (" + id + ")]";
+	}
+}
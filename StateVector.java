@@ -1,13 +1,9 @@
-
-
-
-import java.awt.geom.Point2D;
+import java.awt.Point;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 import jig.misc.rd.AirCurrentGenerator;
-import jig.misc.rd.Tile;
-import jig.misc.rd.ai.InsectView;
+import jig.misc.rd.Direction;
 import jig.misc.rd.tiles.FanTower;
 
 
@@ -28,6 +24,82 @@ public class StateVector {
 	 * more cells are taken into account, but also increases the state space.
 	 */
 	static final int RADIUS = 1;
+
+	/**
+	 * If true (rd.state.air), each cell's code also includes a coarse 
+	 * description of the air current on that cell.
+	 * 
+	 * @see CellContents#getAirCurrentCode(float, float)
+	 */
+	static final boolean AIR_CURRENT_FEATURE = AgentConfig.getBoolean("rd.state.air", false);
+
+	/**
+	 * If true (rd.state.route), the state also records which sides of the
+	 * neighborhood insects outside it are about to enter, judging by their
+	 * shortest routes to their destination (see GoalDistanceField). Only
+	 * insects that would reach the neighborhood within ROUTE_LOOKAHEAD
+	 * cells count, so towers can react early without a larger RADIUS.
+	 */
+	static final boolean ROUTE_FEATURE = AgentConfig.getBoolean("rd.state.route", false);
+	static final int ROUTE_LOOKAHEAD = AgentConfig.getInt("rd.state.routeLookahead", 3);
+
+	/**
+	 * If true (rd.state.farField), the state also counts the insects in a
+	 * band FAR_RADIUS cells wide around the neighborhood, split into the
+	 * north, east, south and west sides (each side band takes in both of
+	 * its corners, so a corner counts for two sides). Each side's count is
+	 * coarsened to none, a few (FAR_FEW or less) or many, so towers see bugs
+	 * coming from afar without the state space of a larger RADIUS. The
+	 * counts come from the sensors' InsectDensityIndex.
+	 */
+	static final boolean FAR_FIELD_FEATURE = AgentConfig.getBoolean("rd.state.farField", false);
+	static final int FAR_RADIUS = AgentConfig.getInt("rd.state.farRadius", 4);
+	static final int FAR_FEW = 2;
+
+	/** approach sides, as bits of the route code (clockwise from north) */
+	static final int NORTH_SIDE = 1, EAST_SIDE = 2, SOUTH_SIDE = 4, WEST_SIDE = 8;
+
+	/**
+	 * If true (rd.state.symmetry), states are put into a canonical
+	 * orientation: a neighborhood that is a rotation or reflection of
+	 * another (an insect north of a tower, or one east of it) becomes the
+	 * same state, so what is learned in one applies to all of them. Agents
+	 * must turn their chosen directions back with toWorld() (see
+	 * AgentAction.doAction(AirCurrentGenerator, StateVector)).
+	 */
+	static final boolean SYMMETRY_FEATURE = AgentConfig.getBoolean("rd.state.symmetry", false);
+
+	/**
+	 * If true (rd.state.predict), the state also records where insects are
+	 * expected to be PREDICT_STEPS agent steps from now, judging by their
+	 * recent moves (see InsectTracks): which sides of the neighborhood
+	 * insects outside it are coming into, and whether any insect in it is
+	 * on its way out. Unlike the route feature this follows what insects
+	 * actually do (blown about by the towers) rather than their way home,
+	 * so towers can get ready for an insect instead of chasing it.
+	 */
+	static final boolean PREDICT_FEATURE = AgentConfig.getBoolean("rd.state.predict", false);
+	static final int PREDICT_STEPS = AgentConfig.getInt("rd.state.predictSteps", 2);
+
+	/** the predict code's bit for an insect leaving the neighborhood */
+	static final int LEAVING = 16;
+
+	/**
+	 * @return the optional state features that are on, as bits (air
+	 *   current 1, route 2, symmetry 4, far field 8, predict 16), so saved
+	 *   policies can tell if they were learned with the same states
+	 */
+	static int featureBits() {
+		return (AIR_CURRENT_FEATURE ? 1 : 0) | (ROUTE_FEATURE ? 2 : 0) | (SYMMETRY_FEATURE ? 4 : 0)
+				| (FAR_FIELD_FEATURE ? 8 : 0) | (PREDICT_FEATURE ? 16 : 0);
+	}
+
+	/**
+	 * How far from a tower a change can affect its state.
+	 */
+	static final int WATCH_RADIUS = RADIUS + Math.max(Math.max(ROUTE_FEATURE ? ROUTE_LOOKAHEAD : 0,
+			FAR_FIELD_FEATURE ? FAR_RADIUS : 0),
+			PREDICT_FEATURE ? PREDICT_STEPS * AgentConfig.getInt("rd.tracks.maxSpeed", 2) : 0);
 	
 	/**
 	 * Member variables with the 'ns' prefix are NOT actually part of the state
@@ -50,6 +122,34 @@ public class StateVector {
 	 * at the center of this neighborhood.
 	 */
 	private Class<? extends AirCurrentGenerator> towerType;
+
+	/**
+	 * the sides insects are approaching the neighborhood from (0 unless
+	 * the route feature is on)
+	 */
+	private int routeCode;
+
+	/**
+	 * the coarse insect counts beyond the neighborhood, two bits per side
+	 * (north in the lowest bits, then east, south and west); 0 unless the
+	 * far field feature is on
+	 */
+	private int farCode;
+
+	/**
+	 * the sides insects are expected to come into the neighborhood from
+	 * (as route sides), plus LEAVING if one is expected to go; 0 unless
+	 * the predict feature is on
+	 */
+	private int predictCode;
+	
+	/**
+	 * the symmetry (see NeighborhoodSymmetry) that took the neighborhood,
+	 * as seen on the map, to this state; 0 (the identity) unless the
+	 * symmetry feature is on. Two states can be equal with different
+	 * transforms, so it isn't part of the state.
+	 */
+	private int nsTransform;
 	
 	/** The hashcode for the state is precomputed and stored here */
 	private int hashCode;
@@ -131,10 +231,250 @@ public class StateVector {
 				s.hashCode += code;
 			}
 		}
+
+		if (ROUTE_FEATURE) {
+			s.routeCode = approachingSides(acg, sensors);
+			s.hashCode += 31 * s.routeCode;
+		}
+		if (FAR_FIELD_FEATURE) {
+			s.farCode = farField(acg, sensors.getInsectDensity());
+			s.hashCode += 1009 * s.farCode;
+		}
+		if (PREDICT_FEATURE && sensors.getInsectTracks() != null) {
+			s.predictCode = predictedMoves(acg, sensors.getInsectTracks());
+			s.hashCode += 10007 * s.predictCode;
+		}
+
+		if (SYMMETRY_FEATURE) s.canonicalize();
 		
 		return s;
 		
 	}
+
+	/**
+	 * Follows the shortest route of every insect near (but outside) the
+	 * tower's neighborhood for up to ROUTE_LOOKAHEAD cells.
+	 * 
+	 * @return the sides of the neighborhood those routes enter, as a mask
+	 *   of NORTH_SIDE, EAST_SIDE, SOUTH_SIDE and WEST_SIDE
+	 */
+	static int approachingSides(AirCurrentGenerator acg, LearningAgentSensorSystem sensors) {
+		GoalDistanceField goals = sensors.getGoalDistances();
+		int h = goals.getHeight();
+		int tx0 = acg.getGridX(), tx1 = tx0 + acg.getGridWidth();
+		int ty0 = acg.getGridY(), ty1 = ty0 + acg.getGridHeight();
+		int nx0 = tx0 - RADIUS, nx1 = tx1 + RADIUS, ny0 = ty0 - RADIUS, ny1 = ty1 + RADIUS;
+		int mask = 0;
+		for (Point p : sensors.getInsectLocations().values()) {
+			if (p.x < nx0 - ROUTE_LOOKAHEAD || p.x >= nx1 + ROUTE_LOOKAHEAD
+					|| p.y < ny0 - ROUTE_LOOKAHEAD || p.y >= ny1 + ROUTE_LOOKAHEAD) continue;
+			if (p.x >= nx0 && p.x < nx1 && p.y >= ny0 && p.y < ny1) continue;
+			int x = p.x, y = p.y;
+			for (int k = 0; k < ROUTE_LOOKAHEAD; k++) {
+				int c = goals.nextCell(x, y);
+				if (c < 0) break;
+				x = c / h;
+				y = c % h;
+				if (x >= nx0 && x < nx1 && y >= ny0 && y < ny1) {
+					if (y < ty0) mask |= NORTH_SIDE;
+					if (y >= ty1) mask |= SOUTH_SIDE;
+					if (x < tx0) mask |= WEST_SIDE;
+					if (x >= tx1) mask |= EAST_SIDE;
+					break;
+				}
+			}
+		}
+		return mask;
+	}
+	/**
+	 * Looks PREDICT_STEPS ahead on the tracks of the insects near the
+	 * tower's neighborhood: only the cells an insect could come into it
+	 * from are visited, and only their insects' predictions are made.
+	 *
+	 * @return the sides of the neighborhood that insects outside it are
+	 *   predicted to be in, as a mask of NORTH_SIDE, EAST_SIDE, SOUTH_SIDE
+	 *   and WEST_SIDE, plus LEAVING if an insect in it is predicted out
+	 */
+	static int predictedMoves(AirCurrentGenerator acg, InsectTracks tracks) {
+		int h = tracks.getHeight();
+		int tx0 = acg.getGridX(), tx1 = tx0 + acg.getGridWidth();
+		int ty0 = acg.getGridY(), ty1 = ty0 + acg.getGridHeight();
+		int nx0 = tx0 - RADIUS, nx1 = tx1 + RADIUS, ny0 = ty0 - RADIUS, ny1 = ty1 + RADIUS;
+		int reach = tracks.reach(PREDICT_STEPS);
+		int x0 = Math.max(0, nx0 - reach), x1 = Math.min(tracks.getWidth(), nx1 + reach);
+		int y0 = Math.max(0, ny0 - reach), y1 = Math.min(h, ny1 + reach);
+		int code = 0;
+		for (int x = x0; x < x1; x++) {
+			for (int y = y0; y < y1; y++) {
+				boolean inside = x >= nx0 && x < nx1 && y >= ny0 && y < ny1;
+				for (int s = tracks.first(x, y); s >= 0; s = tracks.next(s)) {
+					int c = tracks.predicted(s, PREDICT_STEPS);
+					int px = c / h, py = c % h;
+					boolean willBe = px >= nx0 && px < nx1 && py >= ny0 && py < ny1;
+					if (inside && !willBe) {
+						code |= LEAVING;
+					} else if (!inside && willBe) {
+						if (py < ty0) code |= NORTH_SIDE;
+						if (py >= ty1) code |= SOUTH_SIDE;
+						if (px < tx0) code |= WEST_SIDE;
+						if (px >= tx1) code |= EAST_SIDE;
+					}
+				}
+			}
+		}
+		return code;
+	}
+
+	/**
+	 * Replaces the cell codes, route, far field and predict codes with
+	 * those of the smallest (lexicographically) of the neighborhood's
+	 * symmetric images, and remembers which symmetry produced it.
+	 */
+	private void canonicalize() {
+		NeighborhoodSymmetry sym = NeighborhoodSymmetry.forTower(nsTowerWidth, nsTowerHeight);
+		int best = 0;
+		for (int t = 1; t < NeighborhoodSymmetry.TRANSFORMS; t++) {
+			if (sym.allows(t) && sym.compare(cellContentsCode, routeCode, farCode, predictCode, t, best) < 0) best = t;
+		}
+		if (best == 0) return;
+
+		int[] codes = new int[cellContentsCode.length];
+		hashCode = nsTowerWidth + nsTowerHeight + towerType.hashCode();
+		for (int j = 0; j < codes.length; j++) {
+			codes[j] = sym.cellCode(cellContentsCode, best, j);
+			hashCode += codes[j];
+		}
+		cellContentsCode = codes;
+		routeCode = NeighborhoodSymmetry.sides(best, routeCode);
+		hashCode += 31 * routeCode;
+		farCode = NeighborhoodSymmetry.sideFields(best, farCode, 2);
+		hashCode += 1009 * farCode;
+		predictCode = NeighborhoodSymmetry.sides(best, predictCode & ~LEAVING) | (predictCode & LEAVING);
+		hashCode += 10007 * predictCode;
+		nsTransform = best;
+	}
+
+	/**
+	 * @return the symmetry that took the map's neighborhood to this state
+	 *   (0 for the identity)
+	 */
+	int getTransform() {
+		return nsTransform;
+	}
+
+	/**
+	 * Turns a direction in this state's (canonical) frame back into the
+	 * map's frame.
+	 */
+	public Direction toWorld(Direction d) {
+		if (nsTransform == 0) return d;
+		return NeighborhoodSymmetry.direction(NeighborhoodSymmetry.inverse(nsTransform), d);
+	}
+
+	/**
+	 * @return a 64-bit key for the state, for tables that store states by
+	 *   key alone (see OffHeapQTable). Unlike hashCode() it's the same in
+	 *   every process, and two different states are very unlikely (about
+	 *   one chance in 2^64 per pair) to share a key.
+	 */
+	public long longKey() {
+		long h = towerType.getName().hashCode() * 0x9E3779B97F4A7C15L;
+		h = mixKey(h, nsTowerWidth);
+		h = mixKey(h, nsTowerHeight);
+		for (int code : cellContentsCode) h = mixKey(h, code);
+		h = mixKey(h, routeCode);
+		// keys learned without the far field or predict features stay the same
+		if (farCode != 0) h = mixKey(h, farCode);
+		if (predictCode != 0) h = mixKey(h, predictCode);
+		return h ^ (h >>> 31);
+	}
+
+	/** the length of features() */
+	static final int FEATURES = 8 * 3 + 8 * 2 + 4 + 4 + 2 + 4 + 5;
+
+	/**
+	 * Describes the state with a fixed number of numbers, whatever the
+	 * tower's size, for function approximators (see ValueNetwork).
+	 *
+	 * The neighborhood's cells are pooled into the eight compass sectors
+	 * around the tower (its sides and corners). Each sector has the number
+	 * of scarabugs, scarlites and sqworms in it (up to 3, as a fraction of
+	 * 3), and the direction of its strongest air current (x and y, half
+	 * length for weak currents). Then come the route sides (0 or 1 each),
+	 * the far field counts (0, 0.5 or 1 per side), the tower's width and
+	 * height (in cells, over 4), its type (hashed into one of 4 slots), and
+	 * the predicted sides and leaving bit (0 or 1 each). Features that are
+	 * off are 0.
+	 *
+	 * @param x receives the features at x[offset] to x[offset + FEATURES - 1]
+	 */
+	void features(float[] x, int offset) {
+		Arrays.fill(x, offset, offset + FEATURES, 0f);
+		int air = offset + 8 * 3, route = air + 8 * 2, far = route + 4, size = far + 4, type = size + 2;
+		int predict = type + 4;
+		int[] strongest = new int[8];
+		int w = nsTowerWidth, h = nsTowerHeight, j = 0;
+		for (int y = -RADIUS; y < h + RADIUS && j < cellContentsCode.length; y++) {
+			for (int cx = -RADIUS; cx < w + RADIUS; cx++) {
+				if (y >= 0 && y < h && cx >= 0 && cx < w) continue;
+				int code = cellContentsCode[j++];
+				int sector = CellContents.directionOf(cx < 0 ? -1 : (cx >= w ? 1 : 0),
+						y < 0 ? -1 : (y >= h ? 1 : 0)).ordinal();
+				int insects = code % CellContents.AIR_CURRENT_MULTIPLIER;
+				x[offset + 3 * sector] += insects % 10;
+				x[offset + 3 * sector + 1] += (insects / 10) % 10;
+				x[offset + 3 * sector + 2] += insects / 100;
+				int a = code / CellContents.AIR_CURRENT_MULTIPLIER;
+				if (a > strongest[sector]) strongest[sector] = a;
+			}
+		}
+		Direction[] dirs = Direction.values();
+		for (int s = 0; s < 8; s++) {
+			for (int k = 0; k < 3; k++) x[offset + 3 * s + k] = Math.min(x[offset + 3 * s + k], 3f) / 3f;
+			int a = strongest[s];
+			if (a == 0) continue;
+			Direction d = dirs[(a - 1) % dirs.length];
+			float len = a > dirs.length ? 1f : 0.5f;
+			x[air + 2 * s] = d.xhat() * len;
+			x[air + 2 * s + 1] = d.yhat() * len;
+		}
+		int[] sideBits = { NORTH_SIDE, EAST_SIDE, SOUTH_SIDE, WEST_SIDE };
+		for (int s = 0; s < 4; s++) {
+			if ((routeCode & sideBits[s]) != 0) x[route + s] = 1f;
+			x[far + s] = ((farCode >> (2 * s)) & 3) / 2f;
+			if ((predictCode & sideBits[s]) != 0) x[predict + s] = 1f;
+		}
+		if ((predictCode & LEAVING) != 0) x[predict + 4] = 1f;
+		x[size] = w / 4f;
+		x[size + 1] = h / 4f;
+		x[type + (towerType.getName().hashCode() & 3)] = 1f;
+	}
+
+	private static long mixKey(long h, int v) {
+		h = (h ^ (v & 0xffffffffL)) * 0xbf58476d1ce4e5b9L;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * @return the coarse counts of insects in the four side bands around
+	 *   the tower's neighborhood (see FAR_FIELD_FEATURE), two bits per side
+	 */
+	static int farField(AirCurrentGenerator acg, InsectDensityIndex density) {
+		int tx0 = acg.getGridX(), tx1 = tx0 + acg.getGridWidth();
+		int ty0 = acg.getGridY(), ty1 = ty0 + acg.getGridHeight();
+		int nx0 = tx0 - RADIUS, nx1 = tx1 + RADIUS, ny0 = ty0 - RADIUS, ny1 = ty1 + RADIUS;
+		int fx0 = nx0 - FAR_RADIUS, fx1 = nx1 + FAR_RADIUS, fy0 = ny0 - FAR_RADIUS, fy1 = ny1 + FAR_RADIUS;
+		int all = InsectDensityIndex.ALL;
+		return farLevel(density.count(all, fx0, fy0, fx1, ny0))
+				| farLevel(density.count(all, nx1, fy0, fx1, fy1)) << 2
+				| farLevel(density.count(all, fx0, ny1, fx1, fy1)) << 4
+				| farLevel(density.count(all, fx0, fy0, nx0, fy1)) << 6;
+	}
+
+	private static int farLevel(int n) {
+		return n == 0 ? 0 : (n <= FAR_FEW ? 1 : 2);
+	}
+
 	@Override
 	public int hashCode() { return hashCode; }
 
@@ -151,6 +491,9 @@ public class StateVector {
 		if (sv.hashCode != hashCode) return false;
 		
 		if (!sv.towerType.equals(towerType)) return false;
+		if (sv.routeCode != routeCode) return false;
+		if (sv.farCode != farCode) return false;
+		if (sv.predictCode != predictCode) return false;
 		if (sv.cellContentsCode.length != cellContentsCode.length) return false;
 		for (int i = 0, e = cellContentsCode.length; i < e; i++) {
 			if (sv.cellContentsCode[i] != cellContentsCode[i]) return false;
@@ -200,6 +543,31 @@ public class StateVector {
 			}
 			sb.append('\n');
 		}
+		if (ROUTE_FEATURE) {
+			sb.append("Approaching from:");
+			if ((routeCode & NORTH_SIDE) != 0) sb.append(" N");
+			if ((routeCode & EAST_SIDE) != 0) sb.append(" E");
+			if ((routeCode & SOUTH_SIDE) != 0) sb.append(" S");
+			if ((routeCode & WEST_SIDE) != 0) sb.append(" W");
+			sb.append('\n');
+		}
+		if (FAR_FIELD_FEATURE) {
+			String[] level = { "none", "few", "many" };
+			sb.append(String.format("Far field: N %s E %s S %s W %s\n", level[farCode & 3],
+					level[(farCode >> 2) & 3], level[(farCode >> 4) & 3], level[(farCode >> 6) & 3]));
+		}
+		if (PREDICT_FEATURE) {
+			sb.append("Predicted from:");
+			if ((predictCode & NORTH_SIDE) != 0) sb.append(" N");
+			if ((predictCode & EAST_SIDE) != 0) sb.append(" E");
+			if ((predictCode & SOUTH_SIDE) != 0) sb.append(" S");
+			if ((predictCode & WEST_SIDE) != 0) sb.append(" W");
+			if ((predictCode & LEAVING) != 0) sb.append(" (one leaving)");
+			sb.append('\n');
+		}
+		if (SYMMETRY_FEATURE) {
+			sb.append("Transform: ").append(nsTransform).append('\n');
+		}
 		
 		return sb.toString();
 	}
@@ -207,119 +575,195 @@ public class StateVector {
 }
 
 /**
- * State is typically computed based on the contents of cells 
- * within a small region.  Each cell, thus has its own individual
- * state which is encapsulated by CellContents objects and the
- * values returned by their getContentsCode() method.
- * 
- * @author Scott Wallace
+ * The rotations and reflections of a tower's neighborhood.
+ *
+ * A transform t (0 to 7) mirrors the neighborhood left to right if t >= 4,
+ * then turns it clockwise by (t % 4) quarter turns. All eight apply to
+ * square towers; towers that aren't square only have the four that keep
+ * their shape (the identity, the half turn and the two mirrors).
  *
+ * Everything is precomputed: for each transform, where each cell of the
+ * neighborhood (in StateVector's layout) comes from, and what becomes of
+ * each direction, air current code and route code.
  */
-class CellContents {
-	LinkedList<InsectView> insects;
-	HashMap<AirCurrentGenerator,Point2D.Double> aircurrents; 
-	
-	public CellContents() {
-		insects = new LinkedList<InsectView>();
-		aircurrents = new HashMap<AirCurrentGenerator,Point2D.Double>();
+class NeighborhoodSymmetry {
+
+	static final int TRANSFORMS = 8;
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	/** [t][direction ordinal] -> ordinal of the transformed direction */
+	private static final int[][] DIRECTION_MAP = new int[TRANSFORMS][DIRECTIONS.length];
+
+	/** [t][air current code] -> transformed code (see CellContents.getAirCurrentCode) */
+	private static final int[][] AIR_MAP = new int[TRANSFORMS][1 + 2 * DIRECTIONS.length];
+
+	/** [t][route code] -> transformed route code */
+	private static final int[][] SIDE_MAP = new int[TRANSFORMS][16];
+
+	/** [t][side (0 north, 1 east, 2 south, 3 west)] -> the side it becomes */
+	private static final int[][] SIDE_INDEX = new int[TRANSFORMS][4];
+
+	private static final int[] INVERSE = new int[TRANSFORMS];
+
+	static {
+		int[] sides = { StateVector.NORTH_SIDE, StateVector.EAST_SIDE, StateVector.SOUTH_SIDE, StateVector.WEST_SIDE };
+		Direction[] sideDirections = { Direction.north, Direction.east, Direction.south, Direction.west };
+		for (int t = 0; t < TRANSFORMS; t++) {
+			for (Direction d : DIRECTIONS) {
+				DIRECTION_MAP[t][d.ordinal()] = CellContents.directionOf(
+						x(t, d.xhat(), d.yhat()), y(t, d.xhat(), d.yhat())).ordinal();
+			}
+			for (int code = 1; code < AIR_MAP[t].length; code++) {
+				int strong = (code > DIRECTIONS.length) ? DIRECTIONS.length : 0;
+				AIR_MAP[t][code] = 1 + DIRECTION_MAP[t][code - 1 - strong] + strong;
+			}
+			for (int mask = 0; mask < 16; mask++) {
+				for (int k = 0; k < sides.length; k++) {
+					if ((mask & sides[k]) == 0) continue;
+					int to = DIRECTION_MAP[t][sideDirections[k].ordinal()];
+					for (int m = 0; m < sides.length; m++) {
+						if (sideDirections[m].ordinal() == to) SIDE_MAP[t][mask] |= sides[m];
+					}
+				}
+			}
+			for (int k = 0; k < sides.length; k++) {
+				int to = DIRECTION_MAP[t][sideDirections[k].ordinal()];
+				for (int m = 0; m < sides.length; m++) {
+					if (sideDirections[m].ordinal() == to) SIDE_INDEX[t][k] = m;
+				}
+			}
+		}
+		for (int t = 0; t < TRANSFORMS; t++) {
+			for (int u = 0; u < TRANSFORMS; u++) {
+				if (x(u, x(t, 1, 2), y(t, 1, 2)) == 1 && y(u, x(t, 1, 2), y(t, 1, 2)) == 2) INVERSE[t] = u;
+			}
+		}
 	}
-	
-	/**
-	 * Called by the Agent's Sensory Interface when the tile corresponding
-	 * to this particular cell location is set.
-	 * 
-	 * @param t
-	 */
-	public void setTile(Tile t) {
-		// tile type is not important in my version of state, so I'll just ignore
-		// this value
+
+	/** the x coordinate of (x, y) after transform t (y grows southward) */
+	static int x(int t, int x, int y) {
+		if (t >= 4) x = -x;
+		switch (t % 4) {
+		case 1: return -y;
+		case 2: return -x;
+		case 3: return y;
+		default: return x;
+		}
 	}
-	
-	/**
-	 * Called by the Agent's Sensory Interface when an insect has entered
-	 * this cell.
-	 *  
-	 *  
-	 * @param i the agent's view of an insect in this cell
-	 */
-	public void addInsect(InsectView i) {
-		insects.add(i);
+
+	/** the y coordinate of (x, y) after transform t */
+	static int y(int t, int x, int y) {
+		if (t >= 4) x = -x;
+		switch (t % 4) {
+		case 1: return x;
+		case 2: return -y;
+		case 3: return -x;
+		default: return y;
+		}
+	}
+
+	static int inverse(int t) {
+		return INVERSE[t];
+	}
+
+	static Direction direction(int t, Direction d) {
+		return DIRECTIONS[DIRECTION_MAP[t][d.ordinal()]];
+	}
+
+	static int sides(int t, int routeCode) {
+		return SIDE_MAP[t][routeCode];
 	}
 
 	/**
-	 * Called by the Agent's Sensory Interface when an insect has leaves
-	 * this cell.
-	 *  
-	 * @param i the agent's view of an insect in this cell
+	 * Moves per-side fields of the given width (side k in bits
+	 * [k * bits, (k + 1) * bits), clockwise from north) to their sides after
+	 * transform t.
 	 */
-	public void removeInsect(InsectView i) {
-		insects.remove(i);
+	static int sideFields(int t, int code, int bits) {
+		int mask = (1 << bits) - 1, r = 0;
+		for (int k = 0; k < 4; k++) {
+			r |= ((code >> (k * bits)) & mask) << (SIDE_INDEX[t][k] * bits);
+		}
+		return r;
 	}
-	
+
+	private static final HashMap<Integer, NeighborhoodSymmetry> BY_SIZE = new HashMap<Integer, NeighborhoodSymmetry>();
+
 	/**
-	 * Called by the Agent's Sensory Interface when an air current generator 
-	 * (e.g., a vacuum) changes the current applied to this cell (because
-	 * the vacuum changed its power or direction).
-	 * 
-	 * NOTE: while the probability of an insect is directly related to the
-	 * air currents in the cell it occupies, however for simple maps where
-	 * only one ACG can add an air current to any particular cell, it is 
-	 * unnecessary to use this information to calculate the state.
-	 * 
+	 * @return the (shared) symmetries of a tower of the given size
 	 */
-	public void setAirCurrent(AirCurrentGenerator acg, double xmag, double ymag) {
-		if (xmag == 0.0 && ymag == 0.0) {
-			aircurrents.remove(acg);
-			return;
-		} 
-		
-		Point2D.Double current = aircurrents.get(acg);
-		if (current == null) {
-			// add one for this ACG
-			current = new Point2D.Double(xmag, ymag);
-			aircurrents.put(acg, current);
-		} else {
-			// destructively change the ACG's hashed value
-			current.x = xmag;
-			current.y = ymag;
+	static synchronized NeighborhoodSymmetry forTower(int width, int height) {
+		Integer key = width * 1024 + height;
+		NeighborhoodSymmetry s = BY_SIZE.get(key);
+		if (s == null) {
+			s = new NeighborhoodSymmetry(width, height);
+			BY_SIZE.put(key, s);
 		}
+		return s;
 	}
-	
+
+	/** [t][j] -> the index of the cell that transform t moves to index j (null if t isn't allowed) */
+	private final int[][] source = new int[TRANSFORMS][];
+
+	private NeighborhoodSymmetry(int width, int height) {
+		int r = StateVector.RADIUS;
+		int nw = width + 2 * r, nh = height + 2 * r;
+
+		// the index of each neighborhood cell, in StateVector's layout
+		int[][] index = new int[nw][nh];
+		int n = 0;
+		for (int cy = 0; cy < nh; cy++) {
+			for (int cx = 0; cx < nw; cx++) {
+				boolean tower = cx >= r && cx < r + width && cy >= r && cy < r + height;
+				index[cx][cy] = tower ? -1 : n++;
+			}
+		}
+
+		for (int t = 0; t < TRANSFORMS; t++) {
+			if (t % 2 == 1 && nw != nh) continue; // quarter turns only fit squares
+			source[t] = new int[n];
+			for (int cy = 0; cy < nh; cy++) {
+				for (int cx = 0; cx < nw; cx++) {
+					if (index[cx][cy] < 0) continue;
+					// doubled offsets from the center, so they're whole numbers
+					int u = 2 * cx - (nw - 1), v = 2 * cy - (nh - 1);
+					int tx = (x(t, u, v) + nw - 1) / 2, ty = (y(t, u, v) + nh - 1) / 2;
+					source[t][index[tx][ty]] = index[cx][cy];
+				}
+			}
+		}
+	}
+
+	boolean allows(int t) {
+		return source[t] != null;
+	}
+
 	/**
-	 * Get the 'state' of a cell that is outside of the playable area. This should
-	 * either be set to something special, or the same state as an empty cell.
-	 * 
+	 * @return the code at index j of the neighborhood after transform t
 	 */
-	public static int getOutOfBoundsContentsCode() {
-		return 0;
+	int cellCode(int[] codes, int t, int j) {
+		int code = codes[source[t][j]];
+		if (!StateVector.AIR_CURRENT_FEATURE) return code;
+		int air = code / CellContents.AIR_CURRENT_MULTIPLIER;
+		return code + (AIR_MAP[t][air] - air) * CellContents.AIR_CURRENT_MULTIPLIER;
 	}
+
 	/**
-	 *  NOTE TO STUDENTS:  This is probably the only method you'll want/need
-	 *  to modify in this class.
-	 * 
-	 *  returns a integer code representing the contents of this cell.
-	 *  For the purposes of the state vector, cell's with the SAME contents
-	 *  code are IDENTICAL. Thus, it is important to think though an appropriate
-	 *  representation for this code.
-	 *  
-	 *  This method simply returns a code based on the number and type of the
-	 *  insects in this cell.
+	 * Compares the neighborhood after transform t with the neighborhood
+	 * after transform u, cell by cell, then by route code, far field code
+	 * and predict code (whose LEAVING bit no transform moves).
 	 */
-	public int getContentsCode() {
-		int code = 0;
-		String sn;
-		for (InsectView iv : insects) {
-			sn = iv.shortName();
-			if (sn.equals("scarabug")) code += 1;
-			else if (sn.equals("scarlite")) code += 10;
-			else if (sn.equals("sqworm")) code += 100;
-			else {
-				System.err.println("Unknown insect type: " + sn);
-				code += 7;
-			}
+	int compare(int[] codes, int routeCode, int farCode, int predictCode, int t, int u) {
+		for (int j = 0; j < codes.length; j++) {
+			int a = cellCode(codes, t, j), b = cellCode(codes, u, j);
+			if (a != b) return a < b ? -1 : 1;
 		}
-		return code;
+		int c = Integer.compare(SIDE_MAP[t][routeCode], SIDE_MAP[u][routeCode]);
+		if (c != 0) return c;
+		c = Integer.compare(sideFields(t, farCode, 2), sideFields(u, farCode, 2));
+		if (c != 0) return c;
+		int moves = predictCode & ~StateVector.LEAVING;
+		return Integer.compare(sides(t, moves), sides(u, moves));
 	}
 }
-
-
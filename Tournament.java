@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jig.misc.rd.ai.AgentFactory;
+
+/**
+ * Plays every registered AgentFactory (see META-INF/services) against every
+ * level in the levels directory, over several seeds, and prints a
+ * leaderboard.
+ *
+ * Each game is a HeadlessGame in its own JVM; a bounded pool (one game per
+ * core by default) keeps the machine busy, so the tournament's wall clock
+ * time shrinks as cores are added.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. Tournament [seeds] [seconds] [parallelism]
+ *
+ * Results are printed and also written, one game per line, to
+ * tournament/results.tsv.
+ */
+public class Tournament {
+
+	public static void main(String[] args) throws Exception {
+		int seeds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 300;
+		int parallel = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		long baseSeed = AgentConfig.getLong("rd.tournament.seed", 1);
+
+		List<String> factories = new ArrayList<String>();
+		for (AgentFactory f : ServiceLoader.load(AgentFactory.class)) {
+			factories.add(f.getClass().getName());
+		}
+		List<String> levels = listLevels(new File(AgentConfig.getString("rd.levels", "levels")));
+		if (factories.isEmpty() || levels.isEmpty()) {
+			System.err.println("Nothing to play: " + factories.size() + " agents, " + levels.size() + " levels");
+			System.exit(1);
+		}
+
+		final GameRunner runner = new GameRunner(new File("tournament"));
+		ExecutorService pool = Executors.newFixedThreadPool(parallel);
+		List<Future<GameResult>> futures = new ArrayList<Future<GameResult>>();
+		long t0 = System.nanoTime();
+
+		for (final String factory : factories) {
+			for (final String level : levels) {
+				for (int s = 0; s < seeds; s++) {
+					final long seed = baseSeed + s;
+					final long secs = seconds;
+					futures.add(pool.submit(new Callable<GameResult>() {
+						public GameResult call() throws Exception {
+							return runner.play(level, factory, seed, secs, null);
+						}
+					}));
+				}
+			}
+		}
+
+		List<GameResult> results = new ArrayList<GameResult>();
+		for (Future<GameResult> f : futures) {
+			try {
+				results.add(f.get());
+			} catch (Exception e) {
+				System.err.println("Game failed: " + e.getCause());
+			}
+		}
+		pool.shutdown();
+		long wallMS = (System.nanoTime() - t0) / 1000000;
+
+		writeResults(results, new File("tournament", "results.tsv"));
+		System.out.println(results.size() + " of " + futures.size() + " games finished in "
+				+ wallMS + " ms on " + parallel + " workers\n");
+		for (String level : levels) {
+			printLeaderboard(GameRunner.baseName(level), filter(results, level));
+		}
+		printLeaderboard("all levels", results);
+	}
+
+	static List<String> listLevels(File dir) {
+		String[] names = dir.list(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.endsWith(".dat");
+			}
+		});
+		List<String> levels = new ArrayList<String>();
+		if (names == null) return levels;
+		Arrays.sort(names);
+		for (String n : names) levels.add(new File(dir, n).getPath());
+		return levels;
+	}
+
+	private static List<GameResult> filter(List<GameResult> results, String level) {
+		List<GameResult> r = new ArrayList<GameResult>();
+		for (GameResult g : results) {
+			if (g.level.equals(level)) r.add(g);
+		}
+		return r;
+	}
+
+	static void printLeaderboard(String title, List<GameResult> results) {
+		Map<String, List<GameResult>> byAgent = new LinkedHashMap<String, List<GameResult>>();
+		for (GameResult g : results) {
+			List<GameResult> l = byAgent.get(g.agent);
+			if (l == null) byAgent.put(g.agent, l = new ArrayList<GameResult>());
+			l.add(g);
+		}
+
+		List<Row> rows = new ArrayList<Row>();
+		for (Map.Entry<String, List<GameResult>> e : byAgent.entrySet()) {
+			rows.add(new Row(e.getKey(), e.getValue()));
+		}
+		Collections.sort(rows, new Comparator<Row>() {
+			public int compare(Row a, Row b) {
+				return Double.compare(b.ratio.mean(), a.ratio.mean());
+			}
+		});
+
+		System.out.println("== " + title + " ==");
+		System.out.println(String.format("%-20s %4s %18s %18s %18s %18s",
+				"agent", "n", "captured", "escaped", "capture ratio", "captures/crystal"));
+		for (Row r : rows) {
+			System.out.println(String.format("%-20s %4d %18s %18s %18s %18s",
+					GameRunner.simpleName(r.agent), r.captured.n,
+					r.captured.format(), r.escaped.format(), r.ratio.format(), r.efficiency.format()));
+		}
+		System.out.println();
+	}
+
+	static void writeResults(List<GameResult> results, File f) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(f));
+		try {
+			out.println("agent\tlevel\tseed\tcaptured\tescaped\tconsumed\tcrystals\tcaptureRatio\tcapturesPerCrystal");
+			for (GameResult g : results) {
+				out.println(g.agent + "\t" + GameRunner.baseName(g.level) + "\t" + g.seed + "\t"
+						+ g.captured() + "\t" + g.escaped() + "\t" + g.consumed() + "\t"
+						+ (int) g.get("crystals") + "\t" + g.captureRatio() + "\t" + g.crystalEfficiency());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * One agent's line on the leaderboard.
+	 */
+	static class Row {
+		final String agent;
+		final Stat captured = new Stat(), escaped = new Stat(), ratio = new Stat(), efficiency = new Stat();
+
+		Row(String agent, List<GameResult> games) {
+			this.agent = agent;
+			for (GameResult g : games) {
+				captured.add(g.captured());
+				escaped.add(g.escaped());
+				ratio.add(g.captureRatio());
+				efficiency.add(g.crystalEfficiency());
+			}
+		}
+	}
+}
+
+/**
+ * Running mean and variance (Welford's method) with a 95% confidence
+ * interval on the mean.
+ */
+class Stat {
+	/**
+	 * two-sided 95% Student's t values for 1..30 degrees of freedom; past
+	 * that the normal approximation (1.96) is close enough
+	 */
+	private static final double[] T95 = {
+		12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+		2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+		2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+
+	int n;
+	private double mean, m2;
+
+	void add(double x) {
+		n++;
+		double d = x - mean;
+		mean += d / n;
+		m2 += d * (x - mean);
+	}
+
+	double mean() { return mean; }
+
+	double stddev() { return n < 2 ? 0.0 : Math.sqrt(m2 / (n - 1)); }
+
+	/** half width of the 95% confidence interval on the mean */
+	double ci95() {
+		if (n < 2) return 0.0;
+		double t = (n - 1 <= T95.length) ? T95[n - 2] : 1.96;
+		return t * stddev() / Math.sqrt(n);
+	}
+
+	String format() {
+		return String.format("%.3f +/- %.3f", mean, ci95());
+	}
+}
@@ -0,0 +1,176 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A small multi-layer perceptron that estimates every action's value from
+ * a state's features (see StateVector.features): one hidden layer of
+ * rectified linear units, and a linear output per action.
+ *
+ * A network's weights never change once other threads can see it. The
+ * trainer (see neuralAgent) learns in its own copy and publishes a fresh
+ * copy now and then, so the agent can evaluate whatever network it last
+ * picked up without locking.
+ *
+ * Weights are kept row-major in flat float arrays, and forward() evaluates
+ * a whole batch of states (one row of the input matrix per tower) as two
+ * matrix multiplies, so the cost of a frame depends only on the number of
+ * towers deciding, never on how many states have been seen.
+ */
+public class ValueNetwork {
+
+	final int inputs, hidden, outputs;
+
+	/** [inputs][hidden] and [hidden][outputs] */
+	final float[] w1, w2;
+	final float[] b1, b2;
+
+	/** the gradients summed over a minibatch (only in a network that trains) */
+	private float[] gw1, gw2, gb1, gb2;
+
+	public ValueNetwork(int inputs, int hidden, int outputs, SplittableRandom rn) {
+		this.inputs = inputs;
+		this.hidden = hidden;
+		this.outputs = outputs;
+		w1 = new float[inputs * hidden];
+		w2 = new float[hidden * outputs];
+		b1 = new float[hidden];
+		b2 = new float[outputs];
+		// He initialization for the rectifiers, small outputs to start near 0
+		double s1 = Math.sqrt(2.0 / inputs), s2 = Math.sqrt(1.0 / hidden) * 0.1;
+		for (int i = 0; i < w1.length; i++) w1[i] = (float) (gaussian(rn) * s1);
+		for (int i = 0; i < w2.length; i++) w2[i] = (float) (gaussian(rn) * s2);
+	}
+
+	private ValueNetwork(ValueNetwork n) {
+		inputs = n.inputs;
+		hidden = n.hidden;
+		outputs = n.outputs;
+		w1 = n.w1.clone();
+		w2 = n.w2.clone();
+		b1 = n.b1.clone();
+		b2 = n.b2.clone();
+	}
+
+	/** @return an independent copy (e.g., to publish) */
+	public ValueNetwork copy() {
+		return new ValueNetwork(this);
+	}
+
+	private static double gaussian(SplittableRandom rn) {
+		// Box-Muller; SplittableRandom has no nextGaussian
+		double u = 1.0 - rn.nextDouble(), v = rn.nextDouble();
+		return Math.sqrt(-2.0 * Math.log(u)) * Math.cos(2.0 * Math.PI * v);
+	}
+
+	/**
+	 * Evaluates the first n rows of x.
+	 *
+	 * @param x n rows of inputs values
+	 * @param h receives the hidden activations, n rows of hidden values
+	 * @param q receives the action values, n rows of outputs values
+	 */
+	public void forward(float[] x, int n, float[] h, float[] q) {
+		for (int r = 0; r < n; r++) {
+			int xr = r * inputs, hr = r * hidden, qr = r * outputs;
+			System.arraycopy(b1, 0, h, hr, hidden);
+			for (int i = 0; i < inputs; i++) {
+				float xi = x[xr + i];
+				if (xi == 0f) continue; // most features are 0
+				int wi = i * hidden;
+				for (int j = 0; j < hidden; j++) h[hr + j] += xi * w1[wi + j];
+			}
+			System.arraycopy(b2, 0, q, qr, outputs);
+			for (int j = 0; j < hidden; j++) {
+				float hj = h[hr + j];
+				if (hj <= 0f) {
+					h[hr + j] = 0f;
+					continue;
+				}
+				int wj = j * outputs;
+				for (int k = 0; k < outputs; k++) q[qr + k] += hj * w2[wj + k];
+			}
+		}
+	}
+
+	/**
+	 * One step of minibatch gradient descent on the squared error between
+	 * the chosen actions' values and their targets. The other actions'
+	 * values are left alone. Every row's gradient is taken at the same
+	 * weights, and their mean is applied once at the end.
+	 *
+	 * @param x n rows of inputs
+	 * @param action the action taken in each row
+	 * @param target the value each row's action should have
+	 * @param h, q scratch space for forward()
+	 * @param g scratch space for hidden gradients, at least hidden long
+	 * @return the mean squared error before the step
+	 */
+	public double train(float[] x, int[] action, float[] target, int n, float rate,
+			float[] h, float[] q, float[] g) {
+		if (gw1 == null) {
+			gw1 = new float[w1.length];
+			gw2 = new float[w2.length];
+			gb1 = new float[b1.length];
+			gb2 = new float[b2.length];
+		} else {
+			Arrays.fill(gw1, 0f);
+			Arrays.fill(gw2, 0f);
+			Arrays.fill(gb1, 0f);
+			Arrays.fill(gb2, 0f);
+		}
+		forward(x, n, h, q);
+		double loss = 0;
+		for (int r = 0; r < n; r++) {
+			int xr = r * inputs, hr = r * hidden, a = action[r];
+			float err = q[r * outputs + a] - target[r];
+			loss += err * err;
+			// clip the error, so one surprising reward can't blow the weights up
+			err = Math.max(-1f, Math.min(1f, err));
+
+			for (int j = 0; j < hidden; j++) {
+				g[j] = h[hr + j] > 0f ? err * w2[j * outputs + a] : 0f;
+				gw2[j * outputs + a] += err * h[hr + j];
+			}
+			gb2[a] += err;
+			for (int i = 0; i < inputs; i++) {
+				float xi = x[xr + i];
+				if (xi == 0f) continue;
+				int wi = i * hidden;
+				for (int j = 0; j < hidden; j++) gw1[wi + j] += g[j] * xi;
+			}
+			for (int j = 0; j < hidden; j++) gb1[j] += g[j];
+		}
+		float step = rate / n;
+		for (int i = 0; i < w1.length; i++) w1[i] -= step * gw1[i];
+		for (int i = 0; i < w2.length; i++) w2[i] -= step * gw2[i];
+		for (int i = 0; i < b1.length; i++) b1[i] -= step * gb1[i];
+		for (int i = 0; i < b2.length; i++) b2[i] -= step * gb2[i];
+		return loss / n;
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(inputs);
+		out.writeInt(hidden);
+		out.writeInt(outputs);
+		for (float[] a : new float[][] { w1, b1, w2, b2 }) {
+			for (float f : a) out.writeFloat(f);
+		}
+	}
+
+	/**
+	 * Reads weights written by write() into this network.
+	 *
+	 * @throws IOException if the saved network has a different shape
+	 */
+	public void read(DataInputStream in) throws IOException {
+		if (in.readInt() != inputs || in.readInt() != hidden || in.readInt() != outputs) {
+			throw new IOException("Saved network has a different shape");
+		}
+		for (float[] a : new float[][] { w1, b1, w2, b2 }) {
+			for (int i = 0; i < a.length; i++) a[i] = in.readFloat();
+		}
+	}
+}
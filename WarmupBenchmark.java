@@ -0,0 +1,75 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures what munchersOne's JIT warm-up (rd.warmup, see SensorTrace)
+ * buys: plays the same games with and without it, each in a fresh JVM
+ * (see GameRunner), and compares, averaged over the seeds,
+ *
+ *   - startMS: the time to create the agent (which includes the warm-up)
+ *   - settledStep: the steps before the agent reached its steady speed
+ *   - unsettledMS: the time the agent spent in those steps
+ *   - the mean and 99th percentile step latencies
+ *
+ * Games run one at a time (rd.warmup.parallelism), so they don't compete
+ * for the JIT's compiler threads.
+ *
+ * Usage:
+ *   java -cp rd881.jar:. WarmupBenchmark level.dat [seeds] [seconds]
+ */
+public class WarmupBenchmark {
+
+	static final String[] KEYS = { "startMS", "settledStep", "unsettledMS", "nsPerStep", "p99StepNs" };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: WarmupBenchmark level.dat [seeds] [seconds]");
+			System.exit(2);
+		}
+		final String level = args[0];
+		final int seeds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		final long seconds = args.length > 2 ? Long.parseLong(args[2]) : 120;
+		ExecutorService pool = Executors.newFixedThreadPool(AgentConfig.getInt("rd.warmup.parallelism", 1));
+
+		System.out.println(String.format("%-8s %10s %12s %12s %10s %10s", "warm-up", "startMS", "settledStep",
+				"unsettledMS", "nsPerStep", "p99StepNs"));
+		for (final boolean warm : new boolean[] { false, true }) {
+			final GameRunner runner = new GameRunner(new File("warmup", warm ? "on" : "off"));
+			final List<String> jvmArgs = Collections.singletonList("-Drd.warmup=" + warm);
+			List<Future<GameResult>> games = new ArrayList<Future<GameResult>>();
+			for (int s = 1; s <= seeds; s++) {
+				final long seed = s;
+				games.add(pool.submit(new Callable<GameResult>() {
+					public GameResult call() throws Exception {
+						return runner.play(level, "munchersFactory", seed, seconds, jvmArgs);
+					}
+				}));
+			}
+			double[] sums = new double[KEYS.length];
+			int n = 0;
+			for (Future<GameResult> f : games) {
+				try {
+					GameResult r = f.get();
+					for (int k = 0; k < KEYS.length; k++) sums[k] += r.get(KEYS[k]);
+					n++;
+				} catch (Exception e) {
+					System.err.println("Game failed: " + e.getCause());
+				}
+			}
+			if (n == 0) {
+				System.out.println(String.format("%-8s (no games finished)", warm ? "on" : "off"));
+				continue;
+			}
+			System.out.println(String.format(Locale.ROOT, "%-8s %10.0f %12.1f %12.1f %10.0f %10.0f", warm ? "on" : "off",
+					sums[0] / n, sums[1] / n, sums[2] / n, sums[3] / n, sums[4] / n));
+		}
+		pool.shutdown();
+	}
+}
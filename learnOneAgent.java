@@ -7,7 +7,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.HashMap;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 import jig.misc.rd.AirCurrentGenerator;
 import jig.misc.rd.Direction;
@@ -20,8 +20,9 @@ import jig.misc.rd.RobotDefense;
  *  
  *  	- it only considers a small set of possible actions
  *  	- it does not consider turning the vacuum off
- *  	- it only reconsiders an action when the 'local' state changes  
- *         in some cases this may take a (really) long time
+ *  	- it only reconsiders an action when the 'local' state changes, or
+ *         when the DecisionScheduler's staleness bound (rd.schedule.staleMS)
+ *         forces it to
  *      - it uses a very simplisitic action selection mechanism
  *      - actions are based only on the cells immediately adjacent to a tower
  *      - action values are not dependent (at all) on the resulting state 
@@ -34,7 +35,7 @@ public class learnOneAgent extends BaseLearningAgent {
 	 *  States are encoded in the StateVector objects
 	 *  Actions are associated with a utility value and stored in the QMap
 	 */
-	HashMap<StateVector,QMap> actions = new HashMap<StateVector,QMap>();
+	QTable<StateVector,QMap> actions = new QTable<StateVector,QMap>();
 
 	/**
 	 * The agent's sensor system tracks /how many/ insects a particular generator
@@ -48,6 +49,16 @@ public class learnOneAgent extends BaseLearningAgent {
 	 * Keep track of the agent's last action so we can reward it
 	 */
 	HashMap<AirCurrentGenerator, AgentAction> lastAction;
+
+	/**
+	 * Decides which towers get to reconsider their action on each step
+	 */
+	DecisionScheduler scheduler;
+
+	/**
+	 * Seeded random streams, one per tower
+	 */
+	AgentRandom random;
 	
 	/**
 	 * This stores the possible actions that an agent many take in any
@@ -72,6 +83,8 @@ public class learnOneAgent extends BaseLearningAgent {
 	public learnOneAgent() {
 		captureCount = new HashMap<AirCurrentGenerator,Integer>();
 		lastAction = new HashMap<AirCurrentGenerator,AgentAction>();		
+		scheduler = new DecisionScheduler(sensors);
+		random = new AgentRandom(getClass().getName());
 	}
 	
 	/**
@@ -87,12 +100,20 @@ public class learnOneAgent extends BaseLearningAgent {
 		StateVector state;
 		QMap qmap;
 
+		// Apply the sensor events the game published since the last step
+		// before looking at any state.
+		sensors.drainEvents(deltaMS);
+
 		// This must be called each step so that the performance log is 
 		// updated.
 		updatePerformanceLog();
 		
-		for (AirCurrentGenerator acg : sensors.generators.keySet()) {
-			if (!stateChanged(acg)) continue;
+		for (AirCurrentGenerator acg : scheduler.select(deltaMS)) {
+			if (!stateChanged(acg)) {
+				// nothing changed, but the scheduler says it's time to reconsider
+				if (!scheduler.isTimedDecision(acg)) continue;
+				stateRevisited(acg);
+			}
 
 
 			// Check the current state, and make sure member variables are
@@ -114,7 +135,8 @@ public class learnOneAgent extends BaseLearningAgent {
 			boolean verbose = (RobotDefense.getGame().getSelectedObject() == acg);
 
 			// If we did something on the last 'turn', we need to reward it
-			if (lastAction.get(acg) != null ) {
+			// (unless a bounded table has since evicted the previous state)
+			if (lastAction.get(acg) != null && actions.containsKey(lastState.get(acg))) {
 
 				// get the action map associated with the previous state
 				qmap = actions.get(lastState.get(acg));
@@ -141,8 +163,8 @@ public class learnOneAgent extends BaseLearningAgent {
 				System.out.println(thisState.get(acg).representation());
 			}
 			// find the 'right' thing to do, and do it.
-			AgentAction bestAction = qmap.findBestAction(verbose);
-			bestAction.doAction(acg);
+			AgentAction bestAction = qmap.findBestAction(verbose, random.forTower(acg));
+			bestAction.doAction(acg, thisState.get(acg));
 
 			// finally, store our action so we can reward it later.
 			lastAction.put(acg, bestAction);
@@ -154,10 +176,9 @@ public class learnOneAgent extends BaseLearningAgent {
 	/**
 	 * This inner class simply helps to associate actions with utility values
 	 */
-	static class QMap {
-		static Random RN = new Random();
-
-		private double[] utility; 		// current utility estimate
+	static class QMap implements QTable.Row {
+		private double[] utility; 		// current utility estimate (null while compact)
+		private QTable.Quantized compacted;	// the utilities while the row is cold
 		private int[] attempts;			// number of times action has been tried
 		private AgentAction[] actions;  // potential actions to consider
 
@@ -178,9 +199,10 @@ public class learnOneAgent extends BaseLearningAgent {
 		 * Finds the 'best' action for the agent to take.
 		 * 
 		 * @param verbose
+		 * @param rn the tower's random stream
 		 * @return
 		 */
-		public AgentAction findBestAction(boolean verbose) {
+		public AgentAction findBestAction(boolean verbose, SplittableRandom rn) {
 			int i,maxi,maxcount;
 			maxi=0;
 			maxcount = 1;
@@ -197,8 +219,8 @@ public class learnOneAgent extends BaseLearningAgent {
 					maxcount++;
 				}
 			}
-			if (RN.nextDouble() > .2) {
-				int whichMax = RN.nextInt(maxcount);
+			if (rn.nextDouble() > .2) {
+				int whichMax = rn.nextInt(maxcount);
 
 				if (verbose)
 					System.out.println( " -- Doing Best! #" + whichMax);
@@ -212,7 +234,7 @@ public class learnOneAgent extends BaseLearningAgent {
 				return actions[maxi];
 			}
 			else {
-				int which = RN.nextInt(actions.length);
+				int which = rn.nextInt(actions.length);
 				if (verbose)
 					System.out.println( " -- Doing Random (" + which + ")!!");
 
@@ -240,6 +262,21 @@ public class learnOneAgent extends BaseLearningAgent {
 			attempts[i] = attempts[i] + 1;
 			utility[i] = utility[i]/attempts[i];
 		}
+
+		public void compact() {
+			compacted = new QTable.Quantized(utility);
+			utility = null;
+		}
+
+		public void expand() {
+			utility = compacted.toDoubles();
+			compacted = null;
+		}
+
+		public boolean isCompact() {
+			return utility == null;
+		}
+
 		/**
 		 * Gets a string representation (for debugging).
 		 * 
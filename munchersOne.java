@@ -1,14 +1,15 @@
-
-
-
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.HashMap;
-import java.util.Random;
+import java.util.HashSet;
+import java.util.SplittableRandom;
 import java.util.ArrayList; 
+import java.util.Arrays;
+import java.util.List;
 
 import jig.misc.rd.AirCurrentGenerator;
 import jig.misc.rd.Direction;
@@ -21,8 +22,9 @@ import jig.misc.rd.RobotDefense;
  *  
  *  	- it only considers a small set of possible actions
  *  	- it does not consider turning the vacuum off
- *  	- it only reconsiders an action when the 'local' state changes  
- *         in some cases this may take a (really) long time
+ *  	- it only reconsiders an action when the 'local' state changes, or
+ *         when the DecisionScheduler's staleness bound (rd.schedule.staleMS)
+ *         forces it to
  *      - it uses a very simplisitic action selection mechanism
  *      - actions are based only on the cells immediately adjacent to a tower
  *      - action values are not dependent (at all) on the resulting state 
@@ -35,7 +37,30 @@ public class munchersOne extends BaseLearningAgent {
 	 *  States are encoded in the StateVector objects
 	 *  Actions are associated with a utility value and stored in the QMap
 	 */
-	HashMap<StateVector,QMap> actions = new HashMap<StateVector,QMap>();
+	QTable<StateVector,QMap> actions;
+
+	/**
+	 * When rd.qtable.store is set ('memory', or the name of a file to map),
+	 * the rows that don't fit in 'actions' (rd.qtable.cap, 4096 by default
+	 * in this case) are kept off the heap in this table. With
+	 * rd.qtable.shared the file is mapped read-only, so several processes
+	 * can start from the same table; their own updates are then dropped
+	 * when rows are evicted. With rd.qtable.parent the table starts as a
+	 * copy-on-write mapping of that file instead (which is left alone), and
+	 * is saved to the rd.qtable.store file at exit.
+	 */
+	OffHeapQTable offHeap;
+
+	/** where a copy-on-write table is saved at exit (otherwise null) */
+	File saveTo;
+
+	/**
+	 * When rd.qtable.log names a table (e.g., munchers, for munchers.qt and
+	 * its log segments), every update is written ahead to a QTableLog, and
+	 * rows the agent hasn't used yet in this run are loaded from its
+	 * snapshot; otherwise null.
+	 */
+	QTableLog log;
 
 	/**
 	 * The agent's sensor system tracks /how many/ insects a particular generator
@@ -46,8 +71,58 @@ public class munchersOne extends BaseLearningAgent {
 	HashMap<AirCurrentGenerator, Integer> captureCount;
 	HashMap<AirCurrentGenerator, Integer> crystalCount;
 	HashMap<AirCurrentGenerator, AgentAction> lastAction;
+	DecisionScheduler scheduler;
+	AgentRandom random;
+
+	/**
+	 * When rd.coordinate is set, towers whose reach overlaps choose
+	 * their actions jointly and share credit for captures (see
+	 * CoordinationGraph); otherwise this is null and each tower learns alone.
+	 */
+	CoordinationGraph coordinator;
+
+	/**
+	 * When rd.ps names a ParameterServer (host:port), this worker shares
+	 * what it learns with the other workers through it; otherwise null.
+	 */
+	ParameterClient server;
+
+	/** prices the crystals the towers use (fixed, or adapted to a budget) */
+	CrystalBudget budget;
+
+	/**
+	 * The time slice for each step (see FrameBudget). Towers that don't
+	 * get to decide within it take the greedy action of the state they
+	 * last decided in ('greedy') until they do.
+	 */
+	final FrameBudget frameBudget = new FrameBudget();
+
+	/** true for a copy that only warms up the JIT, without a game */
+	final boolean throwaway;
+	private final HashMap<AirCurrentGenerator, AgentAction> greedy = new HashMap<AirCurrentGenerator, AgentAction>();
+	private final ArrayList<AirCurrentGenerator> deciding = new ArrayList<AirCurrentGenerator>();
+	/** [k]: the reward of deciding.get(k)'s last action */
+	private double[] decidingReward = new double[16];
+
+	/**
+	 * Records every decision (see DecisionRecorder). With rd.verbose or
+	 * rd.recorder.dir, selecting a tower in the game dumps the recording
+	 * there (the working directory, for rd.verbose); the old step-by-step
+	 * printing of the selected tower's states is only done with rd.verbose.
+	 */
+	final DecisionRecorder recorder = new DecisionRecorder(potentials.length);
+	final boolean printing = AgentConfig.getBoolean("rd.verbose", false);
+	private final String dumpDir = AgentConfig.getString("rd.recorder.dir", printing ? "." : null);
+	private Object lastSelected;
+	private final double[] noValues = new double[potentials.length];
+	private final CoordinationGraph.Payoff ownValues = new CoordinationGraph.Payoff() {
+		public double[] values(StateVector s) {
+			QMap q = actions.get(s);
+			return q == null ? noValues : q.utility;
+		}
+	};
 	
-	private static final AgentAction [] potentials;
+	static final AgentAction [] potentials;
 
 	static {
 		Direction [] dirs = Direction.values();
@@ -69,21 +144,248 @@ public class munchersOne extends BaseLearningAgent {
 	}
 	
 	public munchersOne() {
+		this(false);
+		if (AgentConfig.getBoolean("rd.warmup", false)) warmUp();
+	}
+
+	/**
+	 * @param throwaway true for a copy that only warms up the JIT (see
+	 *   warmUp): its table stays on the heap, and it shares, logs and
+	 *   saves nothing
+	 */
+	munchersOne(boolean throwaway) {
+		super(throwaway);
+		this.throwaway = throwaway;
 		captureCount = new HashMap<AirCurrentGenerator,Integer>();
 		crystalCount = new HashMap<AirCurrentGenerator,Integer>();
 		lastAction = new HashMap<AirCurrentGenerator,AgentAction>();		
+		scheduler = new DecisionScheduler(sensors);
+		scheduler.setPrioritized(frameBudget.isEnabled());
+		random = new AgentRandom(getClass().getName());
+		budget = new CrystalBudget();
+		if (throwaway) {
+			actions = new QTable<StateVector,QMap>();
+		} else {
+			createTable();
+			saveOnExit();
+		}
+		if (AgentConfig.getBoolean("rd.coordinate", false)) {
+			coordinator = new CoordinationGraph(sensors, potentials.length);
+		}
+		String ps = AgentConfig.getString("rd.ps", null);
+		if (ps != null && !throwaway) server = new ParameterClient(ps, potentials.length);
+	}
+
+	/**
+	 * Plays a SensorTrace (rd.warmup.trace, the bundled one by default)
+	 * rd.warmup.passes times through a throwaway munchersOne, so the JIT has
+	 * compiled the agent's hot paths before the first real frame. The
+	 * throwaway's sensors, towers and table are then dropped; this agent
+	 * starts the game knowing nothing, just faster.
+	 */
+	private static void warmUp() {
+		String name = AgentConfig.getString("rd.warmup.trace", SensorTrace.BUNDLED);
+		try {
+			SensorTrace trace = SensorTrace.load(name);
+			SensorTrace.Playback p = trace.play(new munchersOne(true), AgentConfig.getInt("rd.warmup.passes", 4));
+			System.out.println("Warm-up: " + p);
+		} catch (IOException e) {
+			System.err.println("Couldn't warm up with " + name + ": " + e);
+		} catch (RuntimeException e) {
+			// e.g., the tower images aren't loaded yet; the game just starts cold
+			System.err.println("Couldn't warm up: " + e);
+		} catch (LinkageError e) {
+			System.err.println("Couldn't warm up: " + e);
+		}
 	}
 	
+	private void createTable() {
+		String logged = AgentConfig.getString("rd.qtable.log", null);
+		if (logged != null) {
+			try {
+				log = QTableLog.open(new File(logged), potentials.length);
+			} catch (IOException e) {
+				System.err.println("Couldn't open the Q-table log, learning without it: " + e);
+			}
+		}
+		if (log != null) {
+			// rows stay on the heap once loaded; the log keeps them durable
+			actions = new QTable<StateVector,QMap>();
+			actions.setStore(new QTable.Store<StateVector,QMap>() {
+				public QMap load(StateVector s) {
+					synchronized (log) {
+						long slot = log.getSnapshot().find(s.longKey());
+						return slot < 0 ? null : new QMap(potentials, log.getSnapshot(), slot);
+					}
+				}
+
+				public void store(StateVector s, QMap q) {
+					// already logged
+				}
+
+				public boolean contains(StateVector s) {
+					synchronized (log) {
+						return log.getSnapshot().find(s.longKey()) >= 0;
+					}
+				}
+			});
+			return;
+		}
+		String where = AgentConfig.getString("rd.qtable.store", null);
+		if (where == null) {
+			actions = new QTable<StateVector,QMap>();
+			return;
+		}
+		actions = new QTable<StateVector,QMap>(AgentConfig.getInt("rd.qtable.cap", 4096), false);
+		boolean shared = AgentConfig.getBoolean("rd.qtable.shared", false);
+		String parent = AgentConfig.getString("rd.qtable.parent", null);
+		try {
+			if (parent != null && !where.equals("memory")) {
+				offHeap = OffHeapQTable.mapPrivate(new File(parent), potentials.length);
+				saveTo = new File(where);
+			} else {
+				offHeap = where.equals("memory") ? new OffHeapQTable(potentials.length, 1 << 16)
+						: OffHeapQTable.map(new File(where), potentials.length, shared);
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't map the Q-table, keeping it on the heap: " + e);
+			actions = new QTable<StateVector,QMap>();
+			return;
+		}
+		actions.setStore(new QTable.Store<StateVector,QMap>() {
+			public QMap load(StateVector s) {
+				long slot = offHeap.find(s.longKey());
+				return slot < 0 ? null : new QMap(potentials, offHeap, slot);
+			}
+
+			public void store(StateVector s, QMap q) {
+				if (!offHeap.isReadOnly()) q.writeTo(offHeap, offHeap.findOrInsert(s.longKey()));
+			}
+
+			public boolean contains(StateVector s) {
+				return offHeap.find(s.longKey()) >= 0;
+			}
+		});
+	}
+
+	/**
+	 * Writes the recent decisions to a new file in dumpDir (if there is
+	 * one), for the DecisionRecorder dump tool.
+	 */
+	private void dumpDecisions(AirCurrentGenerator acg) {
+		if (dumpDir == null || recorder.size() == 0) return;
+		File f = new File(dumpDir, "decisions-" + System.currentTimeMillis() + ".rec");
+		try {
+			recorder.dump(f);
+			System.out.println("Recent decisions written to " + f + "; to read them:  java DecisionRecorder "
+					+ f + " " + acg.getGridX() + "," + acg.getGridY());
+		} catch (IOException e) {
+			System.err.println("Couldn't write the decisions: " + e);
+		}
+	}
+
+	/**
+	 * Writes the table (if it's mapped to a file), exports the policy (if
+	 * rd.policy.export names a file), dumps the decision recorder (if
+	 * rd.recorder.file names a file), closes the Q-table log
+	 * and prints the frame budget's statistics when the JVM exits.
+	 */
+	private void saveOnExit() {
+		final String export = AgentConfig.getString("rd.policy.export", null);
+		final boolean writeTable = offHeap != null && !offHeap.isReadOnly()
+				&& !"memory".equals(AgentConfig.getString("rd.qtable.store", null));
+		final String decisions = recorder.enabled ? AgentConfig.getString("rd.recorder.file", null) : null;
+		if (export == null && !writeTable && decisions == null && log == null && !frameBudget.isEnabled()) return;
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				if (frameBudget.isEnabled()) System.out.println("Frame budget: " + frameBudget.stats());
+				if (log != null) log.close();
+				if (decisions != null && recorder.size() > 0) {
+					try {
+						recorder.dump(new File(decisions));
+					} catch (IOException e) {
+						System.err.println("Couldn't write the decisions: " + e);
+					}
+				}
+				if (writeTable) {
+					// the file is the table, so all the rows need to be in it
+					actions.flush();
+					if (saveTo == null) {
+						offHeap.force();
+					} else {
+						try {
+							offHeap.save(saveTo);
+						} catch (IOException e) {
+							System.err.println("Couldn't save the Q-table: " + e);
+						}
+					}
+				}
+				if (export != null) {
+					try {
+						exportPolicy(new File(export));
+					} catch (IOException e) {
+						System.err.println("Couldn't export the policy: " + e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Freezes the learned values into a greedy policy (see FrozenPolicy),
+	 * for policyAgent.
+	 */
+	public void exportPolicy(File f) throws IOException {
+		FrozenPolicy.Builder b = new FrozenPolicy.Builder(potentials.length);
+		HashSet<Long> resident = new HashSet<Long>();
+		for (StateVector s : actions.states()) {
+			b.add(s.longKey(), FrozenPolicy.greedy(actions.peek(s).utility));
+			resident.add(s.longKey());
+		}
+		if (offHeap != null) FrozenPolicy.addAll(b, offHeap, resident);
+		if (log != null) {
+			synchronized (log) {
+				FrozenPolicy.addAll(b, log.getSnapshot(), resident);
+			}
+		}
+		b.write(f);
+	}
+
 	public void step(long deltaMS) {
 		StateVector state;
 		QMap qmap;
+		frameBudget.start();
+
+		// Apply the sensor events the game published since the last step
+		// before looking at any state.
+		sensors.drainEvents(deltaMS);
 
 		// This must be called each step so that the performance log is 
 		// updated.
 		updatePerformanceLog();
+
+		if (sensors.generators != null && !throwaway) {
+			budget.update(deltaMS, getPlayingField(), sensors.generators.keySet());
+		}
+		recorder.advance(deltaMS);
+		Object selected = throwaway ? null : RobotDefense.getGame().getSelectedObject();
+		if (selected != lastSelected) {
+			lastSelected = selected;
+			if (selected instanceof AirCurrentGenerator) dumpDecisions((AirCurrentGenerator) selected);
+		}
 		
-		for (AirCurrentGenerator acg : sensors.generators.keySet()) {
-			if (!stateChanged(acg)) continue;
+		List<AirCurrentGenerator> due = scheduler.select(deltaMS);
+		for (int d = 0; d < due.size(); d++) {
+			AirCurrentGenerator acg = due.get(d);
+			if (d > 0 && frameBudget.exhausted()) {
+				deferRest(due, d);
+				break;
+			}
+			if (!stateChanged(acg)) {
+				// nothing changed, but the scheduler says it's time to reconsider
+				if (!scheduler.isTimedDecision(acg)) continue;
+				stateRevisited(acg);
+			}
 
 
 			// Check the current state, and make sure member variables are
@@ -98,32 +400,54 @@ public class munchersOne extends BaseLearningAgent {
 
 			// Check to see if an insect was just captured by comparing our
 			// cached value of the insects captured by each ACG with the
-			// most up-to-date value from the sensors
-			boolean justCaptured = (captureCount.get(acg) < sensors.generators.get(acg));
+			// most up-to-date value from the sensors. When coordinating,
+			// neighbors' captures count too.
+			double captured;
+			if (coordinator != null) {
+				captured = coordinator.sharedCaptures(acg);
+			} else {
+				captured = (captureCount.get(acg) < sensors.generators.get(acg)) ? 1.0 : 0.0;
+			}
+			double reward = 0.0;
 
 			int crystalsUsed = acg.getConsumption() - crystalCount.get(acg);
 			crystalCount.put(acg, acg.getConsumption());
 
-			// if this ACG has been selected by the user, we'll do some verbose printing
-			boolean verbose = (RobotDefense.getGame().getSelectedObject() == acg);
+			// if this ACG has been selected by the user, we may do some verbose printing
+			boolean verbose = printing && (selected == acg);
 
 			// If we did something on the last 'turn', we need to reward it
-			if (lastAction.get(acg) != null ) {
+			// (unless a bounded table has since evicted the previous state)
+			if (lastAction.get(acg) != null && actions.containsKey(lastState.get(acg))) {
 
 				// get the action map associated with the previous state
 				qmap = actions.get(lastState.get(acg));
+				if (server != null) qmap.psRow = server.touch(lastState.get(acg), qmap.utility, qmap.psRow);
 
-				if (justCaptured) {
+				if (captured > 0) {
 					// capturing insects is good
-					qmap.rewardAction(lastAction.get(acg), 10.0, actions.get(lastState.get(acg)) );
+					qmap.rewardAction(lastAction.get(acg), params.captureReward * captured, qmap );
 					captureCount.put(acg,sensors.generators.get(acg));
+					reward += params.captureReward * captured;
 				}
 				//Negative reward for power usage
-				qmap.rewardAction(lastAction.get(acg), -crystalsUsed/24.0, actions.get(lastState.get(acg)));
+				double penalty = budget.penalty(crystalsUsed);
+				qmap.rewardAction(lastAction.get(acg), penalty, qmap);
+				reward += penalty;
+				if (log != null) qmap.logTo(log, lastState.get(acg).longKey(), lastAction.get(acg));
 
 				if (verbose) {
 					System.out.println("");
 					System.out.println("Crystal Consumed: " + crystalsUsed);
+					System.out.println(String.format("Crystal Price: %.4f (burning %.3f/s, target %.3f/s)",
+							budget.getPrice(), budget.getBurnRate(), budget.getTarget()));
+					System.out.println("Q-table: " + actions.stats());
+					if (offHeap != null) System.out.println("Off-heap: " + offHeap.stats());
+					if (log != null) System.out.println("Q-table log: " + log.stats());
+					if (frameBudget.isEnabled()) System.out.println("Frame budget: " + frameBudget.stats());
+					if (sensors.getInsectTracks() != null)
+						System.out.println("Insect tracks: " + sensors.getInsectTracks().stats());
+					if (server != null) System.out.println("Parameter server: " + server.getStats());
 					System.out.println("Last State for " + acg.toString() );
 					System.out.println(lastState.get(acg).representation());
 					System.out.println("Updated Last Action: " + qmap.getQRepresentation());
@@ -132,45 +456,161 @@ public class munchersOne extends BaseLearningAgent {
 
 			// get the action map associated with the current state
 			qmap = actions.get(state);
+			if (server != null) qmap.psRow = server.touch(state, qmap.utility, qmap.psRow);
 
 			if (verbose) {
 				System.out.println("This State for Tower " + acg.toString() );
 				System.out.println(thisState.get(acg).representation());
 			}
 
-			AgentAction bestAction = qmap.findBestAction(verbose, lastAction.get(acg));
-			bestAction.doAction(acg);
+			if (coordinator != null) {
+				// decided below, together with the other towers
+				coordinator.prepare(acg, state, reward);
+				if (deciding.size() == decidingReward.length) {
+					decidingReward = Arrays.copyOf(decidingReward, 2 * decidingReward.length);
+				}
+				decidingReward[deciding.size()] = reward;
+				deciding.add(acg);
+				continue;
+			}
+
+			AgentAction bestAction = qmap.findBestAction(verbose, lastAction.get(acg), random.forTower(acg), null);
+			bestAction.doAction(acg, thisState.get(acg));
+			recorder.record(acg, state, qmap.utility, indexOf(bestAction), reward);
+			if (frameBudget.isEnabled()) greedy.put(acg, qmap.greedyAction());
 
 			// finally, store our action so we can reward it later.
 			lastAction.put(acg, bestAction);
 
 		}
+
+		if (coordinator != null && !deciding.isEmpty()) decideJointly();
+		if (server != null) server.step();
+		frameBudget.end();
 	}
 
+	/**
+	 * Puts off the decisions of the towers from 'from' on to a later frame.
+	 * Until then, each takes the greedy action of the state it last decided
+	 * in (rather than an exploratory one), and that action is the one its
+	 * next reward is credited to.
+	 */
+	private void deferRest(List<AirCurrentGenerator> due, int from) {
+		for (int d = from; d < due.size(); d++) {
+			AirCurrentGenerator acg = due.get(d);
+			scheduler.defer(acg);
+			frameBudget.deferred();
+			AgentAction g = greedy.get(acg);
+			if (g != null && g != lastAction.get(acg)) {
+				g.doAction(acg, thisState.get(acg));
+				lastAction.put(acg, g);
+				frameBudget.fellBack();
+			}
+		}
+	}
 
 	/**
-	 * This inner class simply helps to associate actions with utility values
+	 * Chooses actions for all the towers deciding on this frame at once,
+	 * then lets the coordination graph learn from the outcome.
 	 */
-	static class QMap {
-		double gamma = 0.9;
-		double alpha = 0.1;
+	private void decideJointly() {
+		coordinator.coordinate(ownValues);
+		for (int k = 0; k < deciding.size(); k++) {
+			AirCurrentGenerator acg = deciding.get(k);
+			boolean verbose = printing && !throwaway && (RobotDefense.getGame().getSelectedObject() == acg);
+			double[] bonus = coordinator.bonus(acg);
+			if (verbose) {
+				System.out.print("Neighbor Bonus: ");
+				for (double b : bonus) System.out.print(String.format("%.2f  ", b));
+				System.out.println();
+			}
+
+			// other towers' new rows may have evicted this one from a bounded table
+			QMap qmap = actions.get(thisState.get(acg));
+			if (qmap == null) {
+				qmap = new QMap(potentials);
+				actions.put(thisState.get(acg), qmap);
+			}
+			AgentAction bestAction = qmap.findBestAction(verbose, lastAction.get(acg), random.forTower(acg), bonus);
+			bestAction.doAction(acg, thisState.get(acg));
+			lastAction.put(acg, bestAction);
+			coordinator.chose(acg, indexOf(bestAction));
+			if (frameBudget.isEnabled()) greedy.put(acg, qmap.greedyAction());
+			recorder.record(acg, thisState.get(acg), qmap.utility, indexOf(bestAction), decidingReward[k]);
+		}
+		coordinator.learn(ownValues);
+		deciding.clear();
+	}
+
+	private static int indexOf(AgentAction a) {
+		for (int i = 0; i < potentials.length; i++) {
+			if (potentials[i] == a) return i;
+		}
+		return -1;
+	}
+
 
-		static Random RN = new Random();
+	/**
+	 * Learning rates, discount and exploration settings, shared by every QMap
+	 */
+	static final LearningParameters params = new LearningParameters();
 
-		private double[] utility; 		// current utility estimate
-		private AgentAction[] actions;  // potential actions to consider
+	/**
+	 * This inner class simply helps to associate actions with utility values
+	 */
+	static class QMap implements QTable.Row {
+		private double[] utility; 		// current utility estimate (null while compact)
+		private QTable.Quantized compacted;	// the utilities while the row is cold
+		private AgentAction[] actions;  // potential actions to consider (shared, never modified)
+		private char[] visits;			// times each action was taken here (saturating)
+		private int stateVisits;		// decisions made in this state
+		ParameterClient.Row psRow;		// what the parameter server client knows of the row (or null)
 
 		public QMap(AgentAction[] potential_actions) {
 
-			actions = potential_actions.clone();
+			actions = potential_actions;
 			int len = actions.length;
 
 			utility = new double[len];
+			visits = new char[len];
 			for(int i = 0; i < len; i++) {
 				utility[i] = 0.0;
 			}
 		}
 
+		/**
+		 * Copies a row in from an off-heap table (values are stored there
+		 * as floats).
+		 */
+		QMap(AgentAction[] potential_actions, OffHeapQTable t, long slot) {
+			this(potential_actions);
+			for (int i = 0; i < utility.length; i++) {
+				utility[i] = t.value(slot, i);
+				visits[i] = t.visits(slot, i);
+			}
+			stateVisits = t.stateVisits(slot);
+		}
+
+		/**
+		 * Copies this row out to an off-heap table.
+		 */
+		void writeTo(OffHeapQTable t, long slot) {
+			for (int i = 0; i < utility.length; i++) {
+				t.setValue(slot, i, (float) utility[i]);
+				t.setVisits(slot, i, visits[i]);
+			}
+			t.setStateVisits(slot, stateVisits);
+		}
+
+		/** @return the action with the highest utility (the first, on ties) */
+		AgentAction greedyAction() {
+			int maxi = 0;
+			for (int i = 1; i < utility.length; i++) {
+				if (utility[i] > utility[maxi]) maxi = i;
+			}
+			return actions[maxi];
+		}
+
 		double maxQ(){
 			int maxi = 0;
 			for(int i = 1; i < utility.length; i++){
@@ -183,19 +623,65 @@ public class munchersOne extends BaseLearningAgent {
 		}
 
 		/**
-		 * Finds the 'best' action for the agent to take.
+		 * Finds the 'best' action for the agent to take, and counts it as a
+		 * visit.
 		 * 
 		 * @param verbose
+		 * @param lastAct the action the tower took last time (may be null)
+		 * @param rn the tower's random stream
+		 * @param bonus added to each action's utility before choosing (may be null)
 		 * @return
 		 */
-		public AgentAction findBestAction(boolean verbose, AgentAction lastAct) {
-			int i,maxi,maxcount;
-			maxi=0;
-			maxcount = 1;
+		public AgentAction findBestAction(boolean verbose, AgentAction lastAct, SplittableRandom rn, double[] bonus) {
+			double[] utility = this.utility;
+			if (bonus != null) {
+				utility = utility.clone();
+				for (int i = 0; i < utility.length; i++) utility[i] += bonus[i];
+			}
 			
 			if (verbose)
 				System.out.print("Picking Best Actions: " + getQRepresentation());
 
+			int chosen = params.ucb ? chooseUcb(verbose, utility, lastAct, rn) : chooseLegacy(verbose, utility, lastAct, rn);
+			if (visits[chosen] != Character.MAX_VALUE) visits[chosen]++;
+			if (stateVisits != Integer.MAX_VALUE) stateVisits++;
+			return actions[chosen];
+		}
+
+		/**
+		 * Picks the action with the highest utility plus exploration bonus.
+		 * Ties go to the last action if it is among them, otherwise to a
+		 * random one.
+		 */
+		private int chooseUcb(boolean verbose, double[] utility, AgentAction lastAct, SplittableRandom rn) {
+			double best = Double.NEGATIVE_INFINITY;
+			int pick = 0, ties = 0;
+			boolean lastTied = false;
+			for (int i = 0; i < utility.length; i++) {
+				double v = utility[i] + params.explorationBonus(stateVisits, visits[i]);
+				boolean isLast = (actions[i] == lastAct);
+				if (v > best) {
+					best = v;
+					pick = i;
+					ties = 1;
+					lastTied = isLast;
+				}
+				else if (v == best && !lastTied) {
+					ties++;
+					if (isLast || rn.nextInt(ties) == 0) pick = i;
+					lastTied = isLast;
+				}
+			}
+			if (verbose)
+				System.out.println(" -- UCB picked #" + pick + String.format(" (%.2f, tried %d of %d)", best, (int) visits[pick], stateVisits));
+			return pick;
+		}
+
+		private int chooseLegacy(boolean verbose, double[] utility, AgentAction lastAct, SplittableRandom rn) {
+			int i,maxi,maxcount;
+			maxi=0;
+			maxcount = 1;
+
 			ArrayList<Integer> posMoves = new ArrayList<Integer>();
 			for (i = 1; i < utility.length; i++) {
 				if (utility[i] > utility[maxi]) {
@@ -212,8 +698,8 @@ public class munchersOne extends BaseLearningAgent {
 
 			//IF there are a lot of moves with the same utility, more likely to do random move
 			double percSame = (posMoves.size() * 1.0 / actions.length);
-			if (RN.nextDouble() > percSame/2.0) {
-				int whichMax = RN.nextInt(maxcount);
+			if (rn.nextDouble() > percSame/2.0) {
+				int whichMax = rn.nextInt(maxcount);
 
 				if (verbose)
 					System.out.println( " -- Doing Best! #" + whichMax);
@@ -221,26 +707,26 @@ public class munchersOne extends BaseLearningAgent {
 				//IF ZERO THEN DO NO POWER - ALSO REMOVE 0 POWER OPTION FROM POTENTIAL MOVES
 				if(posMoves.size() == 1){
 					if(verbose) System.out.println("Single best action");
-					return actions[posMoves.get(0)];
+					return posMoves.get(0);
 				}
 				else if(posMoves.size() > 1 && lastAct != null){
 					for(int a = 0; a < posMoves.size(); a++){
 						if(actions[a].getDirection() == lastAct.getDirection() && actions[a].getPower() == lastAct.getPower()){
 							if(verbose) System.out.println("Matched last: " + a + " out of " + actions.length);
-							return actions[a];
+							return a;
 						}
 					}
 				}
 
 				if(verbose) System.out.println("No consistent action: " + maxi + " out of " + actions.length);
-				return actions[maxi];
+				return maxi;
 			}
 			else {
-				int which = RN.nextInt(actions.length);
+				int which = rn.nextInt(actions.length);
 				if (verbose)
 					System.out.println( " -- Doing Random (" + which + ")!!");
 
-				return actions[which];
+				return which;
 			}
 		}
 
@@ -260,9 +746,34 @@ public class munchersOne extends BaseLearningAgent {
 				return;
 			}
 
-			//new qlearning algorithm
-			utility[i] = utility[i] + alpha * (value + (gamma * nextMap.maxQ()) - utility[i]);
+			//new qlearning algorithm, with a learning rate that decays as the action is tried
+			double alpha = params.alpha(visits[i]);
+			utility[i] = utility[i] + alpha * (value + (params.gamma * nextMap.maxQ()) - utility[i]);
+		}
+
+		/**
+		 * Writes this row's value (and visit counts) for an action to a log.
+		 */
+		void logTo(QTableLog log, long key, AgentAction a) {
+			for (int i = 0; i < actions.length; i++) {
+				if (a == actions[i]) log.append(key, i, (float) utility[i], visits[i], stateVisits);
+			}
+		}
+
+		public void compact() {
+			compacted = new QTable.Quantized(utility);
+			utility = null;
 		}
+
+		public void expand() {
+			utility = compacted.toDoubles();
+			compacted = null;
+		}
+
+		public boolean isCompact() {
+			return utility == null;
+		}
+
 		/**
 		 * Gets a string representation (for debugging).
 		 * 
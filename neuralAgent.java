@@ -0,0 +1,272 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+import jig.misc.rd.AirCurrentGenerator;
+
+/**
+ * A learning agent that replaces munchersOne's table of action values
+ * with a small neural network (see ValueNetwork) over each state's
+ * features, so similar states share what is learned and memory doesn't
+ * grow with the number of states the map produces.
+ *
+ * Every frame, the features of all the towers that are deciding are
+ * written into one preallocated matrix and evaluated in a single batch.
+ * Each tower then acts epsilon-greedily (rd.nn.epsilon), with the same
+ * actions and rewards as munchersOne, and its previous transition goes
+ * into a replay buffer (rd.nn.replay transitions).
+ *
+ * The network learns from random minibatches (rd.nn.batch) of the buffer,
+ * Q-learning style, with the last published network providing the
+ * targets. By default (rd.nn.async) the training runs on a background
+ * thread, which publishes a copy of its weights every rd.nn.publishEvery
+ * minibatches by swapping a volatile reference; the game thread picks up
+ * the latest copy at the start of a frame, so it never waits for the
+ * trainer. The trainer does at most rd.nn.replayRatio minibatch rows per
+ * transition collected, so it doesn't spin while the game is quiet. With
+ * rd.nn.async=false the training runs on the game thread instead
+ * (rd.nn.updatesPerStep minibatches per frame), which is slower but
+ * repeatable with a fixed rd.seed.
+ *
+ * With rd.nn.file set, the weights are loaded from that file (if it
+ * exists) at the start and saved to it at exit.
+ */
+public class neuralAgent extends BaseLearningAgent {
+
+	static final int F = StateVector.FEATURES;
+	static final AgentAction[] potentials = munchersOne.potentials;
+
+	final int hidden = AgentConfig.getInt("rd.nn.hidden", 32);
+	final int batch = AgentConfig.getInt("rd.nn.batch", 32);
+	final float rate = (float) AgentConfig.getDouble("rd.nn.rate", 0.01);
+	final double epsilon = AgentConfig.getDouble("rd.nn.epsilon", 0.1);
+	final int publishEvery = AgentConfig.getInt("rd.nn.publishEvery", 50);
+	final double replayRatio = AgentConfig.getDouble("rd.nn.replayRatio", 8.0);
+	final boolean async = AgentConfig.getBoolean("rd.nn.async", true);
+	final int updatesPerStep = AgentConfig.getInt("rd.nn.updatesPerStep", 1);
+	final LearningParameters params = new LearningParameters();
+
+	/** the network the agent acts with; replaced, never modified */
+	private volatile ValueNetwork published;
+
+	/** the network being trained (only touched by the trainer) */
+	private final ValueNetwork learning;
+
+	private final ReplayBuffer replay = new ReplayBuffer(AgentConfig.getInt("rd.nn.replay", 50000), F);
+
+	DecisionScheduler scheduler;
+	AgentRandom random;
+	CrystalBudget budget;
+
+	/** what each tower did when it last decided */
+	private final HashMap<AirCurrentGenerator, float[]> lastFeatures = new HashMap<AirCurrentGenerator, float[]>();
+	private final HashMap<AirCurrentGenerator, Integer> lastAction = new HashMap<AirCurrentGenerator, Integer>();
+	private final HashMap<AirCurrentGenerator, Integer> captureCount = new HashMap<AirCurrentGenerator, Integer>();
+	private final HashMap<AirCurrentGenerator, Integer> crystalCount = new HashMap<AirCurrentGenerator, Integer>();
+	private final ArrayList<AirCurrentGenerator> deciding = new ArrayList<AirCurrentGenerator>();
+
+	/** the frame's batch: one row per deciding tower (grown if more towers decide at once) */
+	private float[] x = new float[16 * F], h, q;
+
+	private final Trainer trainer;
+	private volatile long updates, publications;
+	private volatile double loss;
+
+	public neuralAgent() {
+		scheduler = new DecisionScheduler(sensors);
+		random = new AgentRandom(getClass().getName());
+		budget = new CrystalBudget();
+		learning = new ValueNetwork(F, hidden, potentials.length, random.forAgent().split());
+		h = new float[16 * hidden];
+		q = new float[16 * potentials.length];
+
+		final String file = AgentConfig.getString("rd.nn.file", null);
+		if (file != null && new File(file).exists()) {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				try {
+					learning.read(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				System.err.println("Couldn't load the network from " + file + ": " + e);
+			}
+		}
+		published = learning.copy();
+
+		trainer = new Trainer(random.forAgent().split());
+		if (async) {
+			Thread t = new Thread(trainer, "neural-trainer");
+			t.setDaemon(true);
+			t.start();
+		}
+		if (file != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					save(new File(file));
+				}
+			});
+		}
+	}
+
+	public void step(long deltaMS) {
+		sensors.drainEvents(deltaMS);
+		updatePerformanceLog();
+		if (sensors.generators == null) return;
+		budget.update(deltaMS, getPlayingField(), sensors.generators.keySet());
+
+		deciding.clear();
+		for (AirCurrentGenerator acg : scheduler.select(deltaMS)) {
+			if (!stateChanged(acg)) {
+				if (!scheduler.isTimedDecision(acg)) continue;
+				stateRevisited(acg);
+			}
+			deciding.add(acg);
+		}
+		int n = deciding.size();
+		if (n > 0) {
+			ensureRows(n);
+			for (int r = 0; r < n; r++) thisState.get(deciding.get(r)).features(x, r * F);
+			published.forward(x, n, h, q);
+			for (int r = 0; r < n; r++) decide(deciding.get(r), r);
+		}
+
+		if (!async) {
+			for (int u = 0; u < updatesPerStep; u++) trainer.update();
+		}
+	}
+
+	private void ensureRows(int n) {
+		if (x.length >= n * F) return;
+		int rows = Math.max(n, 2 * x.length / F);
+		x = new float[rows * F];
+		h = new float[rows * hidden];
+		q = new float[rows * potentials.length];
+	}
+
+	/**
+	 * Rewards the tower's previous action, then acts on row r of the batch.
+	 */
+	private void decide(AirCurrentGenerator acg, int r) {
+		int captured = sensors.generators.get(acg);
+		Integer was = captureCount.put(acg, captured);
+		Integer crystals = crystalCount.put(acg, acg.getConsumption());
+		float[] last = lastFeatures.get(acg);
+		if (last == null) {
+			last = new float[F];
+			lastFeatures.put(acg, last);
+		} else {
+			double reward = params.captureReward * (captured - (was == null ? captured : was))
+					+ budget.penalty(acg.getConsumption() - (crystals == null ? acg.getConsumption() : crystals));
+			replay.add(last, 0, lastAction.get(acg), (float) reward, x, r * F);
+		}
+
+		SplittableRandom rn = random.forTower(acg);
+		int a;
+		if (rn.nextDouble() < epsilon) {
+			a = rn.nextInt(potentials.length);
+		} else {
+			int row = r * potentials.length;
+			a = 0;
+			for (int k = 1; k < potentials.length; k++) {
+				if (q[row + k] > q[row + a]) a = k;
+			}
+		}
+		potentials[a].doAction(acg, thisState.get(acg));
+		System.arraycopy(x, r * F, last, 0, F);
+		lastAction.put(acg, a);
+	}
+
+	/**
+	 * Trains the network from the replay buffer, and publishes it now and
+	 * then. Its scratch arrays are allocated once.
+	 */
+	private class Trainer implements Runnable {
+		private final SplittableRandom rn;
+		private final float[] s, s2, target, hs, qs, g;
+		private final int[] a;
+		private final float[] r;
+
+		Trainer(SplittableRandom rn) {
+			this.rn = rn;
+			s = new float[batch * F];
+			s2 = new float[batch * F];
+			a = new int[batch];
+			r = new float[batch];
+			target = new float[batch];
+			hs = new float[batch * hidden];
+			qs = new float[batch * potentials.length];
+			g = new float[hidden];
+		}
+
+		public void run() {
+			while (true) {
+				if ((updates + 1) * batch > replay.getAdded() * replayRatio || !update()) {
+					try {
+						Thread.sleep(2);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+
+		/** @return false if there isn't enough experience to train on yet */
+		boolean update() {
+			if (replay.size() < batch) return false;
+			replay.sample(batch, rn, s, a, r, s2);
+
+			// the targets come from the published network, which changes
+			// more slowly than the one learning
+			int actions = potentials.length;
+			published.forward(s2, batch, hs, qs);
+			for (int k = 0; k < batch; k++) {
+				float best = qs[k * actions];
+				for (int j = 1; j < actions; j++) best = Math.max(best, qs[k * actions + j]);
+				target[k] = (float) (r[k] + params.gamma * best);
+			}
+			loss = learning.train(s, a, target, batch, rate, hs, qs, g);
+			updates++;
+			if (updates % publishEvery == 0) {
+				published = learning.copy();
+				publications++;
+			}
+			return true;
+		}
+	}
+
+	private void save(File f) {
+		File tmp = new File(f.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				published.write(out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(f)) {
+				f.delete();
+				if (!tmp.renameTo(f)) throw new IOException("Couldn't rename " + tmp);
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't save the network: " + e);
+		}
+	}
+
+	/**
+	 * @return how much the network has trained, and its recent loss
+	 */
+	public String getTrainingStats() {
+		return String.format("transitions=%d updates=%d published=%d loss=%.4f", replay.getAdded(), updates,
+				publications, loss);
+	}
+}
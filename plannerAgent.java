@@ -0,0 +1,439 @@
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import jig.misc.rd.AirCurrentGenerator;
+import jig.misc.rd.Direction;
+import jig.misc.rd.ai.InsectView;
+
+/**
+ *  An agent that plans instead of learning action values.
+ *
+ *  It learns how insects move (an InsectMotionModel, built from the
+ *  sensor stream) and, when a tower is due for a decision, simulates the
+ *  insects near the tower under each power and direction it could choose.
+ *  The setting whose short Monte Carlo rollouts capture the most insects,
+ *  net of the crystals it would burn, wins.
+ *
+ *  A rollout lasts rd.planner.depth agent steps. Only insects within
+ *  rd.planner.radius cells of the tower are simulated, and they are
+ *  captured when they move onto a tower. The air currents under each
+ *  candidate setting come from the AirCurrentField: the tower's current
+ *  contribution is swapped for the footprint recorded the last time the
+ *  tower used that setting. Settings the tower hasn't used yet can't be
+ *  simulated; rd.planner.explore makes the agent try a random setting now
+ *  and then so their footprints get recorded.
+ *
+ *  Planning is bounded by a per-step time budget (rd.planner.budgetMicros).
+ *  Candidates are sampled in rounds, one rollout each, so stopping at any
+ *  point leaves them with equal evidence; towers that get no time at all
+ *  keep their setting and are picked up again by the DecisionScheduler.
+ *  cancel() stops the current pass from another thread. The rollout loop
+ *  works entirely in arrays allocated up front.
+ *
+ *  If rd.planner.model names a file, the motion model is loaded from it at
+ *  start up and saved back to it when the JVM exits.
+ */
+public class plannerAgent extends BaseLearningAgent {
+
+	final int depth = AgentConfig.getInt("rd.planner.depth", 10);
+	final int maxRollouts = AgentConfig.getInt("rd.planner.rollouts", 32);
+	final long budgetNanos = AgentConfig.getLong("rd.planner.budgetMicros", 2000) * 1000;
+	final int radius = AgentConfig.getInt("rd.planner.radius", 4);
+	final double gamma = AgentConfig.getDouble("rd.planner.gamma", 0.95);
+	final double captureValue = AgentConfig.getDouble("rd.planner.captureValue", 10.0);
+	final double explore = AgentConfig.getDouble("rd.planner.explore", 0.05);
+
+	private static final AgentAction[] potentials;
+	private static final int[] DX, DY;
+
+	static {
+		Direction[] dirs = Direction.values();
+		potentials = new AgentAction[dirs.length * 3];
+		int i = 0;
+		for (Direction d : dirs) {
+			potentials[i++] = new AgentAction(0, d);
+			potentials[i++] = new AgentAction(2, d);
+			potentials[i++] = new AgentAction(4, d);
+		}
+		DX = new int[dirs.length];
+		DY = new int[dirs.length];
+		for (Direction d : dirs) {
+			DX[d.ordinal()] = d.xhat();
+			DY[d.ordinal()] = d.yhat();
+		}
+	}
+
+	DecisionScheduler scheduler;
+	AgentRandom random;
+	CrystalBudget budget;
+	InsectMotionModel model;
+
+	private volatile boolean cancelled;
+
+	/** towers in unique id order, and for each cell the index + 1 of the tower on it (0 if none) */
+	private final ArrayList<AirCurrentGenerator> towers = new ArrayList<AirCurrentGenerator>();
+	private int[] towerAt = new int[0];
+
+	/** the generator set version the tower list was built for */
+	private int builtGenerators = -1;
+
+	/** crystals used per step at each power setting, learned from the towers */
+	private final double[] crystalsAtPower = new double[AirCurrentGenerator.POWER_SETTINGS + 1];
+	private final double[] stepsAtPower = new double[AirCurrentGenerator.POWER_SETTINGS + 1];
+	private int[] lastConsumption = new int[0], lastPower = new int[0];
+
+	// planning scratch space, (re)allocated only when the map or insect count grows
+	private int[] insX = new int[16], insY = new int[16], insT = new int[16];
+	private int[] simX = new int[16], simY = new int[16];
+	private boolean[] simAlive = new boolean[16];
+	private int[][] airCodes = new int[potentials.length][0];
+	private float[] windowX = new float[0], windowY = new float[0];
+	private int[] footprintCells = new int[0];
+	private float[] footprintVecs = new float[0];
+	private final double[] valueSum = new double[potentials.length];
+	private final int[] rollouts = new int[potentials.length];
+	private final boolean[] usable = new boolean[potentials.length];
+
+	// the window being planned
+	private int wx0, wy0, wx1, wy1, wh, insects, self;
+
+	/** statistics */
+	private long towersPlanned, towersDeferred, rolloutsRun;
+
+	public plannerAgent() {
+		scheduler = new DecisionScheduler(sensors);
+		random = new AgentRandom(getClass().getName());
+		budget = new CrystalBudget();
+		model = new InsectMotionModel(sensors);
+
+		String modelFile = AgentConfig.getString("rd.planner.model", null);
+		if (modelFile != null) {
+			final File f = new File(modelFile);
+			if (f.exists()) {
+				try {
+					model.load(f);
+				} catch (IOException e) {
+					System.err.println("Couldn't load the motion model: " + e);
+				}
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						model.save(f);
+					} catch (IOException e) {
+						System.err.println("Couldn't save the motion model: " + e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops the planning pass in progress (if any); towers it hasn't
+	 * reached keep their settings until the next step.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public void step(long deltaMS) {
+		sensors.drainEvents(deltaMS);
+		updatePerformanceLog();
+		if (sensors.generators == null) return;
+
+		budget.update(deltaMS, getPlayingField(), sensors.generators.keySet());
+		if (builtGenerators != sensors.getGeneratorsVersion()) rebuild();
+		observe();
+
+		cancelled = false;
+		long deadline = System.nanoTime() + budgetNanos;
+		for (AirCurrentGenerator acg : scheduler.select(deltaMS)) {
+			if (cancelled || System.nanoTime() >= deadline) {
+				// still due, so it plans first next frame
+				scheduler.defer(acg);
+				towersDeferred++;
+				continue;
+			}
+			plan(acg, deadline);
+			towersPlanned++;
+		}
+	}
+
+	/**
+	 * Updates the motion model's exposure counts and the cost of each power
+	 * setting.
+	 */
+	private void observe() {
+		model.observeStep();
+		for (int i = 0; i < towers.size(); i++) {
+			AirCurrentGenerator acg = towers.get(i);
+			int used = acg.getConsumption();
+			if (lastPower[i] >= 0) {
+				crystalsAtPower[lastPower[i]] += used - lastConsumption[i];
+				stepsAtPower[lastPower[i]] += 1.0;
+			}
+			lastConsumption[i] = used;
+			lastPower[i] = acg.getPowerSetting();
+		}
+	}
+
+	/**
+	 * @return the expected crystals used per step at a power setting; until
+	 *   it has been observed, assume a crystal per second at full power
+	 */
+	private double crystalsPerStep(int power) {
+		double prior = (power / (double) AirCurrentGenerator.POWER_SETTINGS) * 0.2;
+		return (crystalsAtPower[power] + prior) / (stepsAtPower[power] + 1.0);
+	}
+
+	private void plan(AirCurrentGenerator acg, long deadline) {
+		SplittableRandom rn = random.forTower(acg);
+		AirCurrentField air = sensors.getAirCurrents();
+		int width = sensors.getWorldWidth(), height = sensors.getWorldHeight();
+		int current = indexOf(acg.getPowerSetting(), acg.getFacingDirection());
+
+		wx0 = Math.max(0, acg.getGridX() - radius);
+		wy0 = Math.max(0, acg.getGridY() - radius);
+		wx1 = Math.min(width, acg.getGridX() + acg.getGridWidth() + radius);
+		wy1 = Math.min(height, acg.getGridY() + acg.getGridHeight() + radius);
+		wh = wy1 - wy0;
+		self = towers.indexOf(acg) + 1;
+		snapshotInsects();
+
+		if (insects == 0) {
+			// nothing to catch: save crystals
+			choose(acg, current, indexOf(0, acg.getFacingDirection()));
+			return;
+		}
+		if (rn.nextDouble() < explore) {
+			choose(acg, current, rn.nextInt(potentials.length));
+			return;
+		}
+
+		int cells = (wx1 - wx0) * wh;
+		ensureWindow(cells, width * height);
+		for (int c = 0; c < potentials.length; c++) {
+			valueSum[c] = 0.0;
+			rollouts[c] = 0;
+			usable[c] = prepareAirCodes(acg, air, c, c == current);
+		}
+
+		// sample in rounds so every candidate has about the same evidence
+		// whenever we have to stop
+		outer:
+		for (int r = 0; r < maxRollouts; r++) {
+			for (int c = 0; c < potentials.length; c++) {
+				if (!usable[c]) continue;
+				if (cancelled || System.nanoTime() >= deadline) break outer;
+				valueSum[c] += rollout(c, rn);
+				rollouts[c]++;
+				rolloutsRun++;
+			}
+		}
+
+		int best = -1;
+		double bestValue = Double.NEGATIVE_INFINITY;
+		if (current >= 0 && rollouts[current] > 0) {
+			best = current;
+			bestValue = valueSum[current] / rollouts[current];
+		}
+		for (int c = 0; c < potentials.length; c++) {
+			if (rollouts[c] == 0) continue;
+			double v = valueSum[c] / rollouts[c];
+			if (v > bestValue) {
+				best = c;
+				bestValue = v;
+			}
+		}
+		if (best >= 0) choose(acg, current, best);
+	}
+
+	private void choose(AirCurrentGenerator acg, int current, int c) {
+		if (c >= 0 && c != current) potentials[c].doAction(acg);
+	}
+
+	/**
+	 * Copies the insects inside the planning window into the scratch arrays.
+	 */
+	private void snapshotInsects() {
+		insects = 0;
+		for (Map.Entry<InsectView, Point> e : sensors.getInsectLocations().entrySet()) {
+			Point p = e.getValue();
+			if (p.x < wx0 || p.x >= wx1 || p.y < wy0 || p.y >= wy1) continue;
+			if (insects == insX.length) growInsects();
+			insX[insects] = p.x;
+			insY[insects] = p.y;
+			insT[insects] = CellContents.getInsectType(e.getKey());
+			insects++;
+		}
+	}
+
+	/**
+	 * Works out the air current code of every window cell under candidate
+	 * c.
+	 *
+	 * @return false if the candidate's air currents aren't known
+	 */
+	private boolean prepareAirCodes(AirCurrentGenerator acg, AirCurrentField air, int c, boolean isCurrent) {
+		int[] codes = airCodes[c];
+		int height = sensors.getWorldHeight();
+		if (isCurrent) {
+			for (int x = wx0; x < wx1; x++) {
+				for (int y = wy0; y < wy1; y++) {
+					codes[(x - wx0) * wh + (y - wy0)] = CellContents.getAirCurrentCode(air.totalX(x, y), air.totalY(x, y));
+				}
+			}
+			return true;
+		}
+
+		AgentAction a = potentials[c];
+		int n = 0;
+		if (a.getPower() > 0) {
+			n = air.footprint(acg, a.getPower(), a.getDirection(), footprintCells, footprintVecs);
+			if (n < 0) return false;
+		}
+		for (int x = wx0; x < wx1; x++) {
+			for (int y = wy0; y < wy1; y++) {
+				int k = (x - wx0) * wh + (y - wy0);
+				windowX[k] = air.totalX(x, y) - air.getX(acg, x, y);
+				windowY[k] = air.totalY(x, y) - air.getY(acg, x, y);
+			}
+		}
+		for (int f = 0; f < n; f++) {
+			int x = footprintCells[f] / height, y = footprintCells[f] % height;
+			if (x < wx0 || x >= wx1 || y < wy0 || y >= wy1) continue;
+			int k = (x - wx0) * wh + (y - wy0);
+			windowX[k] += footprintVecs[2 * f];
+			windowY[k] += footprintVecs[2 * f + 1];
+		}
+		for (int k = 0, cells = (wx1 - wx0) * wh; k < cells; k++) {
+			codes[k] = CellContents.getAirCurrentCode(windowX[k], windowY[k]);
+		}
+		return true;
+	}
+
+	/**
+	 * Simulates the window's insects for depth steps under candidate c.
+	 *
+	 * @return the discounted value of the tower's captures, less the cost of
+	 *   the crystals it burns
+	 */
+	private double rollout(int c, SplittableRandom rn) {
+		int[] codes = airCodes[c];
+		int height = sensors.getWorldHeight();
+		for (int k = 0; k < insects; k++) {
+			simX[k] = insX[k];
+			simY[k] = insY[k];
+			simAlive[k] = true;
+		}
+
+		double value = 0.0, discount = 1.0, discounts = 0.0;
+		for (int d = 0; d < depth; d++) {
+			for (int k = 0; k < insects; k++) {
+				if (!simAlive[k]) continue;
+				int code = codes[(simX[k] - wx0) * wh + (simY[k] - wy0)];
+				double rate = model.moveRate(insT[k], code);
+				int moves = (int) rate;
+				if (rn.nextDouble() < rate - moves) moves++;
+				for (int m = 0; m < moves; m++) {
+					int dir = model.sampleDirection(insT[k], code, rn);
+					int x = simX[k] + DX[dir], y = simY[k] + DY[dir];
+					if (x < wx0 || x >= wx1 || y < wy0 || y >= wy1) {
+						// wandered off: no longer our concern
+						simAlive[k] = false;
+						break;
+					}
+					int t = towerAt[x * height + y];
+					if (t != 0) {
+						if (t == self) value += discount * captureValue;
+						simAlive[k] = false;
+						break;
+					}
+					simX[k] = x;
+					simY[k] = y;
+					code = codes[(x - wx0) * wh + (y - wy0)];
+				}
+			}
+			discounts += discount;
+			discount *= gamma;
+		}
+		return value - budget.getPrice() * crystalsPerStep(potentials[c].getPower()) * discounts;
+	}
+
+	private void ensureWindow(int cells, int mapCells) {
+		if (windowX.length < cells) {
+			windowX = new float[cells];
+			windowY = new float[cells];
+			for (int c = 0; c < airCodes.length; c++) airCodes[c] = new int[cells];
+		}
+		if (footprintCells.length < mapCells) {
+			footprintCells = new int[mapCells];
+			footprintVecs = new float[2 * mapCells];
+		}
+	}
+
+	private void growInsects() {
+		int n = insX.length * 2;
+		int[] a = new int[n], b = new int[n], t = new int[n];
+		System.arraycopy(insX, 0, a, 0, insX.length);
+		System.arraycopy(insY, 0, b, 0, insY.length);
+		System.arraycopy(insT, 0, t, 0, insT.length);
+		insX = a;
+		insY = b;
+		insT = t;
+		simX = new int[n];
+		simY = new int[n];
+		simAlive = new boolean[n];
+	}
+
+	private void rebuild() {
+		builtGenerators = sensors.getGeneratorsVersion();
+		towers.clear();
+		towers.addAll(sensors.generators.keySet());
+		Collections.sort(towers, new Comparator<AirCurrentGenerator>() {
+			public int compare(AirCurrentGenerator a, AirCurrentGenerator b) {
+				return a.getUniqueID() - b.getUniqueID();
+			}
+		});
+		int width = sensors.getWorldWidth(), height = sensors.getWorldHeight();
+		towerAt = new int[width * height];
+		for (int i = 0; i < towers.size(); i++) {
+			AirCurrentGenerator acg = towers.get(i);
+			for (int x = acg.getGridX(); x < acg.getGridX() + acg.getGridWidth(); x++) {
+				for (int y = acg.getGridY(); y < acg.getGridY() + acg.getGridHeight(); y++) {
+					if (x >= 0 && y >= 0 && x < width && y < height) towerAt[x * height + y] = i + 1;
+				}
+			}
+		}
+		lastConsumption = new int[towers.size()];
+		lastPower = new int[towers.size()];
+		Arrays.fill(lastPower, -1);
+	}
+
+	private static int indexOf(int power, Direction d) {
+		for (int i = 0; i < potentials.length; i++) {
+			if (potentials[i].getPower() == power && potentials[i].getDirection() == d) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return planning statistics, for reports
+	 */
+	public Map<String, Long> getPlanningStats() {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		m.put("towersPlanned", towersPlanned);
+		m.put("towersDeferred", towersDeferred);
+		m.put("rollouts", rolloutsRun);
+		m.put("observedMoves", model.observedMoves());
+		return m;
+	}
+}
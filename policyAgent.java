@@ -0,0 +1,68 @@
+import java.io.File;
+import java.io.IOException;
+
+import jig.misc.rd.AirCurrentGenerator;
+
+/**
+ * Plays a frozen munchersOne policy (see FrozenPolicy and
+ * munchersOne.exportPolicy) without learning anything.
+ *
+ * The policy file (rd.policy.file, munchers.policy by default) is mapped
+ * read-only, so any number of evaluation processes can share it. Like
+ * munchersOne, it only looks at the towers the DecisionScheduler selects
+ * (those near a cell that changed, or stale). When a tower's state has
+ * changed, its action is a single lookup; states the policy doesn't know
+ * leave the tower as it is.
+ */
+public class policyAgent extends BaseLearningAgent {
+
+	private FrozenPolicy policy;
+	private final DecisionScheduler scheduler;
+	private long known, unknown, lookupNanos;
+
+	public policyAgent() {
+		scheduler = new DecisionScheduler(sensors);
+		String name = AgentConfig.getString("rd.policy.file", "munchers.policy");
+		try {
+			policy = FrozenPolicy.open(new File(name));
+			if (policy.getActions() != munchersOne.potentials.length) {
+				System.err.println("Policy " + name + " has " + policy.getActions() + " actions, not "
+						+ munchersOne.potentials.length + "; ignoring it");
+				policy = null;
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't open the policy " + name + ": " + e);
+		}
+	}
+
+	public void step(long deltaMS) {
+		sensors.drainEvents(deltaMS);
+		updatePerformanceLog();
+		if (policy == null || sensors.generators == null) return;
+
+		for (AirCurrentGenerator acg : scheduler.select(deltaMS)) {
+			// the same state always gets the same action, so timed decisions can pass
+			if (!stateChanged(acg)) continue;
+			StateVector state = thisState.get(acg);
+			long t0 = System.nanoTime();
+			int a = policy.action(state.longKey());
+			lookupNanos += System.nanoTime() - t0;
+			if (a < 0) {
+				unknown++;
+				continue;
+			}
+			known++;
+			munchersOne.potentials[a].doAction(acg, state);
+		}
+	}
+
+	/**
+	 * @return how many decisions found their state in the policy, how many
+	 *   didn't, and the mean lookup time
+	 */
+	public String getPolicyStats() {
+		long n = known + unknown;
+		return String.format("states=%d known=%d unknown=%d nsPerLookup=%d", policy == null ? 0 : policy.size(),
+				known, unknown, n == 0 ? 0 : lookupNanos / n);
+	}
+}
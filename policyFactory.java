@@ -0,0 +1,13 @@
+import jig.misc.rd.ai.AgentFactory;
+import jig.misc.rd.ai.RobotDefenseAgent;
+
+
+
+
+public class policyFactory implements AgentFactory {
+
+	public RobotDefenseAgent createAgent(String name, String agentResource) {
+		return new policyAgent();
+	}
+
+}